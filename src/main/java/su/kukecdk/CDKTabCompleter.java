@@ -63,6 +63,11 @@ public class CDKTabCompleter implements TabCompleter {
                 case "list":
                     handleListCompletion(args, completions);
                     break;
+                case "cache":
+                    if (args.length == 2) {
+                        completions.add("clear");
+                    }
+                    break;
                 case "use":
                 case "verify":
                     handleUseVerifyCompletion(sender, args, completions);
@@ -104,7 +109,7 @@ public class CDKTabCompleter implements TabCompleter {
     private void handleListCompletion(String[] args, List<String> completions) {
         if (args.length == 2 && cdkManager != null) {
             // 添加已存在的CDK ID列表
-            cdkManager.getAllCDKs().keySet().stream()
+            cdkManager.getGroupIds().stream()
                 .filter(id -> args[1].isEmpty() || id.startsWith(args[1]))
                 .forEach(completions::add);
             // 如果没有匹配的ID，添加占位符
@@ -237,7 +242,7 @@ public class CDKTabCompleter implements TabCompleter {
     private void handleAddCompletion(String[] args, List<String> completions) {
         if (args.length == 2 && cdkManager != null) {
             // 添加已存在的CDK ID列表
-            cdkManager.getAllCDKs().keySet().stream()
+            cdkManager.getGroupIds().stream()
                 .filter(id -> args[1].isEmpty() || id.startsWith(args[1]))
                 .forEach(completions::add);
             // 如果没有匹配的ID，添加占位符
@@ -267,7 +272,7 @@ public class CDKTabCompleter implements TabCompleter {
             String deleteType = args[1].toLowerCase();
             if ("id".equals(deleteType) && cdkManager != null) {
                 // 添加已存在的CDK ID列表
-                cdkManager.getAllCDKs().keySet().stream()
+                cdkManager.getGroupIds().stream()
                     .filter(id -> args[2].isEmpty() || id.startsWith(args[2]))
                     .forEach(completions::add);
                 // 如果没有匹配的ID，添加占位符
@@ -276,8 +281,7 @@ public class CDKTabCompleter implements TabCompleter {
                 }
             } else if ("cdk".equals(deleteType) && cdkManager != null) {
                 // 添加已存在的CDK名称列表
-                cdkManager.getAllCDKs().values().stream()
-                    .flatMap(map -> map.keySet().stream())
+                cdkManager.getCDKNames().stream()
                     .filter(name -> args[2].isEmpty() || name.startsWith(args[2]))
                     .forEach(completions::add);
                 // 如果没有匹配的名称，添加占位符
@@ -307,7 +311,7 @@ public class CDKTabCompleter implements TabCompleter {
             }
             // 如果没有匹配的模式，添加占位符
             if (completions.isEmpty()) {
-                completions.add("<yaml|sqlite|mysql>");
+                completions.add("<yaml|journal|sqlite|mysql>");
             }
         }
     }
@@ -327,8 +331,7 @@ public class CDKTabCompleter implements TabCompleter {
             // verify 指令可以补全CDK名称
             if (args.length == 2 && cdkManager != null) {
                 // 添加已存在的CDK名称列表
-                cdkManager.getAllCDKs().values().stream()
-                    .flatMap(map -> map.keySet().stream())
+                cdkManager.getCDKNames().stream()
                     .filter(name -> args[1].isEmpty() || name.startsWith(args[1]))
                     .forEach(completions::add);
                 // 如果没有匹配的名称，添加占位符
@@ -342,10 +345,10 @@ public class CDKTabCompleter implements TabCompleter {
     }
 
     private final List<String> ADMIN_COMMANDS = Arrays.asList(
-            "create", "add", "delete", "list", "reload", "export", "migrate", "verify"
+            "create", "add", "delete", "list", "reload", "export", "migrate", "verify", "cache"
     );
     
     private final List<String> MIGRATE_OPTIONS = Arrays.asList(
-            "yaml", "sqlite", "mysql"
+            "yaml", "journal", "sqlite", "mysql"
     );
 }
@@ -15,7 +15,9 @@ import su.kukecdk.manager.FailedAttemptsManager;
 import su.kukecdk.metrics.Metrics;
 import su.kukecdk.gui.AnvilGUIManager;
 import su.kukecdk.update.UpdateService;
+import su.kukecdk.util.AtomicFileWriter;
 import su.kukecdk.util.FoliaSupport;
+import su.kukecdk.util.PlaceholderSupport;
 // import com.tcoded.folialib.FoliaLib;  // 暂时注释，网络问题
 
 import java.util.Arrays;
@@ -60,8 +62,9 @@ public final class KukeCDK extends JavaPlugin implements CommandExecutor {
 
         // 初始化管理器
         configManager = new ConfigManager(this);
+        applyFileWriteSettings();
         cdkManager = new CDKManager(this, configManager.getConfig());
-        logManager = new LogManager(this);
+        logManager = new LogManager(this, cdkManager);
         languageManager = new LanguageManager(this, configManager);
         failedAttemptsManager = new FailedAttemptsManager(this);
         commandHandler = new CDKCommandHandler(cdkManager, logManager, languageManager, failedAttemptsManager, getDataFolder());
@@ -69,7 +72,7 @@ public final class KukeCDK extends JavaPlugin implements CommandExecutor {
         // 启动更新检查并注册加入服务器提醒
         updateService = new UpdateService(this);
         updateService.init();
-        apiServerManager = new ApiServerManager(this, configManager, cdkManager, logManager, this::reloadFromApi);
+        apiServerManager = new ApiServerManager(this, configManager, cdkManager, logManager, failedAttemptsManager, this::reloadFromApi);
         apiServerManager.startIfEnabled();
 
         // 注册命令和Tab补全
@@ -90,13 +93,20 @@ public final class KukeCDK extends JavaPlugin implements CommandExecutor {
      * 清理过期的失败尝试记录
      */
     private void cleanupFailedAttempts() {
-        // 这里只是触发检查，实际清理在recordFailedAttempt方法中进行
+        // 记录失败时只检查少量记录，这里定期补充清理长时间无人失败时残留的记录
         if (failedAttemptsManager != null) {
-            // 可以添加日志记录或其他操作
+            failedAttemptsManager.purgeExpired();
         }
     }
 
-    /** 恢复周期性任务（过期 CDK 清理） */
+    /** 按配置更新数据文件的原子写入参数 */
+    private void applyFileWriteSettings() {
+        AtomicFileWriter.configure(
+                configManager.getConfig().getBoolean("persistence.fsync", true),
+                configManager.getConfig().getInt("persistence.backups", 3));
+    }
+
+    /** 恢复周期性任务（过期 CDK、名称过滤器与失败尝试记录清理） */
     private void schedulePeriodicTasks() {
         try {
             // 每 5 分钟检查一次过期 CDK（300 秒）
@@ -106,6 +116,12 @@ public final class KukeCDK extends JavaPlugin implements CommandExecutor {
                 try {
                     if (cdkManager != null) cdkManager.removeExpiredCDKs();
                 } catch (Throwable ignored) {}
+                try {
+                    if (cdkManager != null) cdkManager.maintainNameFilter();
+                } catch (Throwable ignored) {}
+                try {
+                    cleanupFailedAttempts();
+                } catch (Throwable ignored) {}
             };
             expiredCDKsTaskHandle = FoliaSupport.isFolia()
                     ? FoliaSupport.runGlobalFixedRate(this, job, initialDelay, period)
@@ -117,21 +133,23 @@ public final class KukeCDK extends JavaPlugin implements CommandExecutor {
 
     @Override
     public void onDisable() {
-        // 保存数据
+        // 先停止 API，避免关闭存储后仍有请求写入
+        if (apiServerManager != null) {
+            apiServerManager.stop();
+        }
+        // 写入队列中剩余的CDK变更并关闭存储
         if (cdkManager != null) {
-            cdkManager.saveCDKs();
+            cdkManager.close();
         }
         if (logManager != null) {
-            logManager.saveLog();
+            logManager.close();
         }
         if (failedAttemptsManager != null) {
-            failedAttemptsManager.saveConfig();
-        }
-        if (apiServerManager != null) {
-            apiServerManager.stop();
+            failedAttemptsManager.close();
         }
         // 取消周期任务
         try { FoliaSupport.cancel(expiredCDKsTaskHandle); } catch (Throwable ignored) {}
+        PlaceholderSupport.reset();
         getLogger().info("KukeCDK 已卸载");
     }
 
@@ -152,6 +170,7 @@ public final class KukeCDK extends JavaPlugin implements CommandExecutor {
             case "export":
             case "migrate":
             case "verify":
+            case "cache":
                 // 检查管理员权限
                 if (!sender.hasPermission("kukecdk.admin." + args[0].toLowerCase())) {
                     sender.sendMessage(languageManager.getMessage("prefix") + languageManager.getMessage("no_permission"));
@@ -186,6 +205,7 @@ public final class KukeCDK extends JavaPlugin implements CommandExecutor {
                 return commandHandler.handleListCommand(sender, args);
             case "reload":
                 boolean reloaded = commandHandler.handleReloadCommand(sender);
+                applyFileWriteSettings();
                 if (apiServerManager != null) {
                     apiServerManager.restart();
                 }
@@ -209,6 +229,8 @@ public final class KukeCDK extends JavaPlugin implements CommandExecutor {
                 return commandHandler.displayHelp(sender);
             case "migrate":
                 return handleMigrateCommand(sender, args);
+            case "cache":
+                return commandHandler.handleCacheCommand(sender, args);
             default:
                 sender.sendMessage(languageManager.getMessage("prefix") + languageManager.getMessage("unknown_command"));
                 return true;
@@ -232,7 +254,7 @@ public final class KukeCDK extends JavaPlugin implements CommandExecutor {
         String targetMode = args[2].toLowerCase();
         
         // 检查源和目标模式是否有效
-        List<String> validModes = Arrays.asList("yaml", "sqlite", "mysql");
+        List<String> validModes = Arrays.asList("yaml", "journal", "sqlite", "mysql");
         if (!validModes.contains(sourceMode) || !validModes.contains(targetMode)) {
             sender.sendMessage(languageManager.getMessage("prefix") + languageManager.getMessage("migrate_invalid_mode"));
             return true;
@@ -284,6 +306,30 @@ public final class KukeCDK extends JavaPlugin implements CommandExecutor {
             return -1;
         }
         
+        // 涉及日志存储的迁移走通用路径
+        if ("journal".equals(sourceMode) || "journal".equals(targetMode)) {
+            // 迁移到日志存储或数据库时切换当前存储模式，导出到YAML时保持不变
+            boolean switchMode = !"yaml".equals(targetMode);
+            String previousMode = cdkManager.getStorageMode();
+            if (switchMode) {
+                configManager.getConfig().set("storage_mode", targetMode);
+                configManager.saveConfig();
+            }
+            try {
+                int count = cdkManager.migrateDirect(sourceMode, targetMode);
+                String messageKey = "journal".equals(targetMode) ? "migrate_to_journal_success"
+                        : "yaml".equals(targetMode) ? "migrate_to_yaml_success" : "migrate_to_database_success";
+                sender.sendMessage(languageManager.getMessage("prefix") + languageManager.getMessage(messageKey));
+                return count;
+            } catch (Exception e) {
+                if (switchMode) {
+                    configManager.getConfig().set("storage_mode", previousMode);
+                    configManager.saveConfig();
+                }
+                throw new RuntimeException("从 " + sourceMode + " 迁移到 " + targetMode + " 失败: " + e.getMessage(), e);
+            }
+        }
+
         // 从YAML迁移到数据库
         if ("yaml".equals(sourceMode)) {
             if ("sqlite".equals(targetMode) || "mysql".equals(targetMode)) {
@@ -331,6 +377,7 @@ public final class KukeCDK extends JavaPlugin implements CommandExecutor {
 
     private void reloadFromApi() {
         configManager.reloadConfig();
+        applyFileWriteSettings();
         cdkManager.updateConfig(configManager.getConfig());
         cdkManager.loadCDKs();
         if (apiServerManager != null) {
@@ -1,12 +1,140 @@
 package su.kukecdk.api;
 
 import com.sun.net.httpserver.HttpExchange;
+import org.bukkit.configuration.InvalidConfigurationException;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.bukkit.plugin.java.JavaPlugin;
 
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bearer Token 认证
+ * <p>
+ * Token 以 HMAC-SHA256（进程内随机密钥）为键建立索引，每次请求只计算一次 HMAC 并查表，
+ * 命中后再以常量时间比较原始 Token。api.auth.tokens_file 中的 Token 会定期检查修改时间并热加载。
+ */
 public class ApiAuthManager {
+    private final JavaPlugin plugin;
     private final ApiConfig config;
+    private final byte[] hmacKey = new byte[32];
+    private final ThreadLocal<Mac> macs = ThreadLocal.withInitial(this::newMac);
+    private volatile Map<String, ApiToken> tokenIndex;
+    private File tokensFile;
+    private long tokensFileModified = -1L;
+    private long tokensFileLength = -1L;
+    private ScheduledExecutorService watcher;
 
-    public ApiAuthManager(ApiConfig config) {
+    public ApiAuthManager(JavaPlugin plugin, ApiConfig config) {
+        this.plugin = plugin;
         this.config = config;
+        new SecureRandom().nextBytes(hmacKey);
+        String fileName = config.getTokensFile();
+        if (fileName != null && !fileName.trim().isEmpty()) {
+            tokensFile = new File(plugin.getDataFolder(), fileName.trim());
+        }
+        reloadTokens();
+    }
+
+    /**
+     * 启动 Token 文件的热加载检查
+     */
+    public synchronized void start() {
+        if (tokensFile == null || watcher != null) return;
+        watcher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "KukeCDK-API-Tokens");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long interval = config.getTokensReloadIntervalMillis();
+        watcher.scheduleWithFixedDelay(() -> {
+            try {
+                if (tokensFile.lastModified() != tokensFileModified || tokensFile.length() != tokensFileLength) {
+                    reloadTokens();
+                }
+            } catch (Throwable e) {
+                plugin.getLogger().warning("KukeCDK API failed to reload tokens file: " + e.getMessage());
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void close() {
+        if (watcher != null) {
+            watcher.shutdownNow();
+            watcher = null;
+        }
+    }
+
+    /**
+     * 重新建立 Token 索引：配置文件中的 Token 加上 Token 文件中的 Token
+     */
+    public synchronized void reloadTokens() {
+        List<ApiToken> tokens = new ArrayList<>(config.getTokens());
+        if (tokensFile != null) {
+            tokensFileModified = tokensFile.lastModified();
+            tokensFileLength = tokensFile.length();
+            if (tokensFile.isFile()) {
+                YamlConfiguration yaml = new YamlConfiguration();
+                try {
+                    yaml.load(tokensFile);
+                } catch (IOException | InvalidConfigurationException e) {
+                    keepPreviousTokens("failed to parse " + tokensFile.getName() + ": " + e.getMessage(), tokens);
+                    return;
+                }
+                if (!yaml.isList("tokens")) {
+                    keepPreviousTokens("found no 'tokens' list in " + tokensFile.getName(), tokens);
+                    return;
+                }
+                List<ApiToken> fileTokens = ApiConfig.parseTokens(yaml.getList("tokens"));
+                for (ApiToken token : fileTokens) {
+                    if ("change-me-admin-token".equals(token.getToken()) || "change-me-readonly-token".equals(token.getToken())) {
+                        plugin.getLogger().warning("KukeCDK API ignored default token '" + token.getName() + "' in " + tokensFile.getName());
+                        continue;
+                    }
+                    tokens.add(token);
+                }
+                if (tokenIndex != null) {
+                    plugin.getLogger().info("KukeCDK API reloaded " + fileTokens.size() + " tokens from " + tokensFile.getName());
+                }
+            }
+        }
+        tokenIndex = buildIndex(tokens);
+    }
+
+    /**
+     * Token 文件无法使用时保留上一次的索引，避免一次写坏的文件吊销所有 Token；首次加载时只使用配置文件中的 Token
+     */
+    private void keepPreviousTokens(String reason, List<ApiToken> configTokens) {
+        if (tokenIndex != null) {
+            plugin.getLogger().warning("KukeCDK API " + reason + ", keeping previously loaded tokens");
+            return;
+        }
+        plugin.getLogger().warning("KukeCDK API " + reason + ", using tokens from config.yml only");
+        tokenIndex = buildIndex(configTokens);
+    }
+
+    private Map<String, ApiToken> buildIndex(List<ApiToken> tokens) {
+        Map<String, ApiToken> index = new HashMap<>(tokens.size() * 2);
+        for (ApiToken token : tokens) {
+            if (!token.getToken().isEmpty()) {
+                index.put(digest(token.getToken()), token);
+            }
+        }
+        return index;
     }
 
     public AuthResult authenticate(HttpExchange exchange, String requiredScope) {
@@ -18,55 +146,73 @@ public class ApiAuthManager {
             return AuthResult.deny("Missing Bearer token", 401);
         }
         String tokenValue = authorization.substring("Bearer ".length()).trim();
-        for (ApiToken token : config.getTokens()) {
-            if (constantEquals(token.getToken(), tokenValue)) {
-                if (!token.isValid()) {
-                    return AuthResult.deny("Invalid token configuration", 403);
-                }
-                if (requiredScope != null && !requiredScope.isEmpty() && !token.hasScope(requiredScope)) {
-                    return AuthResult.deny("Missing scope: " + requiredScope, 403);
-                }
-                return AuthResult.allow(token.getName());
-            }
+        if (tokenValue.isEmpty()) {
+            return AuthResult.deny("Invalid token", 401);
+        }
+        ApiToken token = tokenIndex.get(digest(tokenValue));
+        if (token == null || !constantEquals(token.getToken(), tokenValue)) {
+            return AuthResult.deny("Invalid token", 401);
         }
-        return AuthResult.deny("Invalid token", 401);
+        if (requiredScope != null && !requiredScope.isEmpty() && !token.hasScope(requiredScope)) {
+            return AuthResult.deny("Missing scope: " + requiredScope, 403);
+        }
+        return AuthResult.allow(token);
+    }
+
+    public int getTokenCount() {
+        return tokenIndex.size();
+    }
+
+    private Mac newMac() {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(hmacKey, "HmacSHA256"));
+            return mac;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA256 is not available", e);
+        }
+    }
+
+    private String digest(String token) {
+        return Base64.getEncoder().encodeToString(macs.get().doFinal(token.getBytes(StandardCharsets.UTF_8)));
     }
 
     private boolean constantEquals(String a, String b) {
         if (a == null || b == null) return false;
-        int result = a.length() ^ b.length();
-        int max = Math.max(a.length(), b.length());
-        for (int i = 0; i < max; i++) {
-            char ca = i < a.length() ? a.charAt(i) : 0;
-            char cb = i < b.length() ? b.charAt(i) : 0;
-            result |= ca ^ cb;
-        }
-        return result == 0;
+        return MessageDigest.isEqual(a.getBytes(StandardCharsets.UTF_8), b.getBytes(StandardCharsets.UTF_8));
     }
 
     public static class AuthResult {
         private final boolean allowed;
         private final String tokenName;
+        private final ApiToken token;
         private final String message;
         private final int status;
 
-        private AuthResult(boolean allowed, String tokenName, String message, int status) {
+        private AuthResult(boolean allowed, String tokenName, ApiToken token, String message, int status) {
             this.allowed = allowed;
             this.tokenName = tokenName;
+            this.token = token;
             this.message = message;
             this.status = status;
         }
 
         public static AuthResult allow(String tokenName) {
-            return new AuthResult(true, tokenName, null, 200);
+            return new AuthResult(true, tokenName, null, null, 200);
+        }
+
+        public static AuthResult allow(ApiToken token) {
+            return new AuthResult(true, token.getName(), token, null, 200);
         }
 
         public static AuthResult deny(String message, int status) {
-            return new AuthResult(false, null, message, status);
+            return new AuthResult(false, null, null, message, status);
         }
 
         public boolean isAllowed() { return allowed; }
         public String getTokenName() { return tokenName; }
+        /** 认证关闭时为 null */
+        public ApiToken getToken() { return token; }
         public String getMessage() { return message; }
         public int getStatus() { return status; }
     }
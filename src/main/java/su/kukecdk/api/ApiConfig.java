@@ -16,12 +16,18 @@ public class ApiConfig {
     private final String docsPath;
     private final boolean authEnabled;
     private final List<ApiToken> tokens;
+    private final String tokensFile;
+    private final long tokensReloadIntervalMillis;
     private final List<String> ipAllowlist;
     private final boolean rateLimitEnabled;
     private final int requestsPerMinute;
+    private final int tokenRequestsPerMinute;
+    private final int rateLimitMaxKeys;
     private final boolean corsEnabled;
     private final List<String> corsAllowedOrigins;
     private final int maxBodyBytes;
+    private final int maxBatchItems;
+    private final long mainThreadTimeoutMillis;
     private final boolean auditEnabled;
     private final boolean auditSuccess;
     private final boolean auditFailedAuth;
@@ -33,14 +39,20 @@ public class ApiConfig {
         this.basePath = normalizePath(config.getString("api.base_path", "/api/v1"));
         this.docsPath = normalizePath(config.getString("api.docs_path", "/docs"));
         this.authEnabled = config.getBoolean("api.auth.enabled", true);
+        this.tokensFile = config.getString("api.auth.tokens_file", "");
+        this.tokensReloadIntervalMillis = Math.max(1000L, config.getLong("api.auth.tokens_reload_interval_ms", 5000L));
         this.tokens = loadTokens(config);
         this.ipAllowlist = config.getStringList("api.ip_allowlist");
         this.rateLimitEnabled = config.getBoolean("api.rate_limit.enabled", true);
         this.requestsPerMinute = Math.max(1, config.getInt("api.rate_limit.requests_per_minute", 120));
+        this.tokenRequestsPerMinute = Math.max(0, config.getInt("api.rate_limit.token_requests_per_minute", 600));
+        this.rateLimitMaxKeys = Math.max(1, config.getInt("api.rate_limit.max_keys", 100000));
         this.corsEnabled = config.getBoolean("api.cors.enabled", false);
         List<String> origins = config.getStringList("api.cors.allowed_origins");
         this.corsAllowedOrigins = origins.isEmpty() ? Collections.singletonList("*") : origins;
         this.maxBodyBytes = Math.max(1024, config.getInt("api.max_body_bytes", 1048576));
+        this.maxBatchItems = Math.max(1, config.getInt("api.max_batch_items", 500));
+        this.mainThreadTimeoutMillis = Math.max(100L, config.getLong("api.main_thread_timeout_ms", 5000L));
         this.auditEnabled = config.getBoolean("api.audit.enabled", true);
         this.auditSuccess = config.getBoolean("api.audit.log_success", true);
         this.auditFailedAuth = config.getBoolean("api.audit.log_failed_auth", true);
@@ -61,13 +73,27 @@ public class ApiConfig {
     }
 
     private List<ApiToken> loadTokens(FileConfiguration config) {
+        List<ApiToken> result = parseTokens(config.getList("api.auth.tokens"));
+        // 配置了 Token 文件时允许配置文件中不写 Token
+        if (result.isEmpty() && (tokensFile == null || tokensFile.trim().isEmpty())) {
+            result.add(new ApiToken("admin", "change-me-admin-token", Arrays.asList("*")));
+        }
+        return result;
+    }
+
+    /**
+     * 解析 Token 列表，每项包含 name、token、scopes 和可选的 requests_per_minute
+     *
+     * @param list 配置中的列表，可以为 null
+     * @return Token 列表
+     */
+    static List<ApiToken> parseTokens(List<?> list) {
         List<ApiToken> result = new ArrayList<>();
-        List<?> list = config.getList("api.auth.tokens");
         if (list != null) {
             for (Object item : list) {
                 if (item instanceof ConfigurationSection) {
                     ConfigurationSection section = (ConfigurationSection) item;
-                    result.add(new ApiToken(section.getString("name"), section.getString("token"), section.getStringList("scopes")));
+                    result.add(new ApiToken(section.getString("name"), section.getString("token"), section.getStringList("scopes"), section.getInt("requests_per_minute", -1)));
                 } else if (item instanceof java.util.Map) {
                     java.util.Map<?, ?> map = (java.util.Map<?, ?>) item;
                     Object scopesObject = map.get("scopes");
@@ -77,13 +103,12 @@ public class ApiConfig {
                     }
                     Object name = map.get("name");
                     Object token = map.get("token");
-                    result.add(new ApiToken(name == null ? null : String.valueOf(name), token == null ? null : String.valueOf(token), scopes));
+                    Object limit = map.get("requests_per_minute");
+                    result.add(new ApiToken(name == null ? null : String.valueOf(name), token == null ? null : String.valueOf(token), scopes,
+                            limit instanceof Number ? ((Number) limit).intValue() : -1));
                 }
             }
         }
-        if (result.isEmpty()) {
-            result.add(new ApiToken("admin", "change-me-admin-token", Arrays.asList("*")));
-        }
         return result;
     }
 
@@ -94,12 +119,18 @@ public class ApiConfig {
     public String getDocsPath() { return docsPath; }
     public boolean isAuthEnabled() { return authEnabled; }
     public List<ApiToken> getTokens() { return tokens; }
+    public String getTokensFile() { return tokensFile; }
+    public long getTokensReloadIntervalMillis() { return tokensReloadIntervalMillis; }
     public List<String> getIpAllowlist() { return ipAllowlist; }
     public boolean isRateLimitEnabled() { return rateLimitEnabled; }
     public int getRequestsPerMinute() { return requestsPerMinute; }
+    public int getTokenRequestsPerMinute() { return tokenRequestsPerMinute; }
+    public int getRateLimitMaxKeys() { return rateLimitMaxKeys; }
     public boolean isCorsEnabled() { return corsEnabled; }
     public List<String> getCorsAllowedOrigins() { return corsAllowedOrigins; }
     public int getMaxBodyBytes() { return maxBodyBytes; }
+    public int getMaxBatchItems() { return maxBatchItems; }
+    public long getMainThreadTimeoutMillis() { return mainThreadTimeoutMillis; }
     public boolean isAuditEnabled() { return auditEnabled; }
     public boolean isAuditSuccess() { return auditSuccess; }
     public boolean isAuditFailedAuth() { return auditFailedAuth; }
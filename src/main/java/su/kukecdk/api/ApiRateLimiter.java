@@ -1,36 +1,139 @@
 package su.kukecdk.api;
 
-import java.util.ArrayDeque;
-import java.util.Deque;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * 滑动窗口计数限流器
+ * <p>
+ * 每个键只保存一个 long：当前窗口编号、上一窗口计数和当前窗口计数，按上一窗口的剩余比例加权估算最近一分钟的请求数。
+ * 计数通过 CAS 更新，不加锁；过期的键只由后台线程定期清理，请求路径上不做遍历。
+ * 键的数量达到上限时按加入顺序淘汰最早的键（被淘汰的来源重新计数），大量新来源不会让其它来源一起被拒绝。
+ */
 public class ApiRateLimiter {
-    private final Map<String, Deque<Long>> hits = new HashMap<>();
+    private static final long WINDOW_MS = 60000L;
+    private static final int COUNT_BITS = 20;
+    private static final long COUNT_MASK = (1L << COUNT_BITS) - 1;
+    private static final long WINDOW_MASK = (1L << (64 - 2 * COUNT_BITS)) - 1;
+    private static final long EVICT_INTERVAL_MS = 10000L;
+    // 每次新增键时最多跳过的已失效队列节点数
+    private static final int MAX_EVICT_ATTEMPTS = 16;
 
-    public synchronized boolean allow(String key, int requestsPerMinute) {
+    private final Map<String, AtomicLong> windows = new ConcurrentHashMap<>();
+    // 键的加入顺序；节点记录加入时的计数对象，键被清理或重新加入后旧节点失效
+    private final Queue<Tracked> order = new ConcurrentLinkedQueue<>();
+    private final int maxKeys;
+    private ScheduledExecutorService evictor;
+
+    public ApiRateLimiter() {
+        this(100000);
+    }
+
+    public ApiRateLimiter(int maxKeys) {
+        this.maxKeys = Math.max(1, maxKeys);
+    }
+
+    public synchronized void start() {
+        if (evictor != null) return;
+        evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "KukeCDK-API-RateLimit");
+            thread.setDaemon(true);
+            return thread;
+        });
+        evictor.scheduleWithFixedDelay(this::evictExpired, EVICT_INTERVAL_MS, EVICT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        if (evictor != null) {
+            evictor.shutdownNow();
+            evictor = null;
+        }
+    }
+
+    public boolean allow(String key, int requestsPerMinute) {
+        if (requestsPerMinute <= 0) return true;
         long now = System.currentTimeMillis();
-        long cutoff = now - 60000L;
-        Deque<Long> deque = hits.computeIfAbsent(key, k -> new ArrayDeque<>());
-        while (!deque.isEmpty() && deque.peekFirst() < cutoff) {
-            deque.removeFirst();
+        long window = (now / WINDOW_MS) & WINDOW_MASK;
+        double previousWeight = 1.0 - (now % WINDOW_MS) / (double) WINDOW_MS;
+        AtomicLong state = window(key);
+        while (true) {
+            long current = state.get();
+            long stateWindow = current >>> (2 * COUNT_BITS);
+            long previous = (current >>> COUNT_BITS) & COUNT_MASK;
+            long count = current & COUNT_MASK;
+            if (stateWindow != window) {
+                // 进入新窗口：紧邻的上一窗口计数保留为 previous，更早的直接清零
+                previous = stateWindow == ((window - 1) & WINDOW_MASK) ? count : 0L;
+                count = 0L;
+            }
+            if (previous * previousWeight + count + 1 > requestsPerMinute) {
+                return false;
+            }
+            long next = (window << (2 * COUNT_BITS)) | (previous << COUNT_BITS) | Math.min(count + 1, COUNT_MASK);
+            if (state.compareAndSet(current, next)) {
+                return true;
+            }
         }
-        if (deque.size() >= requestsPerMinute) {
-            cleanup(cutoff);
-            return false;
+    }
+
+    private AtomicLong window(String key) {
+        AtomicLong state = windows.get(key);
+        if (state != null) return state;
+        if (windows.size() >= maxKeys) {
+            evictOldest();
         }
-        deque.addLast(now);
-        cleanup(cutoff);
-        return true;
+        AtomicLong created = new AtomicLong();
+        state = windows.putIfAbsent(key, created);
+        if (state != null) return state;
+        order.add(new Tracked(key, created));
+        return created;
     }
 
-    private void cleanup(long cutoff) {
-        Iterator<Map.Entry<String, Deque<Long>>> it = hits.entrySet().iterator();
+    /**
+     * 淘汰最早加入且仍在跟踪的键，只看队首少量节点
+     */
+    private void evictOldest() {
+        for (int i = 0; i < MAX_EVICT_ATTEMPTS; i++) {
+            Tracked oldest = order.poll();
+            if (oldest == null || windows.remove(oldest.key, oldest.state)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * 清理两个窗口内没有请求的键，这些键的估算值已经为 0
+     */
+    void evictExpired() {
+        long window = (System.currentTimeMillis() / WINDOW_MS) & WINDOW_MASK;
+        Iterator<Map.Entry<String, AtomicLong>> it = windows.entrySet().iterator();
         while (it.hasNext()) {
-            Deque<Long> deque = it.next().getValue();
-            while (!deque.isEmpty() && deque.peekFirst() < cutoff) deque.removeFirst();
-            if (deque.isEmpty()) it.remove();
+            long stateWindow = it.next().getValue().get() >>> (2 * COUNT_BITS);
+            if (((window - stateWindow) & WINDOW_MASK) >= 2) {
+                it.remove();
+            }
+        }
+        order.removeIf(tracked -> windows.get(tracked.key) != tracked.state);
+    }
+
+    public int getTrackedKeys() {
+        return windows.size();
+    }
+
+    private static final class Tracked {
+        private final String key;
+        private final AtomicLong state;
+
+        private Tracked(String key, AtomicLong state) {
+            this.key = key;
+            this.state = state;
         }
     }
 }
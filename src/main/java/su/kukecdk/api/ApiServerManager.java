@@ -6,6 +6,7 @@ import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonWriter;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpServer;
 import org.bukkit.Bukkit;
@@ -13,13 +14,24 @@ import org.bukkit.entity.Player;
 import org.bukkit.plugin.java.JavaPlugin;
 import su.kukecdk.manager.CDKManager;
 import su.kukecdk.manager.ConfigManager;
+import su.kukecdk.manager.FailedAttemptsManager;
 import su.kukecdk.manager.LogManager;
 import su.kukecdk.model.CDK;
+import su.kukecdk.model.CommandTemplate;
+import su.kukecdk.model.RedemptionRecord;
+import su.kukecdk.storage.CDKQuery;
+import su.kukecdk.storage.RedemptionPage;
+import su.kukecdk.storage.RedemptionQuery;
+import su.kukecdk.util.AtomicFileWriter;
 import su.kukecdk.util.FoliaSupport;
+import su.kukecdk.util.MainThreadBatcher;
+import su.kukecdk.util.PlaceholderSupport;
 
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.URLDecoder;
@@ -27,6 +39,7 @@ import java.nio.charset.StandardCharsets;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Base64;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
@@ -35,26 +48,32 @@ import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+import java.util.zip.GZIPOutputStream;
 
 public class ApiServerManager {
     private final JavaPlugin plugin;
     private final ConfigManager configManager;
     private final CDKManager cdkManager;
     private final LogManager logManager;
+    private final FailedAttemptsManager failedAttemptsManager;
     private final ReloadCallback reloadCallback;
     private final Gson gson = new GsonBuilder().disableHtmlEscaping().create();
-    private final ApiRateLimiter rateLimiter = new ApiRateLimiter();
+    private volatile ApiRateLimiter rateLimiter;
+    private volatile MainThreadBatcher mainThread;
     private HttpServer server;
     private ExecutorService executorService;
     private ApiConfig apiConfig;
     private ApiAuthManager authManager;
     private volatile boolean active;
 
-    public ApiServerManager(JavaPlugin plugin, ConfigManager configManager, CDKManager cdkManager, LogManager logManager, ReloadCallback reloadCallback) {
+    public ApiServerManager(JavaPlugin plugin, ConfigManager configManager, CDKManager cdkManager, LogManager logManager, FailedAttemptsManager failedAttemptsManager, ReloadCallback reloadCallback) {
         this.plugin = plugin;
         this.configManager = configManager;
         this.cdkManager = cdkManager;
         this.logManager = logManager;
+        this.failedAttemptsManager = failedAttemptsManager;
         this.reloadCallback = reloadCallback;
     }
 
@@ -62,7 +81,7 @@ public class ApiServerManager {
         apiConfig = ApiConfig.from(configManager.getConfig());
         if (!apiConfig.isEnabled()) return;
         try {
-            authManager = new ApiAuthManager(apiConfig);
+            authManager = new ApiAuthManager(plugin, apiConfig);
             if (hasUnsafeDefaultToken()) {
                 plugin.getLogger().severe("KukeCDK API refused to start because a default token is configured. Change api.auth.tokens first.");
                 return;
@@ -75,6 +94,10 @@ public class ApiServerManager {
                 return thread;
             });
             server.setExecutor(executorService);
+            rateLimiter = new ApiRateLimiter(apiConfig.getRateLimitMaxKeys());
+            rateLimiter.start();
+            mainThread = new MainThreadBatcher(plugin, apiConfig.getMainThreadTimeoutMillis());
+            authManager.start();
             server.start();
             active = true;
             plugin.getLogger().info("KukeCDK API server started at http://" + apiConfig.getHost() + ":" + apiConfig.getPort() + apiConfig.getBasePath());
@@ -97,6 +120,17 @@ public class ApiServerManager {
             plugin.getLogger().info("KukeCDK API server stopped.");
         }
         active = false;
+        if (rateLimiter != null) {
+            rateLimiter.stop();
+            rateLimiter = null;
+        }
+        if (authManager != null) {
+            authManager.close();
+        }
+        if (mainThread != null) {
+            mainThread.close();
+            mainThread = null;
+        }
         if (executorService != null) {
             executorService.shutdownNow();
             executorService = null;
@@ -131,6 +165,7 @@ public class ApiServerManager {
         String path = exchange.getRequestURI().getPath();
         String method = exchange.getRequestMethod().toUpperCase();
         String remote = exchange.getRemoteAddress() == null ? "unknown" : exchange.getRemoteAddress().getAddress().getHostAddress();
+        boolean aborted = false;
         try {
             addCorsHeaders(exchange);
             if ("OPTIONS".equals(method)) {
@@ -142,7 +177,8 @@ public class ApiServerManager {
                 audit(false, remote, method, path, 403, requestId, start, "ip forbidden");
                 return;
             }
-            if (apiConfig.isRateLimitEnabled() && !rateLimiter.allow(remote, apiConfig.getRequestsPerMinute())) {
+            ApiRateLimiter limiter = rateLimiter;
+            if (apiConfig.isRateLimitEnabled() && limiter != null && !limiter.allow("ip:" + remote, apiConfig.getRequestsPerMinute())) {
                 sendJson(exchange, 429, ApiResponse.error("RATE_LIMITED", "Too many requests", requestId), requestId);
                 audit(false, remote, method, path, 429, requestId, start, "rate limited");
                 return;
@@ -170,9 +206,26 @@ public class ApiServerManager {
                 audit(false, remote, method, path, auth.getStatus(), requestId, start, auth.getMessage());
                 return;
             }
+            if (apiConfig.isRateLimitEnabled() && limiter != null && auth.getToken() != null) {
+                int tokenLimit = auth.getToken().getRequestsPerMinute() >= 0 ? auth.getToken().getRequestsPerMinute() : apiConfig.getTokenRequestsPerMinute();
+                if (!limiter.allow("token:" + auth.getTokenName(), tokenLimit)) {
+                    sendJson(exchange, 429, ApiResponse.error("RATE_LIMITED", "Too many requests for this token", requestId), requestId);
+                    audit(false, remote, method, path, 429, requestId, start, "token rate limited");
+                    return;
+                }
+            }
             Object data = dispatch(exchange, route);
-            sendJson(exchange, route.status, ApiResponse.success(data, requestId), requestId);
+            if (data instanceof StreamingBody) {
+                sendStreaming(exchange, route.status, (StreamingBody) data, requestId);
+            } else {
+                sendJson(exchange, route.status, ApiResponse.success(data, requestId), requestId);
+            }
             audit(true, remote, method, path, route.status, requestId, start, auth.getTokenName());
+        } catch (StreamAborted e) {
+            aborted = true;
+            audit(false, remote, method, path, 500, requestId, start, e.getMessage());
+            // 抛给 HttpServer 直接断开连接；正常关闭会写出结束块，截断的 JSON 会被客户端当作完整响应
+            throw e;
         } catch (BadRequest e) {
             sendJson(exchange, e.status, ApiResponse.error(e.code, e.getMessage(), requestId), requestId);
             audit(false, remote, method, path, e.status, requestId, start, e.getMessage());
@@ -181,7 +234,9 @@ public class ApiServerManager {
             sendJson(exchange, 500, ApiResponse.error("INTERNAL_ERROR", "Internal server error", requestId), requestId);
             audit(false, remote, method, path, 500, requestId, start, e.getMessage());
         } finally {
-            exchange.close();
+            if (!aborted) {
+                exchange.close();
+            }
         }
     }
 
@@ -200,8 +255,12 @@ public class ApiServerManager {
             case "addById": return addById(route.value, readJson(exchange));
             case "verify": return verify(route.value, readJson(exchange));
             case "redeem": return redeem(route.value, readJson(exchange));
-            case "logs": return logs(query(exchange));
-            case "playerLogs": return playerLogs(route.value);
+            case "batchVerify": return batchVerify(readJson(exchange));
+            case "batchRedeem": return batchRedeem(readJson(exchange));
+            case "logs": return redemptions(query(exchange), null, null);
+            case "playerLogs": return redemptions(query(exchange), route.value, null);
+            case "redemptions": return redemptions(query(exchange), null, null);
+            case "cdkRedemptions": return redemptions(query(exchange), null, route.value);
             case "reload": return reload();
             default: throw new BadRequest(404, "NOT_FOUND", "Endpoint not found");
         }
@@ -224,56 +283,78 @@ public class ApiServerManager {
     }
 
     private Map<String, Object> stats() {
-        Map<String, Map<String, CDK>> all = cdkManager.getAllCDKs();
-        int total = 0, expired = 0, single = 0, multiple = 0;
-        for (Map<String, CDK> group : all.values()) {
-            for (CDK cdk : group.values()) {
-                total++;
-                if (cdk.isExpired()) expired++;
-                if (cdk.isSingleUse()) single++; else multiple++;
-            }
-        }
+        int total = cdkManager.countCDKs();
+        int single = cdkManager.countSingleUseCDKs();
         Map<String, Object> data = new LinkedHashMap<>();
         data.put("totalCdks", total);
-        data.put("totalGroups", all.size());
-        data.put("expiredCdks", expired);
+        data.put("totalGroups", cdkManager.getGroupIds().size());
+        data.put("expiredCdks", cdkManager.countExpiredCDKs());
         data.put("singleUseCdks", single);
-        data.put("multipleUseCdks", multiple);
+        data.put("multipleUseCdks", Math.max(0, total - single));
+        data.put("compactCdks", cdkManager.countCompactCDKs());
+        data.put("compactBytes", cdkManager.estimateCompactBytes());
+        data.put("groupCounts", cdkManager.getGroupCounts());
         data.put("storageMode", cdkManager.getStorageMode());
+        MainThreadBatcher batcher = mainThread;
+        if (batcher != null) data.put("mainThread", batcher.getStats());
+        data.put("failedAttempts", failedAttemptsManager.getStats());
+        data.put("lookupCache", cdkManager.getLookupCacheStats());
+        data.put("nameFilter", cdkManager.getNameFilterStats());
+        data.put("fileWrites", AtomicFileWriter.getStats());
         return data;
     }
 
-    private Map<String, Object> listCdks(Map<String, String> query) {
+    private Map<String, Object> listCdks(Map<String, String> query) throws BadRequest {
         String id = query.get("id");
-        int page = parseInt(query.get("page"), 1);
-        int pageSize = Math.min(200, parseInt(query.get("pageSize"), 50));
+        int pageSize = Math.max(1, Math.min(200, parseInt(query.containsKey("limit") ? query.get("limit") : query.get("pageSize"), 50)));
         boolean includeRedeemed = Boolean.parseBoolean(query.getOrDefault("includeRedeemedPlayers", "false"));
-        List<Object> allItems = new ArrayList<>();
-        Map<String, Map<String, CDK>> all = cdkManager.getAllCDKs();
-        for (Map.Entry<String, Map<String, CDK>> group : all.entrySet()) {
-            if (id != null && !id.equals(group.getKey())) continue;
-            for (CDK cdk : group.getValue().values()) allItems.add(cdkData(cdk, includeRedeemed));
-        }
-        int from = Math.max(0, (page - 1) * pageSize);
-        int to = Math.min(allItems.size(), from + pageSize);
+        String prefix = query.get("prefix");
+        Boolean expired = parseBooleanOrNull(query.get("expired"));
+        Boolean singleUse = parseBooleanOrNull(query.get("singleUse"));
+        String cursor = decodeCursor(query.get("cursor"));
+
+        // 兼容旧的 page 参数：按游标逐页跳过，仍然只保留当前页
+        int page = query.containsKey("page") && cursor == null ? Math.max(1, parseInt(query.get("page"), 1)) : 1;
+        CDKManager.CDKPage result = cdkManager.listCDKs(new CDKQuery(cursor, pageSize, id, prefix, expired, singleUse));
+        int current = 1;
+        while (current < page && result.hasMore()) {
+            result = cdkManager.listCDKs(new CDKQuery(result.getNextCursor(), pageSize, id, prefix, expired, singleUse));
+            current++;
+        }
+        // 请求的页码超出范围时返回空页
+        boolean pageExists = current == page;
+        boolean hasMore = pageExists && result.hasMore();
+
+        List<Object> items = new ArrayList<>();
+        if (pageExists) {
+            for (CDK cdk : result.getItems()) items.add(cdkData(cdk, includeRedeemed));
+        }
         Map<String, Object> data = new LinkedHashMap<>();
-        data.put("page", page);
+        if (query.containsKey("page")) data.put("page", page);
         data.put("pageSize", pageSize);
-        data.put("total", allItems.size());
-        data.put("items", from >= allItems.size() ? new ArrayList<>() : allItems.subList(from, to));
+        // 只有在不需要扫描时才返回总数
+        if (prefix == null && expired == null && singleUse == null) {
+            data.put("total", id == null ? cdkManager.countCDKs() : cdkManager.countCDKs(id));
+        }
+        data.put("items", items);
+        data.put("hasMore", hasMore);
+        data.put("nextCursor", hasMore ? encodeCursor(result.getNextCursor()) : null);
         return data;
     }
 
     private Object cdksById(String id) throws BadRequest {
         Map<String, CDK> group = cdkManager.findCDKGroupById(id);
         if (group == null) throw new BadRequest(404, "CDK_ID_NOT_FOUND", "CDK id not found");
-        List<Object> items = new ArrayList<>();
-        for (CDK cdk : group.values()) items.add(cdkData(cdk, true));
-        Map<String, Object> data = new LinkedHashMap<>();
-        data.put("id", id);
-        data.put("total", items.size());
-        data.put("items", items);
-        return data;
+        // 快照中的组不可变，可直接边遍历边写出
+        return (StreamingBody) out -> {
+            out.beginObject();
+            out.name("id").value(id);
+            out.name("total").value(group.size());
+            out.name("items").beginArray();
+            for (CDK cdk : group.values()) writeValue(out, cdkData(cdk, true));
+            out.endArray();
+            out.endObject();
+        };
     }
 
     private Map<String, Object> createCdk(JsonObject body) throws BadRequest {
@@ -284,13 +365,10 @@ public class ApiServerManager {
         Date expiration = dateOrNull(string(body, "expiration", null));
         String permission = string(body, "requiredPermission", null);
         String group = string(body, "requiredGroup", null);
+        long startNanos = System.nanoTime();
         List<String> names = new ArrayList<>();
         if ("single".equalsIgnoreCase(type)) {
-            for (int i = 0; i < quantity; i++) {
-                String name = cdkManager.generateUniqueRandomCDKName();
-                cdkManager.createCDK(id, name, 1, true, commands, expiration, permission, group);
-                names.add(name);
-            }
+            names.addAll(cdkManager.createSingleUseBatch(id, quantity, new CDK(id, null, 1, true, commands, expiration, permission, group)));
         } else {
             String name = requiredString(body, "name");
             try {
@@ -300,10 +378,7 @@ public class ApiServerManager {
             }
             names.add(name);
         }
-        Map<String, Object> data = new LinkedHashMap<>();
-        data.put("created", names.size());
-        data.put("cdks", names);
-        return data;
+        return createdData(names, startNanos);
     }
 
     private Object updateCdk(String name, JsonObject body) throws BadRequest {
@@ -342,22 +417,28 @@ public class ApiServerManager {
         if (group == null || group.isEmpty()) throw new BadRequest(404, "CDK_ID_NOT_FOUND", "CDK id not found");
         CDK template = group.values().iterator().next();
         int quantity = Math.max(1, intValue(body, "quantity", 1));
-        List<String> names = new ArrayList<>();
-        for (int i = 0; i < quantity; i++) {
-            String name = cdkManager.generateUniqueRandomCDKName();
-            cdkManager.createCDK(id, name, 1, true, template.getCommands(), template.getExpirationDate(), template.getRequiredPermission(), template.getRequiredGroup());
-            names.add(name);
-        }
+        long startNanos = System.nanoTime();
+        List<String> names = cdkManager.createSingleUseBatch(id, quantity, template);
+        return createdData(names, startNanos);
+    }
+
+    private Map<String, Object> createdData(List<String> names, long startNanos) {
+        long elapsedNanos = Math.max(1L, System.nanoTime() - startNanos);
         Map<String, Object> data = new LinkedHashMap<>();
         data.put("created", names.size());
         data.put("cdks", names);
+        data.put("elapsedMs", elapsedNanos / 1000000L);
+        data.put("codesPerSecond", Math.round(names.size() * 1000000000d / elapsedNanos));
         return data;
     }
 
     private Object verify(String name, JsonObject body) throws BadRequest {
         CDK cdk = requiredCdk(name);
         String playerName = requiredString(body, "player");
-        PlayerCheck playerCheck = checkPlayer(playerName, cdk);
+        return verifyData(name, cdk, playerName, checkPlayer(playerName, cdk));
+    }
+
+    private Map<String, Object> verifyData(String name, CDK cdk, String playerName, PlayerCheck playerCheck) {
         Map<String, Object> data = new LinkedHashMap<>();
         data.put("valid", true);
         data.put("reason", "OK");
@@ -382,36 +463,195 @@ public class ApiServerManager {
         if (cdk.isExpired()) throw new BadRequest(422, "CDK_EXPIRED", "CDK is expired");
         if (cdk.hasPlayerRedeemed(playerCheck.playerName)) throw new BadRequest(409, "ALREADY_REDEEMED", "Player already redeemed this CDK");
         if (!playerCheck.conditionMet) throw new BadRequest(403, "CONDITION_NOT_MET", "Player does not meet CDK use conditions");
-        CDKManager.RedemptionResult result = cdkManager.redeemForApi(name, playerCheck.playerName, playerCheck.conditionMet);
+        CDKManager.RedemptionResult result = cdkManager.redeem(name, playerCheck.playerName, playerCheck.conditionMet);
         if (!result.isSuccess()) {
-            int status = "ALREADY_REDEEMED".equals(result.getCode()) ? 409 : ("CONDITION_NOT_MET".equals(result.getCode()) ? 403 : 422);
+            int status = "ALREADY_REDEEMED".equals(result.getCode()) ? 409
+                    : ("CONDITION_NOT_MET".equals(result.getCode()) ? 403 : ("STORAGE_ERROR".equals(result.getCode()) ? 503 : 422));
             throw new BadRequest(status, result.getCode(), result.getMessage());
         }
-        for (String command : result.getCommands().split("\\|")) {
-            runCommandForPlayer(playerCheck.playerName, command);
-        }
-        logManager.logCDKUsage(playerCheck.playerName, result.getCdk());
+        // 兑换已保存，先写兑换记录再执行奖励命令
+        logManager.logCDKUsage(playerCheck.playerName, playerCheck.playerUuid, result.getCdk(), RedemptionRecord.Source.API);
+        List<RewardCommands> commands = new ArrayList<>(1);
+        commands.add(new RewardCommands(playerCheck.playerName, result.getCommandTemplate()));
         Map<String, Object> data = new LinkedHashMap<>();
         data.put("redeemed", true);
         data.put("cdk", name);
         data.put("player", playerCheck.playerName);
         data.put("remainingQuantity", result.getRemainingQuantity());
+        data.put("commandsExecuted", runCommands(commands));
         return data;
     }
 
-    private Object logs(Map<String, String> query) {
-        String player = query.get("player");
-        if (player != null) return playerLogs(player);
-        return logManager.getAllPlayerLogs();
+    /**
+     * 批量验证：所有条目的玩家状态在一次主线程调度中查询
+     */
+    private Object batchVerify(JsonObject body) throws BadRequest {
+        List<BatchItem> items = batchItems(body);
+        List<PlayerCheck> checks = checkPlayers(items);
+        List<Object> results = new ArrayList<>(items.size());
+        int valid = 0;
+        for (int i = 0; i < items.size(); i++) {
+            BatchItem item = items.get(i);
+            Map<String, Object> data;
+            if (item.cdk == null) {
+                data = new LinkedHashMap<>();
+                setInvalid(data, "CDK_NOT_FOUND");
+                data.put("cdk", item.cdkName);
+            } else {
+                data = verifyData(item.cdkName, item.cdk, item.playerName, checks.get(i));
+            }
+            data.put("player", item.playerName);
+            if (Boolean.TRUE.equals(data.get("valid"))) valid++;
+            results.add(data);
+        }
+        Map<String, Object> data = new LinkedHashMap<>();
+        data.put("total", items.size());
+        data.put("valid", valid);
+        data.put("invalid", items.size() - valid);
+        data.put("results", results);
+        return data;
     }
 
-    private Object playerLogs(String player) {
+    /**
+     * 批量兑换：一次主线程调度查询玩家状态，一次写入存储，再一次主线程调度执行所有奖励命令
+     */
+    private Object batchRedeem(JsonObject body) throws BadRequest {
+        List<BatchItem> items = batchItems(body);
+        List<PlayerCheck> checks = checkPlayers(items);
+        List<Map<String, Object>> results = new ArrayList<>(items.size());
+        List<CDKManager.RedemptionRequest> requests = new ArrayList<>();
+        List<Integer> positions = new ArrayList<>();
+        for (int i = 0; i < items.size(); i++) {
+            BatchItem item = items.get(i);
+            PlayerCheck check = checks.get(i);
+            Map<String, Object> data = new LinkedHashMap<>();
+            data.put("cdk", item.cdkName);
+            data.put("player", check.playerName);
+            results.add(data);
+            if (item.cdk == null) {
+                setFailed(data, "CDK_NOT_FOUND", "CDK not found");
+            } else if (!check.online) {
+                setFailed(data, "PLAYER_OFFLINE", "Player must be online to redeem CDK");
+            } else {
+                requests.add(new CDKManager.RedemptionRequest(item.cdkName, check.playerName, check.conditionMet));
+                positions.add(i);
+            }
+        }
+        List<CDKManager.RedemptionResult> redeemed = requests.isEmpty() ? new ArrayList<>() : cdkManager.redeemBatch(requests);
+        List<RewardCommands> commands = new ArrayList<>();
+        List<Map<String, Object>> succeeded = new ArrayList<>();
+        for (int j = 0; j < redeemed.size(); j++) {
+            CDKManager.RedemptionResult result = redeemed.get(j);
+            int i = positions.get(j);
+            Map<String, Object> data = results.get(i);
+            if (!result.isSuccess()) {
+                setFailed(data, result.getCode(), result.getMessage());
+                continue;
+            }
+            PlayerCheck check = checks.get(i);
+            commands.add(new RewardCommands(check.playerName, result.getCommandTemplate()));
+            logManager.logCDKUsage(check.playerName, check.playerUuid, result.getCdk(), RedemptionRecord.Source.API);
+            data.put("redeemed", true);
+            data.put("remainingQuantity", result.getRemainingQuantity());
+            succeeded.add(data);
+        }
+        boolean executed = runCommands(commands);
+        for (Map<String, Object> data : succeeded) data.put("commandsExecuted", executed);
         Map<String, Object> data = new LinkedHashMap<>();
-        data.put("player", player);
-        data.put("used", logManager.getPlayerUsedCDKs(player));
+        data.put("total", items.size());
+        data.put("redeemed", succeeded.size());
+        data.put("failed", items.size() - succeeded.size());
+        data.put("results", results);
+        return data;
+    }
+
+    private void setFailed(Map<String, Object> data, String code, String message) {
+        data.put("redeemed", false);
+        data.put("code", code);
+        data.put("message", message);
+    }
+
+    private List<BatchItem> batchItems(JsonObject body) throws BadRequest {
+        JsonElement element = body.get("items");
+        if (element == null || !element.isJsonArray() || element.getAsJsonArray().size() == 0) {
+            throw new BadRequest(400, "MISSING_FIELD", "Missing field: items");
+        }
+        JsonArray array = element.getAsJsonArray();
+        if (array.size() > apiConfig.getMaxBatchItems()) {
+            throw new BadRequest(413, "BATCH_TOO_LARGE", "Batch exceeds " + apiConfig.getMaxBatchItems() + " items");
+        }
+        List<BatchItem> items = new ArrayList<>(array.size());
+        for (JsonElement entry : array) {
+            if (!entry.isJsonObject()) throw new BadRequest(400, "INVALID_FIELD", "Batch items must be objects");
+            JsonObject object = entry.getAsJsonObject();
+            String name = requiredString(object, "cdk");
+            items.add(new BatchItem(name, requiredString(object, "player"), cdkManager.findCDKByName(name)));
+        }
+        return items;
+    }
+
+    private static class BatchItem {
+        private final String cdkName;
+        private final String playerName;
+        private final CDK cdk;
+
+        private BatchItem(String cdkName, String playerName, CDK cdk) {
+            this.cdkName = cdkName;
+            this.playerName = playerName;
+            this.cdk = cdk;
+        }
+    }
+
+    /**
+     * 分页查询兑换记录；路径中的玩家或CDK名称优先于同名查询参数
+     */
+    private Map<String, Object> redemptions(Map<String, String> query, String player, String cdkName) throws BadRequest {
+        if (player == null) player = query.get("player");
+        if (cdkName == null) cdkName = query.get("cdk");
+        int limit = Math.max(1, Math.min(200, parseInt(query.get("limit"), 50)));
+        long after = decodeSeqCursor(query.get("cursor"));
+        Long from = timeOrNull(query.get("from"));
+        Long to = timeOrNull(query.get("to"));
+        Long since = durationOrNull(query.get("since"));
+        if (since != null) {
+            long lower = System.currentTimeMillis() - since;
+            from = from == null ? lower : Math.max(from, lower);
+        }
+        RedemptionPage page = logManager.queryRedemptions(new RedemptionQuery(after, limit, player, cdkName, query.get("id"), from, to));
+        List<Object> items = new ArrayList<>();
+        for (RedemptionRecord record : page.getItems()) items.add(redemptionData(record));
+        Map<String, Object> data = new LinkedHashMap<>();
+        if (player != null) data.put("player", player);
+        if (cdkName != null) data.put("cdk", cdkName);
+        data.put("items", items);
+        data.put("limit", limit);
+        data.put("hasMore", page.hasMore());
+        data.put("nextCursor", page.hasMore() ? encodeCursor(Long.toString(page.getNextCursor())) : null);
         return data;
     }
 
+    private Map<String, Object> redemptionData(RedemptionRecord record) {
+        Map<String, Object> data = new LinkedHashMap<>();
+        data.put("seq", record.getSeq());
+        data.put("player", record.getPlayerName());
+        data.put("uuid", record.getPlayerUuid() != null ? record.getPlayerUuid().toString() : null);
+        data.put("cdk", record.getCdkName());
+        data.put("id", record.getCdkId());
+        data.put("redeemedAt", record.getTimestamp());
+        data.put("source", record.getSource().name());
+        return data;
+    }
+
+    private long decodeSeqCursor(String cursor) throws BadRequest {
+        String decoded = decodeCursor(cursor);
+        if (decoded == null) return 0L;
+        try {
+            return Long.parseLong(decoded);
+        } catch (NumberFormatException e) {
+            throw new BadRequest(400, "INVALID_CURSOR", "Invalid cursor");
+        }
+    }
+
     private Object reload() {
         new Thread(() -> {
             try {
@@ -458,53 +698,102 @@ public class ApiServerManager {
 
     private PlayerCheck checkPlayer(String playerName, CDK cdk) throws BadRequest {
         try {
-            return FoliaSupport.callGlobal(plugin, () -> {
-                Player player = Bukkit.getPlayerExact(playerName);
-                if (player == null) return new PlayerCheck(false, playerName, !cdk.hasUseConditions());
-                return new PlayerCheck(true, player.getName(), canPlayerUse(player, cdk));
-            }, 5000L);
+            return queryMainThread(() -> playerCheck(playerName, cdk));
         } catch (Exception e) {
             throw new BadRequest(500, "SERVER_THREAD_TIMEOUT", "Failed to query player state on server thread");
         }
     }
 
-    private void runCommandForPlayer(String playerName, String command) throws BadRequest {
+    private List<PlayerCheck> checkPlayers(List<BatchItem> items) throws BadRequest {
         try {
-            FoliaSupport.callGlobal(plugin, () -> {
-                Player player = Bukkit.getPlayerExact(playerName);
-                String parsed = command == null ? "" : command.replace("%player%", playerName);
-                if (player != null) parsed = applyPlaceholders(player, command);
-                Bukkit.dispatchCommand(Bukkit.getConsoleSender(), parsed);
-                return null;
-            }, 5000L);
+            return queryMainThread(() -> {
+                List<PlayerCheck> checks = new ArrayList<>(items.size());
+                for (BatchItem item : items) checks.add(playerCheck(item.playerName, item.cdk));
+                return checks;
+            });
         } catch (Exception e) {
-            throw new BadRequest(500, "COMMAND_EXECUTION_FAILED", "Failed to execute reward command");
+            throw new BadRequest(500, "SERVER_THREAD_TIMEOUT", "Failed to query player state on server thread");
         }
     }
 
-    private String applyPlaceholders(Player player, String text) {
-        if (text == null) return "";
-        String withBuiltin = text.replace("%player%", player.getName());
+    /**
+     * 只能在主线程调用；CDK为 null 时视为没有使用条件
+     */
+    private PlayerCheck playerCheck(String playerName, CDK cdk) {
+        Player player = Bukkit.getPlayerExact(playerName);
+        if (player == null) return new PlayerCheck(false, playerName, cdk == null || !cdk.hasUseConditions(), null);
+        return new PlayerCheck(true, player.getName(), cdk == null || canPlayerUse(player, cdk), player.getUniqueId());
+    }
+
+    /**
+     * 在一次主线程调度中执行一批奖励命令；兑换已经保存，等待超时后命令仍会在主线程执行，不会被取消
+     *
+     * @return 命令在超时前执行完成时返回true
+     */
+    private boolean runCommands(List<RewardCommands> commands) {
+        if (commands.isEmpty()) return true;
         try {
-            if (Bukkit.getPluginManager().getPlugin("PlaceholderAPI") != null) {
-                Class<?> cls = Class.forName("me.clip.placeholderapi.PlaceholderAPI");
-                java.lang.reflect.Method method = cls.getMethod("setPlaceholders", Player.class, String.class);
-                Object value = method.invoke(null, player, withBuiltin);
-                return value instanceof String ? (String) value : withBuiltin;
-            }
-        } catch (Throwable ignored) {}
-        return withBuiltin;
+            onMainThread(() -> {
+                for (RewardCommands reward : commands) dispatchForPlayer(reward.playerName, reward.template);
+                return null;
+            });
+            return true;
+        } catch (TimeoutException e) {
+            plugin.getLogger().warning("KukeCDK API timed out waiting for reward commands, they will run when the server thread catches up");
+        } catch (Exception e) {
+            plugin.getLogger().warning("KukeCDK API failed to execute reward commands: " + e.getMessage());
+        }
+        return false;
+    }
+
+    /**
+     * 交给主线程合并器执行；同一 tick 内其它请求的任务会在同一次调度中执行
+     */
+    private <T> T onMainThread(Supplier<T> task) throws Exception {
+        MainThreadBatcher batcher = mainThread;
+        if (batcher == null) throw new IllegalStateException("API server is stopped");
+        return batcher.call(task);
+    }
+
+    /**
+     * 在主线程执行只读查询，超时后不再执行
+     */
+    private <T> T queryMainThread(Supplier<T> task) throws Exception {
+        MainThreadBatcher batcher = mainThread;
+        if (batcher == null) throw new IllegalStateException("API server is stopped");
+        return batcher.query(task);
+    }
+
+    private void dispatchForPlayer(String playerName, CommandTemplate template) {
+        Player player = Bukkit.getPlayerExact(playerName);
+        for (CommandTemplate.Command command : template.getCommands()) {
+            String parsed = command.render(player != null ? player.getName() : playerName);
+            if (player != null && command.needsPlaceholders()) parsed = PlaceholderSupport.apply(player, parsed);
+            Bukkit.dispatchCommand(Bukkit.getConsoleSender(), parsed);
+        }
+    }
+
+    private static class RewardCommands {
+        private final String playerName;
+        private final CommandTemplate template;
+
+        private RewardCommands(String playerName, CommandTemplate template) {
+            this.playerName = playerName;
+            this.template = template;
+        }
     }
 
     private static class PlayerCheck {
         private final boolean online;
         private final String playerName;
         private final boolean conditionMet;
+        private final UUID playerUuid;
 
-        private PlayerCheck(boolean online, String playerName, boolean conditionMet) {
+        private PlayerCheck(boolean online, String playerName, boolean conditionMet, UUID playerUuid) {
             this.online = online;
             this.playerName = playerName;
             this.conditionMet = conditionMet;
+            this.playerUuid = playerUuid;
         }
     }
 
@@ -562,6 +851,41 @@ public class ApiServerManager {
         }
     }
 
+    /**
+     * 解析时间参数：毫秒时间戳或 yyyy-MM-dd HH:mm
+     */
+    private Long timeOrNull(String value) throws BadRequest {
+        if (value == null || value.trim().isEmpty()) return null;
+        String trimmed = value.trim();
+        if (trimmed.matches("\\d+")) {
+            try {
+                return Long.parseLong(trimmed);
+            } catch (NumberFormatException ignored) {}
+        }
+        return dateOrNull(trimmed).getTime();
+    }
+
+    /**
+     * 解析时长参数，例如 90s、30m、1h、7d；不带单位时按秒计算
+     */
+    private Long durationOrNull(String value) throws BadRequest {
+        if (value == null || value.trim().isEmpty()) return null;
+        String trimmed = value.trim().toLowerCase();
+        long unit = 1000L;
+        char last = trimmed.charAt(trimmed.length() - 1);
+        if (last == 's' || last == 'm' || last == 'h' || last == 'd') {
+            unit = last == 's' ? 1000L : last == 'm' ? 60000L : last == 'h' ? 3600000L : 86400000L;
+            trimmed = trimmed.substring(0, trimmed.length() - 1);
+        }
+        try {
+            long amount = Long.parseLong(trimmed);
+            if (amount < 0) throw new NumberFormatException();
+            return amount * unit;
+        } catch (NumberFormatException e) {
+            throw new BadRequest(400, "INVALID_DURATION", "Duration must look like 90s, 30m, 1h or 7d");
+        }
+    }
+
     private boolean has(JsonObject body, String key) {
         return body != null && body.has(key) && !body.get(key).isJsonNull();
     }
@@ -584,6 +908,23 @@ public class ApiServerManager {
         try { return value == null ? def : Integer.parseInt(value); } catch (Exception ignored) { return def; }
     }
 
+    private Boolean parseBooleanOrNull(String value) {
+        return value == null || value.isEmpty() ? null : Boolean.parseBoolean(value);
+    }
+
+    private String encodeCursor(String name) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(name.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private String decodeCursor(String cursor) throws BadRequest {
+        if (cursor == null || cursor.isEmpty()) return null;
+        try {
+            return new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            throw new BadRequest(400, "INVALID_CURSOR", "Invalid cursor");
+        }
+    }
+
     private Map<String, String> query(HttpExchange exchange) throws IOException {
         Map<String, String> result = new HashMap<>();
         String raw = exchange.getRequestURI().getRawQuery();
@@ -622,6 +963,44 @@ public class ApiServerManager {
         sendText(exchange, status, gson.toJson(body), "application/json; charset=utf-8");
     }
 
+    /**
+     * 以分块传输写出响应，客户端支持时使用 gzip 压缩；内存占用与数据量无关
+     */
+    private void sendStreaming(HttpExchange exchange, int status, StreamingBody body, String requestId) throws IOException {
+        String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+        boolean gzip = acceptEncoding != null && acceptEncoding.toLowerCase().contains("gzip");
+        exchange.getResponseHeaders().set("X-Request-Id", requestId);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.getResponseHeaders().set("Vary", "Accept-Encoding");
+        if (gzip) exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+        // 长度为 0 表示使用 chunked 传输编码
+        exchange.sendResponseHeaders(status, 0);
+        OutputStream os = new BufferedOutputStream(exchange.getResponseBody(), 8192);
+        if (gzip) os = new GZIPOutputStream(os, 8192);
+        JsonWriter out = new JsonWriter(new OutputStreamWriter(os, StandardCharsets.UTF_8));
+        try {
+            out.beginObject();
+            out.name("success").value(true);
+            out.name("data");
+            body.writeTo(out);
+            out.name("requestId").value(requestId);
+            out.endObject();
+            out.close();
+        } catch (IOException | RuntimeException e) {
+            // 响应头已发出，无法再改为错误响应，只能中断连接；不关闭输出流，否则会写出结束块
+            plugin.getLogger().warning("KukeCDK API stream " + requestId + " aborted: " + e.getMessage());
+            throw new StreamAborted(e);
+        }
+    }
+
+    private void writeValue(JsonWriter out, Object value) throws IOException {
+        if (value == null) {
+            out.nullValue();
+        } else {
+            gson.toJson(value, value.getClass(), out);
+        }
+    }
+
     private void sendText(HttpExchange exchange, int status, String text, String contentType) throws IOException {
         byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
         exchange.getResponseHeaders().set("Content-Type", contentType);
@@ -642,6 +1021,17 @@ public class ApiServerManager {
         void reloadFromApi();
     }
 
+    /**
+     * 流式响应在响应头发出后失败，连接需要直接断开
+     */
+    private static class StreamAborted extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private StreamAborted(Throwable cause) {
+            super("stream aborted: " + cause.getMessage(), cause);
+        }
+    }
+
     private static class BadRequest extends Exception {
         private final int status;
         private final String code;
@@ -681,8 +1071,12 @@ public class ApiServerManager {
             if (parts.length == 4 && "POST".equals(method) && "cdks".equals(parts[0]) && "by-id".equals(parts[1]) && "add".equals(parts[3])) return r("addById", "cdk:create", decode(parts[2]), 201);
             if (parts.length == 3 && "POST".equals(method) && "cdks".equals(parts[0]) && "verify".equals(parts[2])) return r("verify", "cdk:verify", decode(parts[1]));
             if (parts.length == 3 && "POST".equals(method) && "cdks".equals(parts[0]) && "redeem".equals(parts[2])) return r("redeem", "cdk:redeem", decode(parts[1]));
+            if ("POST".equals(method) && eq(parts, "cdks:batchVerify")) return r("batchVerify", "cdk:verify");
+            if ("POST".equals(method) && eq(parts, "cdks:batchRedeem")) return r("batchRedeem", "cdk:redeem");
             if ("GET".equals(method) && eq(parts, "logs")) return r("logs", "log:read");
             if (parts.length == 3 && "GET".equals(method) && "logs".equals(parts[0]) && "players".equals(parts[1])) return r("playerLogs", "log:read", decode(parts[2]));
+            if ("GET".equals(method) && eq(parts, "redemptions")) return r("redemptions", "log:read");
+            if (parts.length == 3 && "GET".equals(method) && "cdks".equals(parts[0]) && "redemptions".equals(parts[2])) return r("cdkRedemptions", "log:read", decode(parts[1]));
             if ("POST".equals(method) && eq(parts, "admin", "reload")) return r("reload", "admin:reload");
             return null;
         }
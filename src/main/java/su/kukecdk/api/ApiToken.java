@@ -9,11 +9,18 @@ public class ApiToken {
     private final String name;
     private final String token;
     private final Set<String> scopes;
+    // 每分钟请求上限，小于 0 时使用 api.rate_limit.token_requests_per_minute
+    private final int requestsPerMinute;
 
     public ApiToken(String name, String token, List<String> scopes) {
+        this(name, token, scopes, -1);
+    }
+
+    public ApiToken(String name, String token, List<String> scopes, int requestsPerMinute) {
         this.name = name == null || name.trim().isEmpty() ? "unnamed" : name.trim();
         this.token = token == null ? "" : token.trim();
         this.scopes = new HashSet<>(scopes == null ? Collections.emptyList() : scopes);
+        this.requestsPerMinute = requestsPerMinute;
     }
 
     public String getName() {
@@ -24,6 +31,10 @@ public class ApiToken {
         return token;
     }
 
+    public int getRequestsPerMinute() {
+        return requestsPerMinute;
+    }
+
     public boolean isValid() {
         return !token.isEmpty();
     }
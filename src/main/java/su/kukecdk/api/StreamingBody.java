@@ -0,0 +1,20 @@
+package su.kukecdk.api;
+
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+
+/**
+ * 以流的方式写出的响应数据，用于体积较大的返回值
+ * <p>
+ * 由 {@link ApiServerManager} 在写出响应时回调，数据逐条写入 JsonWriter，不在内存中拼接完整的 JSON。
+ */
+public interface StreamingBody {
+    /**
+     * 将 data 字段的值写入 out
+     *
+     * @param out JSON 输出
+     * @throws IOException 写出失败时抛出
+     */
+    void writeTo(JsonWriter out) throws IOException;
+}
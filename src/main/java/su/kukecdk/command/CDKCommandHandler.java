@@ -9,7 +9,10 @@ import su.kukecdk.manager.LanguageManager;
 import su.kukecdk.manager.LogManager;
 import su.kukecdk.manager.FailedAttemptsManager;
 import su.kukecdk.model.CDK;
+import su.kukecdk.model.CommandTemplate;
+import su.kukecdk.model.RedemptionRecord;
 import su.kukecdk.util.FoliaSupport;
+import su.kukecdk.util.PlaceholderSupport;
 // import com.tcoded.folialib.FoliaLib;  // 暂时注释，网络问题
 
 import java.io.File;
@@ -144,14 +147,8 @@ public class CDKCommandHandler {
 
         // 创建 CDK
         if (type.equals("single")) {
-            for (int i = 0; i < quantity; i++) {
-                String cdkName = cdkManager.generateUniqueRandomCDKName();
-                try {
-                    cdkManager.createCDK(id, cdkName, 1, true, commands, expirationDate, createOptions.requiredPermission, createOptions.requiredGroup);
-                } catch (IllegalArgumentException e) {
-                    i--; // 发生极其罕见的碰撞时重试
-                }
-            }
+            CDK template = new CDK(id, null, 1, true, commands, expirationDate, createOptions.requiredPermission, createOptions.requiredGroup);
+            cdkManager.createSingleUseBatch(id, quantity, template);
             sendMessageToSender(sender, languageManager.getMessage("prefix") + languageManager.getMessage("create_success_single", "%quantity%", String.valueOf(quantity), "%id%", id));
         } else if (type.equals("multiple")) {
             String cdkName = name.equalsIgnoreCase("random") ? cdkManager.generateUniqueRandomCDKName() : name;
@@ -210,20 +207,12 @@ public class CDKCommandHandler {
 
         if (cdk.isSingleUse()) {
             // 如果是一次性CDK，批量生成新的CDK
-            for (int i = 0; i < quantity; i++) {
-                String newCdkName = cdkManager.generateUniqueRandomCDKName();
-                try {
-                    cdkManager.createCDK(id, newCdkName, 1, true, cdk.getCommands(), cdk.getExpirationDate(), cdk.getRequiredPermission(), cdk.getRequiredGroup());
-                } catch (IllegalArgumentException e) {
-                    i--; // 发生极其罕见的碰撞时重试
-                }
-            }
+            cdkManager.createSingleUseBatch(id, quantity, cdk);
         } else {
             // 如果是多次使用的CDK，直接增加数量
-            cdk.increaseQuantity(quantity);
+            cdkManager.increaseQuantity(cdk.getName(), quantity);
         }
 
-        cdkManager.saveCDKs();
         sendMessageToSender(sender, languageManager.getMessage("prefix") + languageManager.getMessage("add_success", "%id%", id, "%quantity%", String.valueOf(quantity)));
 
         return true;
@@ -237,6 +226,18 @@ public class CDKCommandHandler {
      * @return 命令执行结果
      */
     public boolean handleUseCommand(CommandSender sender, String[] args) {
+        return handleUseCommand(sender, args, RedemptionRecord.Source.COMMAND);
+    }
+
+    /**
+     * 处理使用CDK命令
+     *
+     * @param sender 命令发送者
+     * @param args 命令参数
+     * @param source 兑换来源，记录到兑换日志中
+     * @return 命令执行结果
+     */
+    public boolean handleUseCommand(CommandSender sender, String[] args, RedemptionRecord.Source source) {
         // 检查发送者是否为玩家
         if (!(sender instanceof Player)) {
             sender.sendMessage(languageManager.getMessage("prefix") + languageManager.getMessage("use_player_only"));
@@ -299,31 +300,39 @@ public class CDKCommandHandler {
             return true;
         }
 
-        // 执行命令，支持PAPI占位符，并保留内置%player%占位符
-        String[] commands = usedCDK.getCommands().split("\\|");
-        for (String command : commands) {
-            String parsedCommand = applyPlaceholders(player, command);
-            // 确保在主线程（Folia中为Global Region）执行控制台命令
-            FoliaSupport.runGlobal(cdkManager.getPlugin(), () -> {
-                Bukkit.dispatchCommand(Bukkit.getConsoleSender(), parsedCommand);
-            });
-        }
-
-        // 更新 CDK 使用信息
-        usedCDK.decreaseQuantity();
-        if (usedCDK.isSingleUse() || usedCDK.getQuantity() <= 0) {
-            cdkManager.deleteByCDKName(usedCDK.getName());
+        // 扣减数量并记录兑换玩家（先占用再发放奖励，避免并发重复兑换）
+        CDKManager.RedemptionResult result = cdkManager.redeem(cdkName, player.getName(), true);
+        if (!result.isSuccess()) {
+            if ("CDK_EXPIRED".equals(result.getCode())) {
+                player.sendMessage(languageManager.getMessage("prefix") + languageManager.getMessage("cdk_expired", "%cdk%", cdkName));
+            } else if ("ALREADY_REDEEMED".equals(result.getCode())) {
+                player.sendMessage(languageManager.getMessage("prefix") + languageManager.getMessage("cdk_already_used"));
+            } else if ("STORAGE_ERROR".equals(result.getCode())) {
+                player.sendMessage(languageManager.getMessage("prefix") + languageManager.getMessage("cdk_storage_error"));
+            } else {
+                player.sendMessage(languageManager.getMessage("prefix") + languageManager.getMessage("cdk_not_found", "%cdk%", cdkName));
+            }
+            return true;
         }
 
-        // 添加已兑换玩家
-        usedCDK.addRedeemedPlayer(player.getName());
-        cdkManager.saveCDKs();
+        // 执行命令，支持PAPI占位符，并保留内置%player%占位符
+        List<String> parsedCommands = new ArrayList<>();
+        for (CommandTemplate.Command command : result.getCommandTemplate().getCommands()) {
+            String parsedCommand = command.render(player.getName());
+            parsedCommands.add(command.needsPlaceholders() ? PlaceholderSupport.apply(player, parsedCommand) : parsedCommand);
+        }
+        // 确保在主线程（Folia中为Global Region）执行控制台命令
+        FoliaSupport.runGlobal(cdkManager.getPlugin(), () -> {
+            for (String parsedCommand : parsedCommands) {
+                Bukkit.dispatchCommand(Bukkit.getConsoleSender(), parsedCommand);
+            }
+        });
 
         // 清除失败尝试记录
         failedAttemptsManager.clearFailedAttempts(playerUUID);
         
         // 记录使用日志
-        logManager.logCDKUsage(player.getName(), usedCDK);
+        logManager.logCDKUsage(player.getName(), playerUUID, usedCDK, source);
         player.sendMessage(languageManager.getMessage("prefix") + languageManager.getMessage("use_success", "%cdk%", cdkName));
 
         return true;
@@ -581,6 +590,46 @@ public class CDKCommandHandler {
         return true;
     }
 
+    /**
+     * 处理查询缓存命令：显示命中统计，带 clear 参数时清空不存在名称缓存
+     *
+     * @param sender 命令发送者
+     * @param args   命令参数
+     * @return 命令执行结果
+     */
+    @SuppressWarnings("unchecked")
+    public boolean handleCacheCommand(CommandSender sender, String[] args) {
+        String prefix = languageManager.getMessage("prefix");
+        if (args.length >= 2 && args[1].equalsIgnoreCase("clear")) {
+            String key = cdkManager.clearLookupCache() ? "cache_cleared" : "cache_disabled";
+            sendMessageToSender(sender, prefix + languageManager.getMessage(key));
+            return true;
+        }
+
+        Map<String, Object> stats = cdkManager.getLookupCacheStats();
+        Object negative = stats.get("negative");
+        if (!(negative instanceof Map)) {
+            sendMessageToSender(sender, prefix + languageManager.getMessage("cache_disabled"));
+            return true;
+        }
+        Map<String, Object> missing = (Map<String, Object>) negative;
+        sendMessageToSender(sender, languageManager.getMessage("cache_stats_header"));
+        sendMessageToSender(sender, languageManager.getMessage("cache_stats_lookups",
+                "%local%", String.valueOf(stats.get("localHits")),
+                "%database%", String.valueOf(stats.get("databaseLookups")),
+                "%found%", String.valueOf(stats.get("databaseFound"))));
+        sendMessageToSender(sender, languageManager.getMessage("cache_stats_negative",
+                "%hits%", String.valueOf(missing.get("hits")),
+                "%misses%", String.valueOf(missing.get("misses")),
+                "%evictions%", String.valueOf(missing.get("evictions")),
+                "%expirations%", String.valueOf(missing.get("expirations"))));
+        sendMessageToSender(sender, languageManager.getMessage("cache_stats_size",
+                "%size%", String.valueOf(missing.get("size")),
+                "%max%", String.valueOf(missing.get("maxSize")),
+                "%ttl%", String.valueOf(missing.get("ttlMs"))));
+        return true;
+    }
+
     /**
      * 显示帮助信息
      *
@@ -601,6 +650,7 @@ public class CDKCommandHandler {
         sendMessageToSender(sender, languageManager.getMessage("help_reload"));
         sendMessageToSender(sender, languageManager.getMessage("help_export"));
         sendMessageToSender(sender, languageManager.getMessage("help_migrate"));
+        sendMessageToSender(sender, languageManager.getMessage("help_cache"));
         sendMessageToSender(sender, languageManager.getMessage("help_footer"));
 
         return true;
@@ -693,29 +743,5 @@ public class CDKCommandHandler {
         sender.sendMessage(message);
     }
     
-    /**
-     * 应用占位符解析：先替换插件自带的%player%，再解析PAPI占位符
-     */
-    private String applyPlaceholders(Player player, String text) {
-        if (text == null) return "";
-        String withBuiltin = text.replace("%player%", player.getName());
-        // PlaceholderAPI 支持（可选）
-        try {
-            org.bukkit.plugin.Plugin papi = Bukkit.getPluginManager().getPlugin("PlaceholderAPI");
-            if (papi != null) {
-                try {
-                    // 延迟到运行时调用，避免编译期依赖
-                    Class<?> cls = Class.forName("me.clip.placeholderapi.PlaceholderAPI");
-                    java.lang.reflect.Method m = cls.getMethod("setPlaceholders", Player.class, String.class);
-                    Object out = m.invoke(null, player, withBuiltin);
-                    return out instanceof String ? (String) out : withBuiltin;
-                } catch (Throwable ignore) {
-                    return withBuiltin;
-                }
-            }
-        } catch (Throwable ignored) {}
-        return withBuiltin;
-    }
-    
 
 }
@@ -18,7 +18,9 @@ import org.bukkit.inventory.AnvilInventory;
 import org.bukkit.inventory.meta.ItemMeta;
 import org.bukkit.plugin.java.JavaPlugin;
 import org.bukkit.configuration.file.FileConfiguration;
+import su.kukecdk.model.RedemptionRecord;
 import su.kukecdk.util.FoliaSupport;
+import su.kukecdk.util.PlaceholderSupport;
 import su.kukecdk.command.CDKCommandHandler;
 
 import java.util.*;
@@ -481,7 +483,7 @@ public class AnvilGUIManager implements Listener {
     private void useCDK(Player player, String cdkName) {
         // 构造类似 /cdk use <code> 的调用路径
         String[] args = new String[] {"use", cdkName};
-        commandHandler.handleUseCommand(player, args);
+        commandHandler.handleUseCommand(player, args, RedemptionRecord.Source.GUI);
     }
 
     private void runWithoutAnvilExperienceCost(Player player, Runnable action) {
@@ -535,21 +537,8 @@ public class AnvilGUIManager implements Listener {
         if (withBuiltin.contains("%player%")) {
             withBuiltin = withBuiltin.replace("%player%", player != null ? player.getName() : "");
         }
-        try {
-            org.bukkit.plugin.Plugin papi = Bukkit.getPluginManager().getPlugin("PlaceholderAPI");
-            if (papi != null) {
-                try {
-                    Class<?> cls = Class.forName("me.clip.placeholderapi.PlaceholderAPI");
-                    java.lang.reflect.Method m = cls.getMethod("setPlaceholders", Player.class, String.class);
-                    // 仅当player非空时尝试PAPI解析；否则跳过避免NPE
-                    Object out = player != null ? m.invoke(null, player, withBuiltin) : withBuiltin;
-                    return out instanceof String ? (String) out : withBuiltin;
-                } catch (Throwable ignore) {
-                    return withBuiltin;
-                }
-            }
-        } catch (Throwable ignored) {}
-        return withBuiltin;
+        // 仅当player非空时尝试PAPI解析；否则跳过避免NPE
+        return PlaceholderSupport.apply(player, withBuiltin);
     }
 
     private String color(String s) {
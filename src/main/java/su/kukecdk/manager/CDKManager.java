@@ -1,27 +1,86 @@
 package su.kukecdk.manager;
 
 import org.bukkit.configuration.file.FileConfiguration;
-import org.bukkit.configuration.file.YamlConfiguration;
 import org.bukkit.plugin.java.JavaPlugin;
 import su.kukecdk.model.CDK;
+import su.kukecdk.model.CodeBatch;
+import su.kukecdk.model.CodeIndex;
+import su.kukecdk.model.CommandTemplate;
+import su.kukecdk.storage.CDKMutation;
+import su.kukecdk.storage.CDKQuery;
+import su.kukecdk.storage.CDKStorage;
+import su.kukecdk.storage.JournalCDKStorage;
+import su.kukecdk.storage.RedemptionLogStore;
+import su.kukecdk.storage.WriteBehindQueue;
+import su.kukecdk.storage.YamlCDKStorage;
+import su.kukecdk.util.BloomFilter;
+import su.kukecdk.util.ExpiringLruCache;
 
-import java.io.File;
-import java.io.IOException;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
 
 /**
  * CDK管理器类，负责CDK的加载、保存和管理
+ * <p>
+ * 并发约定：查询不加锁；兑换和单个CDK的修改只锁定该CDK对象；
+ * 创建、删除、重载等结构性操作在管理器实例上串行执行。
+ * <p>
+ * 名称可编码且属性与所在ID的模板一致的一次性CDK不单独建对象，而是存放在该ID的 {@link CodeBatch} 中，
+ * 查询时按需生成CDK对象；这些码的兑换和删除锁定所在的批次。
+ * <p>
+ * MySQL 多服共享模式下内存中的数据只是缓存：兑换由数据库按条件扣减后再更新缓存，
+ * 缓存中没有的名称会先到数据库查询，其它服务器的修改由后台线程定期拉取。
  */
 public class CDKManager {
     private final JavaPlugin plugin;
-    private FileConfiguration cdkConfig;
-    private File cdkFile;
-    private final Map<String, Map<String, CDK>> cdkMap = new HashMap<>();
-    private FileConfiguration config;
-    private DatabaseManager databaseManager;
-    private String storageMode;
+    private final Map<String, Map<String, CDK>> cdkMap = new ConcurrentHashMap<>();
+    // 全局名称索引：CDK名称 -> CDK，与 cdkMap 保持同步，用于 O(1) 查找
+    private final Map<String, CDK> nameIndex = new ConcurrentHashMap<>();
+    // 按名称排序的索引，用于游标分页
+    private final ConcurrentSkipListMap<String, CDK> sortedIndex = new ConcurrentSkipListMap<>();
+    // 按ID分页时组内独立对象不超过该数量才复制排序
+    private static final int GROUP_SORT_LIMIT = 4096;
+    // 一次性CDK的紧凑存储：ID -> 批次，不在 nameIndex 和 sortedIndex 中
+    private final Map<String, CodeBatch> batches = new ConcurrentHashMap<>();
+    // 所有批次中的码 -> 所在批次，按名称查找时一次探测即可定位
+    private final CodeIndex codeIndex = new CodeIndex();
+    private volatile FileConfiguration config;
+    private volatile CDKStorage storage;
+    // 后台批量写入队列，为 null 时变更同步写入存储
+    private volatile WriteBehindQueue writeQueue;
+    private volatile String storageMode;
+    // 多服共享模式下定期拉取其它服务器修改的线程，其它模式为 null
+    private ScheduledExecutorService syncExecutor;
+    // 共享模式下数据库中也不存在的名称，短时间内再次查询时不再访问数据库
+    private volatile ExpiringLruCache<String, Boolean> missingNames;
+    private final LongAdder localHits = new LongAdder();
+    private final LongAdder databaseLookups = new LongAdder();
+    private final LongAdder databaseFound = new LongAdder();
+    // 所有CDK名称的布隆过滤器，判断为不存在的名称无需逐个检查批次；未启用时为 null
+    private volatile BloomFilter nameFilter;
+    // 重新构建期间新加入的名称同时写入新过滤器
+    private volatile BloomFilter pendingFilter;
+    // 后台重建过滤器的线程；同一时刻只有一次重建，reload 时递增版本号使进行中的重建作废
+    private ExecutorService filterExecutor;
+    private final AtomicBoolean filterRebuildScheduled = new AtomicBoolean();
+    private final Object filterRebuildLock = new Object();
+    private final AtomicLong filterEpoch = new AtomicLong();
+    private final LongAdder filterRejected = new LongAdder();
+    private final LongAdder filterFalsePositives = new LongAdder();
+    // 只读快照：结构变化时递增版本并标记变化的组，读取时只重建变化的组
+    private final AtomicLong version = new AtomicLong();
+    private final Set<String> dirtyGroups = ConcurrentHashMap.newKeySet();
+    private final Object snapshotLock = new Object();
+    private volatile Snapshot snapshot = Snapshot.EMPTY;
 
     /**
      * 创建一个新的CDK管理器
@@ -33,13 +92,422 @@ public class CDKManager {
         this.plugin = plugin;
         this.config = config;
         this.storageMode = config.getString("storage_mode", "yaml");
-        
-        // 如果使用数据库模式，初始化数据库管理器
-        if ("sqlite".equalsIgnoreCase(storageMode) || "mysql".equalsIgnoreCase(storageMode)) {
-            this.databaseManager = new DatabaseManager(plugin, config, storageMode);
-        }
-        
+        this.storage = createStorage(storageMode);
+        this.writeQueue = createWriteQueue(storage);
         loadCDKs();
+        startSync();
+    }
+
+    private static boolean isDatabaseMode(String mode) {
+        return "sqlite".equalsIgnoreCase(mode) || "mysql".equalsIgnoreCase(mode);
+    }
+
+    /**
+     * 根据存储模式创建存储后端
+     */
+    private CDKStorage createStorage(String mode) {
+        if (isDatabaseMode(mode)) {
+            return new DatabaseManager(plugin, config, mode);
+        }
+        if ("journal".equalsIgnoreCase(mode)) {
+            return new JournalCDKStorage(plugin, config);
+        }
+        return new YamlCDKStorage(plugin);
+    }
+
+    /**
+     * 根据 persistence 配置创建后台写入队列
+     */
+    private WriteBehindQueue createWriteQueue(CDKStorage storage) {
+        if (!config.getBoolean("persistence.async", true)) {
+            return null;
+        }
+        if (sharedDatabase(storage) != null) {
+            // 共享模式下变更同步写入，其它服务器下次拉取即可看到
+            return null;
+        }
+        return new WriteBehindQueue(plugin, storage,
+                config.getInt("persistence.queue_capacity", 100000),
+                config.getInt("persistence.batch_size", 500),
+                config.getLong("persistence.flush_interval_ms", 1000L));
+    }
+
+    /**
+     * 获取多服共享模式下的数据库存储
+     *
+     * @return 共享数据库，未开启共享模式时返回 null
+     */
+    private static DatabaseManager sharedDatabase(CDKStorage storage) {
+        return storage instanceof DatabaseManager && ((DatabaseManager) storage).isNetworked()
+                ? (DatabaseManager) storage : null;
+    }
+
+    /**
+     * 共享模式下启动定期拉取其它服务器修改的后台线程
+     */
+    private void startSync() {
+        if (sharedDatabase(storage) == null) {
+            return;
+        }
+        missingNames = new ExpiringLruCache<>(config.getInt("mysql.network.negative_cache.max_size", 100000),
+                config.getLong("mysql.network.negative_cache.ttl_ms", 5000L));
+        long interval = Math.max(250L, config.getLong("mysql.network.poll_interval_ms", 2000L));
+        syncExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "KukeCDK-Sync");
+            thread.setDaemon(true);
+            return thread;
+        });
+        syncExecutor.scheduleWithFixedDelay(() -> {
+            try {
+                syncRemoteChanges();
+            } catch (RuntimeException e) {
+                plugin.getLogger().warning("同步其它服务器的CDK修改时出错: " + e.getMessage());
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    private void stopSync() {
+        if (syncExecutor != null) {
+            syncExecutor.shutdownNow();
+            syncExecutor = null;
+        }
+        missingNames = null;
+    }
+
+    /**
+     * 拉取并应用其它服务器的修改
+     */
+    private void syncRemoteChanges() {
+        DatabaseManager database = sharedDatabase(storage);
+        if (database == null) {
+            return;
+        }
+        ExpiringLruCache<String, Boolean> missing = missingNames;
+        if (missing != null) {
+            missing.purgeExpired();
+        }
+        DatabaseManager.RemoteChanges changes = database.pollChanges();
+        if (changes != null && (!changes.getDeleted().isEmpty() || !changes.getUpdated().isEmpty())) {
+            applyRemoteChanges(database, changes);
+        }
+    }
+
+    /**
+     * 把从共享数据库拉取到的修改应用到本地缓存
+     */
+    private synchronized void applyRemoteChanges(DatabaseManager database, DatabaseManager.RemoteChanges changes) {
+        for (String name : changes.getDeleted()) {
+            CDK cdk = nameIndex.get(name);
+            if (cdk != null) {
+                synchronized (cdk) {
+                    removeCDKWithoutSave(cdk);
+                }
+                continue;
+            }
+            CodeBatch batch = batchOf(name);
+            if (batch != null) {
+                synchronized (batch) {
+                    if (batch.remove(name)) {
+                        markDirty(batch.getTemplate().getId());
+                    }
+                }
+            }
+        }
+        // 新出现的一次性CDK按ID收集后一次性并入批次
+        Map<String, CodeBatch> newBatches = new HashMap<>();
+        Map<String, List<String>> compact = new HashMap<>();
+        for (CDK row : changes.getUpdated()) {
+            String name = row.getName();
+            CDK cdk = nameIndex.get(name);
+            if (cdk == null) {
+                CodeBatch batch = batchOf(name);
+                if (batch != null) {
+                    if (isCompactable(row) && batch.matchesTemplate(row)) {
+                        continue;
+                    }
+                    cdk = promote(name);
+                }
+            }
+            if (cdk == null) {
+                String id = row.getId();
+                CodeBatch batch = null;
+                if (isCompactable(row)) {
+                    batch = newBatches.get(id);
+                    if (batch == null) {
+                        batch = batches.get(id);
+                        // 没有批次或批次已用完时按这一行新建模板
+                        if (batch == null || batch.size() == 0 && !batch.matchesTemplate(row)) {
+                            batch = new CodeBatch(id, row, codeIndex);
+                        }
+                    }
+                    if (!batch.matchesTemplate(row)) {
+                        batch = null;
+                    }
+                }
+                if (batch != null) {
+                    newBatches.put(id, batch);
+                    compact.computeIfAbsent(id, k -> new ArrayList<>()).add(name);
+                } else {
+                    cdkMap.computeIfAbsent(id, k -> new ConcurrentHashMap<>()).put(name, row);
+                    index(row);
+                    markDirty(id);
+                }
+                continue;
+            }
+            synchronized (cdk) {
+                if (row.getVersion() <= cdk.getVersion() || nameIndex.get(name) != cdk) {
+                    continue;
+                }
+                if (!cdk.getId().equals(row.getId()) || cdk.isSingleUse() != row.isSingleUse()) {
+                    // ID或类型变化时直接换成数据库中的对象
+                    removeCDKWithoutSave(cdk);
+                    cdkMap.computeIfAbsent(row.getId(), k -> new ConcurrentHashMap<>()).put(name, row);
+                    index(row);
+                    markDirty(row.getId());
+                    continue;
+                }
+                cdk.setQuantity(row.getQuantity());
+                cdk.setCommands(row.getCommands());
+                cdk.setExpirationDate(row.getExpirationDate());
+                cdk.setRequiredPermission(row.getRequiredPermission());
+                cdk.setRequiredGroup(row.getRequiredGroup());
+                cdk.setVersion(row.getVersion());
+                // 其它服务器可能新增了兑换玩家，下次访问时重新读取
+                cdk.setRedeemerLoader(database::loadRedeemedPlayers);
+            }
+        }
+        for (Map.Entry<String, List<String>> entry : compact.entrySet()) {
+            CodeBatch batch = newBatches.get(entry.getKey());
+            reserveNameFilter(entry.getValue().size());
+            rememberNames(entry.getValue());
+            synchronized (batch) {
+                batch.addAll(entry.getValue());
+            }
+            forgetMissing(entry.getValue());
+            batches.put(entry.getKey(), batch);
+            rememberNames(entry.getValue());
+            cdkMap.computeIfAbsent(entry.getKey(), k -> new ConcurrentHashMap<>());
+            markDirty(entry.getKey());
+        }
+    }
+
+    /**
+     * 共享模式下本地缓存中没有的CDK到数据库中查询，找到后加入缓存
+     *
+     * @param cdkName CDK名称
+     * @return 缓存中的CDK，不存在或未开启共享模式时返回 null
+     */
+    private CDK fetchShared(String cdkName) {
+        DatabaseManager database = sharedDatabase(storage);
+        if (database == null) {
+            return null;
+        }
+        ExpiringLruCache<String, Boolean> missing = missingNames;
+        if (missing != null && missing.get(cdkName) != null) {
+            return null;
+        }
+        databaseLookups.increment();
+        CDK loaded = database.loadCDK(cdkName);
+        if (loaded == null) {
+            if (missing != null) {
+                missing.put(cdkName, Boolean.TRUE);
+            }
+            return null;
+        }
+        databaseFound.increment();
+        synchronized (this) {
+            CDK existing = nameIndex.get(cdkName);
+            if (existing != null) {
+                return existing;
+            }
+            if (batchOf(cdkName) != null) {
+                return null;
+            }
+            cdkMap.computeIfAbsent(loaded.getId(), k -> new ConcurrentHashMap<>()).put(cdkName, loaded);
+            index(loaded);
+            markDirty(loaded.getId());
+            return loaded;
+        }
+    }
+
+    /**
+     * 新增的CDK从不存在名称缓存中移除
+     */
+    private void forgetMissing(Collection<String> names) {
+        ExpiringLruCache<String, Boolean> missing = missingNames;
+        if (missing != null && missing.size() > 0) {
+            for (String name : names) {
+                missing.invalidate(name);
+            }
+        }
+    }
+
+    /**
+     * 获取名称查询缓存的统计
+     *
+     * @return 本地命中、数据库查询次数和不存在名称缓存的统计
+     */
+    public Map<String, Object> getLookupCacheStats() {
+        ExpiringLruCache<String, Boolean> missing = missingNames;
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("enabled", missing != null);
+        stats.put("localHits", localHits.sum());
+        stats.put("databaseLookups", databaseLookups.sum());
+        stats.put("databaseFound", databaseFound.sum());
+        if (missing != null) {
+            stats.put("negative", missing.getStats());
+        }
+        return stats;
+    }
+
+    /**
+     * 清空不存在名称缓存
+     *
+     * @return 未开启共享模式（没有缓存）时返回false
+     */
+    public boolean clearLookupCache() {
+        ExpiringLruCache<String, Boolean> missing = missingNames;
+        if (missing == null) {
+            return false;
+        }
+        missing.clear();
+        return true;
+    }
+
+    private boolean mightExist(String name) {
+        BloomFilter filter = nameFilter;
+        return filter == null || filter.mightContain(name);
+    }
+
+    private void rememberName(String name) {
+        BloomFilter filter = nameFilter;
+        if (filter != null) {
+            filter.put(name);
+        }
+        BloomFilter pending = pendingFilter;
+        if (pending != null) {
+            pending.put(name);
+        }
+    }
+
+    private void rememberNames(Collection<String> names) {
+        for (String name : names) {
+            rememberName(name);
+        }
+    }
+
+    /**
+     * 即将加入一批名称前检查过滤器容量，超出预期数量时在后台按新的总数重建；重建完成前误判率暂时偏高
+     *
+     * @param extra 即将加入的名称数量
+     */
+    private void reserveNameFilter(int extra) {
+        BloomFilter filter = nameFilter;
+        if (filter != null && filter.getInserted() + extra > filter.getCapacity()) {
+            scheduleNameFilterRebuild();
+        }
+    }
+
+    private synchronized void scheduleNameFilterRebuild() {
+        if (!filterRebuildScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        if (filterExecutor == null) {
+            filterExecutor = Executors.newSingleThreadExecutor(r -> {
+                Thread thread = new Thread(r, "KukeCDK-Filter");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        filterExecutor.execute(() -> {
+            filterRebuildScheduled.set(false);
+            try {
+                rebuildNameFilter();
+            } catch (RuntimeException e) {
+                plugin.getLogger().warning("重建CDK名称过滤器时出错: " + e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * 按当前所有CDK名称重建过滤器，容量取名称数量的两倍
+     * <p>
+     * 不持有管理器锁：重建期间旧过滤器继续使用，新加入的名称通过 pendingFilter 同时写入新过滤器
+     * （加入方在名称可见前后各写一次），遍历结束后再替换。期间发生 reload 时放弃结果。
+     */
+    private void rebuildNameFilter() {
+        synchronized (filterRebuildLock) {
+            long epoch = filterEpoch.get();
+            FileConfiguration current = config;
+            if (!current.getBoolean("name_filter.enabled", true)) {
+                nameFilter = null;
+                return;
+            }
+            long expected = Math.max(1024L, countCDKs() * 2L);
+            BloomFilter fresh = new BloomFilter(expected, current.getDouble("name_filter.false_positive_rate", 0.01d));
+            pendingFilter = fresh;
+            try {
+                for (String name : nameIndex.keySet()) {
+                    fresh.put(name);
+                }
+                for (CodeBatch batch : batches.values()) {
+                    for (Iterator<String> it = batch.iterator(null, true); it.hasNext(); ) {
+                        fresh.put(it.next());
+                    }
+                }
+                if (epoch == filterEpoch.get()) {
+                    nameFilter = fresh;
+                }
+            } finally {
+                pendingFilter = null;
+            }
+        }
+    }
+
+    /**
+     * 定期维护名称过滤器：过滤器不支持删除，已删除或兑换完的名称较多、或加入数量超出容量时在后台重建
+     */
+    public void maintainNameFilter() {
+        BloomFilter filter = nameFilter;
+        if (filter == null) {
+            return;
+        }
+        long live = countCDKs();
+        long stale = filter.getInserted() - live;
+        if (filter.getInserted() > filter.getCapacity() || stale > Math.max(1024L, live / 2)) {
+            scheduleNameFilterRebuild();
+        }
+    }
+
+    /**
+     * 获取名称过滤器的统计
+     *
+     * @return 拒绝次数、实际误判次数和率，以及过滤器本身的容量与估算误判率
+     */
+    public Map<String, Object> getNameFilterStats() {
+        BloomFilter filter = nameFilter;
+        long rejected = filterRejected.sum();
+        long falsePositives = filterFalsePositives.sum();
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("enabled", filter != null);
+        stats.put("rejected", rejected);
+        stats.put("falsePositives", falsePositives);
+        // 不存在的名称中未被过滤器拦下的比例
+        stats.put("observedFpp", rejected + falsePositives == 0 ? 0d : (double) falsePositives / (rejected + falsePositives));
+        if (filter != null) {
+            stats.putAll(filter.getStats());
+        }
+        return stats;
+    }
+
+    /**
+     * 同步写入所有排队中的变更
+     */
+    public void flush() {
+        WriteBehindQueue queue = writeQueue;
+        if (queue != null) {
+            queue.flush();
+        }
     }
 
     /**
@@ -54,282 +522,1073 @@ public class CDKManager {
      * 加载CDK配置
      */
     public synchronized void loadCDKs() {
-        if ("sqlite".equalsIgnoreCase(storageMode) || "mysql".equalsIgnoreCase(storageMode)) {
-            // 从数据库加载
-            cdkMap.clear();
-            cdkMap.putAll(databaseManager.loadCDKs());
+        flush();
+        replaceAll(storage.loadCDKs());
+    }
+
+    /**
+     * 用加载结果替换内存数据并重建名称索引
+     */
+    private void replaceAll(Map<String, Map<String, CDK>> loaded) {
+        // 进行中的后台重建基于旧数据，作废；加载期间不过滤
+        filterEpoch.incrementAndGet();
+        nameFilter = null;
+        cdkMap.clear();
+        batches.clear();
+        codeIndex.clear();
+        clearLookupCache();
+        for (Map.Entry<String, Map<String, CDK>> entry : loaded.entrySet()) {
+            String id = entry.getKey();
+            Map<String, CDK> group = new ConcurrentHashMap<>();
+            CodeBatch batch = null;
+            List<String> compact = new ArrayList<>();
+            for (CDK cdk : entry.getValue().values()) {
+                if (isCompactable(cdk) && (batch == null || batch.matchesTemplate(cdk))) {
+                    if (batch == null) {
+                        batch = new CodeBatch(id, cdk, codeIndex);
+                    }
+                    compact.add(cdk.getName());
+                } else {
+                    group.put(cdk.getName(), cdk);
+                }
+            }
+            if (batch != null) {
+                batch.addAll(compact);
+                batches.put(id, batch);
+            }
+            cdkMap.put(id, group);
+        }
+        rebuildNameIndex();
+        filterEpoch.incrementAndGet();
+        rebuildNameFilter();
+        synchronized (snapshotLock) {
+            snapshot = Snapshot.EMPTY;
+            dirtyGroups.addAll(cdkMap.keySet());
+            version.incrementAndGet();
+        }
+    }
+
+    /**
+     * 标记某个组发生了结构变化（增删CDK），下次读取快照时重建该组
+     */
+    private void markDirty(String id) {
+        dirtyGroups.add(id);
+        version.incrementAndGet();
+    }
+
+    /**
+     * 根据 cdkMap 重建全局名称索引
+     */
+    private void rebuildNameIndex() {
+        nameIndex.clear();
+        sortedIndex.clear();
+        for (Map<String, CDK> cdkGroup : cdkMap.values()) {
+            nameIndex.putAll(cdkGroup);
+            sortedIndex.putAll(cdkGroup);
+        }
+    }
+
+    /**
+     * 检查CDK能否放入紧凑批次：名称可编码、尚未兑换的一次性CDK
+     */
+    private static boolean isCompactable(CDK cdk) {
+        return cdk.isSingleUse() && cdk.getQuantity() == 1 && CodeBatch.isEncodable(cdk.getName())
+                && (!cdk.isRedeemedPlayersLoaded() || cdk.getRedeemedPlayers().isEmpty());
+    }
+
+    /**
+     * 查找包含该名称的批次
+     */
+    private CodeBatch batchOf(String name) {
+        return mightExist(name) ? scanBatches(name) : null;
+    }
+
+    /**
+     * 在共用索引中查找码所在的批次，不经过名称过滤器
+     */
+    private CodeBatch scanBatches(String name) {
+        long code = CodeBatch.encode(name);
+        if (code < 0) {
+            return null;
+        }
+        CodeBatch batch = codeIndex.get(code);
+        return batch != null && batch.contains(code) ? batch : null;
+    }
+
+    private boolean exists(String name) {
+        return nameIndex.containsKey(name) || batchOf(name) != null;
+    }
+
+    /**
+     * 把批次中的码转为独立的CDK对象，用于单独修改某个码的属性
+     */
+    private CDK promote(String name) {
+        CodeBatch batch = batchOf(name);
+        if (batch == null) {
+            return null;
+        }
+        synchronized (batch) {
+            if (!batch.contains(name)) {
+                return nameIndex.get(name);
+            }
+            CDK cdk = batch.view(name);
+            String id = cdk.getId();
+            // 先加入索引再从批次移除，查找期间始终能找到
+            cdkMap.computeIfAbsent(id, k -> new ConcurrentHashMap<>()).put(name, cdk);
+            index(cdk);
+            batch.remove(name);
+            markDirty(id);
+            return cdk;
+        }
+    }
+
+    /**
+     * 复制出包含批次中所有码的完整数据，用于全量写入存储
+     */
+    private Map<String, Map<String, CDK>> materialize() {
+        Map<String, Map<String, CDK>> all = new HashMap<>();
+        for (Map.Entry<String, Map<String, CDK>> entry : cdkMap.entrySet()) {
+            Map<String, CDK> group = new HashMap<>(entry.getValue());
+            CodeBatch batch = batches.get(entry.getKey());
+            if (batch != null) {
+                for (Iterator<String> it = batch.iterator(null, true); it.hasNext(); ) {
+                    String name = it.next();
+                    group.put(name, batch.view(name));
+                }
+            }
+            all.put(entry.getKey(), group);
+        }
+        return all;
+    }
+
+    private void index(CDK cdk) {
+        // 先加入过滤器再对外可见；加入索引后再写一次，不会与同时进行的后台重建错过
+        rememberName(cdk.getName());
+        nameIndex.put(cdk.getName(), cdk);
+        sortedIndex.put(cdk.getName(), cdk);
+        rememberName(cdk.getName());
+        ExpiringLruCache<String, Boolean> missing = missingNames;
+        if (missing != null) {
+            missing.invalidate(cdk.getName());
+        }
+    }
+
+    /**
+     * 从索引中移除指定的CDK对象（名称已指向其他对象时不做处理）
+     */
+    private boolean unindex(CDK cdk) {
+        if (!nameIndex.remove(cdk.getName(), cdk)) {
+            return false;
+        }
+        sortedIndex.remove(cdk.getName(), cdk);
+        return true;
+    }
+
+    /**
+     * 全量重写当前存储（仅用于迁移和导出，日常变更通过增量写入完成）
+     */
+    public synchronized void saveCDKs() {
+        flush();
+        storage.saveCDKs(materialize());
+    }
+
+    /**
+     * 将变更增量写入存储：启用后台队列时仅入队，否则同步写入
+     */
+    private void persist(CDKMutation... mutations) {
+        persist(Arrays.asList(mutations));
+    }
+
+    private void persist(List<CDKMutation> mutations) {
+        WriteBehindQueue queue = writeQueue;
+        if (queue != null) {
+            queue.submit(mutations);
         } else {
-            // 从YAML文件加载
-            cdkFile = new File(plugin.getDataFolder(), "cdk.yml");
-            if (!cdkFile.exists()) {
-                try {
-                    cdkFile.createNewFile();
-                } catch (IOException e) {
-                    e.printStackTrace();
+            storage.apply(mutations);
+        }
+    }
+
+    /**
+     * 移除过期的CDK
+     */
+    public synchronized void removeExpiredCDKs() {
+        List<CDKMutation> mutations = new ArrayList<>();
+        for (CDK cdk : nameIndex.values()) {
+            if (cdk.isExpired()) {
+                // 与正在进行的兑换串行，保证删除记录排在其变更之后
+                synchronized (cdk) {
+                    if (removeCDKWithoutSave(cdk)) {
+                        mutations.add(CDKMutation.delete(cdk));
+                    }
+                }
+            }
+        }
+        boolean purge = false;
+        for (CodeBatch batch : batches.values()) {
+            if (batch.size() > 0 && batch.getTemplate().isExpired()) {
+                synchronized (batch) {
+                    String id = batch.getTemplate().getId();
+                    for (String name : batch.names()) {
+                        mutations.add(CDKMutation.delete(id, name));
+                    }
+                    batch.clear();
+                    markDirty(id);
+                }
+                purge = true;
+            }
+        }
+        if (purge) {
+            codeIndex.purge();
+        }
+        persist(mutations);
+    }
+
+    /**
+     * 生成唯一的随机CDK名称
+     *
+     * @return 随机生成的CDK名称
+     */
+    public String generateUniqueRandomCDKName() {
+        return generateUniqueRandomCDKName(Collections.<String>emptySet());
+    }
+
+    /**
+     * 生成一个既不在全局索引中、也不在 reserved 中的随机CDK名称
+     */
+    private String generateUniqueRandomCDKName(Set<String> reserved) {
+        String cdkName;
+        int maxAttempts = 1000;
+        int attempts = 0;
+        do {
+            cdkName = generateRandomCDKName();
+            attempts++;
+            if (attempts > maxAttempts) {
+                // 如果碰撞次数过多，自动增加名称长度以降低碰撞率
+                int currentLength = config.getInt("default_cdk_name_length", 8);
+                config.set("default_cdk_name_length", currentLength + 1);
+                plugin.getLogger().warning("CDK名称碰撞次数过多，自动将默认长度增加至 " + (currentLength + 1));
+                attempts = 0;
+            }
+        } while (exists(cdkName) || reserved.contains(cdkName)); // 全局范围避免冲突
+        return cdkName;
+    }
+
+    /**
+     * 生成随机CDK名称
+     *
+     * @return 随机生成的CDK名称
+     */
+    public String generateRandomCDKName() {
+        int length = config.getInt("default_cdk_name_length", 8);
+        String characters = config.getString("default_cdk_characters", "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789");
+        StringBuilder result = new StringBuilder(length);
+        java.util.concurrent.ThreadLocalRandom random = java.util.concurrent.ThreadLocalRandom.current();
+        for (int i = 0; i < length; i++) {
+            result.append(characters.charAt(random.nextInt(characters.length())));
+        }
+        return result.toString();
+    }
+
+    /**
+     * 创建一个新的CDK
+     *
+     * @param id CDK的ID
+     * @param name CDK的名称
+     * @param quantity CDK的数量
+     * @param isSingleUse 是否为一次性使用
+     * @param commands 兑换时执行的命令
+     * @param expirationDate 过期时间
+     * @return 创建的CDK对象
+     * @throws IllegalArgumentException 如果CDK名称已存在
+     */
+    public synchronized CDK createCDK(String id, String name, int quantity, boolean isSingleUse, String commands, Date expirationDate) {
+        return createCDK(id, name, quantity, isSingleUse, commands, expirationDate, null, null);
+    }
+
+    /**
+     * 创建一个新的CDK
+     *
+     * @param id CDK的ID
+     * @param name CDK的名称
+     * @param quantity CDK的数量
+     * @param isSingleUse 是否为一次性使用
+     * @param commands 兑换时执行的命令
+     * @param expirationDate 过期时间
+     * @param requiredPermission 兑换所需权限
+     * @param requiredGroup 兑换所需权限组
+     * @return 创建的CDK对象
+     * @throws IllegalArgumentException 如果CDK名称已存在
+     */
+    public synchronized CDK createCDK(String id, String name, int quantity, boolean isSingleUse, String commands, Date expirationDate, String requiredPermission, String requiredGroup) {
+        if (findCDKByName(name) != null) {
+            throw new IllegalArgumentException("CDK名称已存在: " + name);
+        }
+        CDK cdk = new CDK(id, name, quantity, isSingleUse, commands, expirationDate, requiredPermission, requiredGroup);
+        reserveNameFilter(1);
+        // 先提交写入再对外可见，保证该CDK后续的兑换变更排在 INSERT 之后
+        persist(CDKMutation.insert(cdk));
+        cdkMap.computeIfAbsent(id, k -> new ConcurrentHashMap<>()).put(name, cdk);
+        index(cdk);
+        markDirty(id);
+        return cdk;
+    }
+
+    /**
+     * 批量创建一次性CDK：一次性生成全部名称并写入内存，只做一次持久化
+     *
+     * @param id CDK的ID
+     * @param count 生成数量
+     * @param template 模板CDK，提供命令、过期时间和使用条件
+     * @return 新生成的CDK名称列表
+     */
+    public synchronized List<String> createSingleUseBatch(String id, int count, CDK template) {
+        Set<String> names = new LinkedHashSet<>(Math.max(16, count * 4 / 3 + 1));
+        for (int i = 0; i < count; i++) {
+            names.add(generateUniqueRandomCDKName(names));
+        }
+
+        CodeBatch batch = batches.get(id);
+        CDK shared = new CDK(id, null, 1, true, template.getCommands(), template.getExpirationDate(), template.getRequiredPermission(), template.getRequiredGroup());
+        if (batch == null) {
+            batch = new CodeBatch(id, shared, codeIndex);
+        } else if (!batch.matchesTemplate(shared)) {
+            // 已用完的批次换成新模板，否则属性不同的码单独保存
+            batch = batch.size() == 0 ? new CodeBatch(id, shared, codeIndex) : null;
+        }
+
+        List<CDK> created = new ArrayList<>();
+        List<String> compact = new ArrayList<>(names.size());
+        List<CDKMutation> mutations = new ArrayList<>(names.size());
+        for (String name : names) {
+            CDK cdk = new CDK(id, name, 1, true, shared.getCommands(), shared.getExpirationDate(), shared.getRequiredPermission(), shared.getRequiredGroup());
+            mutations.add(CDKMutation.insert(cdk));
+            if (batch != null && CodeBatch.isEncodable(name)) {
+                compact.add(name);
+            } else {
+                created.add(cdk);
+            }
+        }
+        persist(mutations);
+        reserveNameFilter(names.size());
+        Map<String, CDK> group = cdkMap.computeIfAbsent(id, k -> new ConcurrentHashMap<>());
+        if (!compact.isEmpty()) {
+            rememberNames(compact);
+            synchronized (batch) {
+                batch.addAll(compact);
+            }
+            forgetMissing(compact);
+            batches.put(id, batch);
+            // 可见后再写一次，见 index
+            rememberNames(compact);
+        }
+        for (CDK cdk : created) {
+            group.put(cdk.getName(), cdk);
+            index(cdk);
+        }
+        markDirty(id);
+        return new ArrayList<>(names);
+    }
+
+    /**
+     * 删除指定ID的所有CDK
+     *
+     * @param id CDK的ID
+     * @return 如果删除成功则返回true，否则返回false
+     */
+    public synchronized boolean deleteById(String id) {
+        Map<String, CDK> removed = cdkMap.remove(id);
+        CodeBatch batch = batches.remove(id);
+        if (batch != null) {
+            // 与该批次正在进行的兑换串行
+            synchronized (batch) {
+                batch.clear();
+            }
+            codeIndex.purge();
+        }
+        if (removed != null || batch != null) {
+            if (removed != null) {
+                for (CDK cdk : removed.values()) {
+                    synchronized (cdk) {
+                        unindex(cdk);
+                    }
+                }
+            }
+            markDirty(id);
+            persist(CDKMutation.deleteGroup(id));
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * 删除指定名称的CDK
+     *
+     * @param cdkName CDK的名称
+     * @return 如果删除成功则返回true，否则返回false
+     */
+    public synchronized boolean deleteByCDKName(String cdkName) {
+        CDK cdk = nameIndex.get(cdkName);
+        if (cdk == null) {
+            CodeBatch batch = batchOf(cdkName);
+            if (batch == null) {
+                return false;
+            }
+            synchronized (batch) {
+                if (!batch.remove(cdkName)) {
+                    return false;
+                }
+                String id = batch.getTemplate().getId();
+                markDirty(id);
+                persist(CDKMutation.delete(id, cdkName));
+            }
+            return true;
+        }
+        synchronized (cdk) {
+            if (!removeCDKWithoutSave(cdk)) {
+                return false;
+            }
+            persist(CDKMutation.delete(cdk));
+        }
+        return true;
+    }
+
+    /**
+     * 根据CDK名称查找CDK
+     *
+     * @param cdkName CDK的名称
+     * @return 找到的CDK对象，如果未找到则返回null
+     */
+    public CDK findCDKByName(String cdkName) {
+        CDK cdk = nameIndex.get(cdkName);
+        if (cdk != null) {
+            localHits.increment();
+            return cdk;
+        }
+        BloomFilter filter = nameFilter;
+        if (filter != null && !filter.mightContain(cdkName)) {
+            // 共享模式下其它服务器新建的CDK由同步线程拉取后加入过滤器，不为随机猜测的名称查询数据库
+            filterRejected.increment();
+            return null;
+        }
+        // 批次中的码每次返回新的CDK对象
+        CodeBatch batch = scanBatches(cdkName);
+        if (batch != null) {
+            localHits.increment();
+            return batch.view(cdkName);
+        }
+        if (filter != null) {
+            filterFalsePositives.increment();
+        }
+        return fetchShared(cdkName);
+    }
+
+    /**
+     * 根据ID查找CDK组
+     *
+     * @param id CDK的ID
+     * @return 找到的CDK组（只读快照），如果未找到则返回null
+     */
+    public Map<String, CDK> findCDKGroupById(String id) {
+        return getAllCDKs().get(id);
+    }
+
+    /**
+     * 获取所有CDK的只读快照
+     * <p>
+     * 快照不可修改，调用方可长期持有而无需复制；只有自上次快照以来增删过CDK的组会被重新复制。
+     * 快照中的CDK对象与内存中的为同一实例，数量等属性读取的是最新值；
+     * 批次中的一次性CDK以实时视图提供，遍历时按需生成CDK对象。
+     *
+     * @return 所有CDK的映射
+     */
+    public Map<String, Map<String, CDK>> getAllCDKs() {
+        Snapshot current = snapshot;
+        if (current.version == version.get()) {
+            return current.groups;
+        }
+        synchronized (snapshotLock) {
+            current = snapshot;
+            long target = version.get();
+            if (current.version == target) {
+                return current.groups;
+            }
+            // 先读版本再取脏组：之后发生的变化会使版本再次落后，下次读取时补上
+            Map<String, Map<String, CDK>> groups = new HashMap<>(current.groups);
+            for (Iterator<String> iterator = dirtyGroups.iterator(); iterator.hasNext(); ) {
+                String id = iterator.next();
+                iterator.remove();
+                Map<String, CDK> live = cdkMap.get(id);
+                CodeBatch batch = batches.get(id);
+                if (live == null) {
+                    groups.remove(id);
+                } else if (batch == null) {
+                    groups.put(id, Collections.unmodifiableMap(new HashMap<>(live)));
+                } else {
+                    groups.put(id, new GroupView(new HashMap<>(live), batch));
+                }
+            }
+            snapshot = new Snapshot(target, Collections.unmodifiableMap(groups));
+            return snapshot.groups;
+        }
+    }
+
+    /**
+     * 按名称顺序分页查询CDK，只构造本页的数据
+     * <p>
+     * 所有存储模式都使用内存中的有序索引：内存是最新的数据，写后队列中尚未写入数据库的新增和删除同样可见，
+     * 每页也不会因为数据库中已在内存里删除的行而变短。
+     *
+     * @param query 查询条件
+     * @return 本页结果
+     */
+    public CDKPage listCDKs(CDKQuery query) {
+        NavigableMap<String, CDK> source;
+        Collection<CodeBatch> sourceBatches;
+        if (query.getId() != null) {
+            Map<String, CDK> group = cdkMap.get(query.getId());
+            if (group == null) {
+                return new CDKPage(Collections.<CDK>emptyList(), null);
+            }
+            // 组内独立对象较少时复制排序，较多时沿全局有序索引从游标处向后，由 matches 按ID过滤，不复制整组
+            source = group.size() <= GROUP_SORT_LIMIT ? new TreeMap<>(group) : sortedIndex;
+            CodeBatch batch = batches.get(query.getId());
+            sourceBatches = batch != null ? Collections.singletonList(batch) : Collections.<CodeBatch>emptyList();
+        } else {
+            source = sortedIndex;
+            sourceBatches = batches.values();
+        }
+        String start = query.startAfter();
+        boolean inclusive = false;
+        if (start == null && query.getNamePrefix() != null) {
+            start = query.getNamePrefix();
+            inclusive = true;
+        }
+        if (start != null) {
+            source = source.tailMap(start, inclusive);
+        }
+        List<Iterator<CDK>> sources = new ArrayList<>();
+        sources.add(source.values().iterator());
+        for (CodeBatch batch : sourceBatches) {
+            Iterator<String> names = batch.iterator(start, inclusive);
+            sources.add(new Iterator<CDK>() {
+                @Override
+                public boolean hasNext() {
+                    return names.hasNext();
+                }
+
+                @Override
+                public CDK next() {
+                    return batch.view(names.next());
+                }
+            });
+        }
+
+        List<CDK> items = new ArrayList<>(Math.min(query.getLimit(), 256));
+        String nextCursor = null;
+        for (Iterator<CDK> it = mergeByName(sources); it.hasNext(); ) {
+            CDK cdk = it.next();
+            if (query.isPastPrefix(cdk.getName())) {
+                break;
+            }
+            if (!query.matches(cdk)) {
+                continue;
+            }
+            if (items.size() == query.getLimit()) {
+                nextCursor = items.get(items.size() - 1).getName();
+                break;
+            }
+            items.add(cdk);
+        }
+        return new CDKPage(items, nextCursor);
+    }
+
+    /**
+     * 按名称顺序合并多个已排序的CDK序列
+     */
+    private static Iterator<CDK> mergeByName(List<Iterator<CDK>> sources) {
+        if (sources.size() == 1) {
+            return sources.get(0);
+        }
+        PriorityQueue<Map.Entry<CDK, Iterator<CDK>>> heads = new PriorityQueue<>(sources.size(),
+                (a, b) -> a.getKey().getName().compareTo(b.getKey().getName()));
+        for (Iterator<CDK> source : sources) {
+            if (source.hasNext()) {
+                heads.add(new AbstractMap.SimpleImmutableEntry<>(source.next(), source));
+            }
+        }
+        return new Iterator<CDK>() {
+            @Override
+            public boolean hasNext() {
+                return !heads.isEmpty();
+            }
+
+            @Override
+            public CDK next() {
+                Map.Entry<CDK, Iterator<CDK>> head = heads.poll();
+                if (head == null) {
+                    throw new NoSuchElementException();
+                }
+                if (head.getValue().hasNext()) {
+                    heads.add(new AbstractMap.SimpleImmutableEntry<>(head.getValue().next(), head.getValue()));
+                }
+                return head.getKey();
+            }
+        };
+    }
+
+    /**
+     * 依次遍历多个名称序列
+     */
+    private static Iterator<String> concat(List<Iterator<String>> parts) {
+        return new Iterator<String>() {
+            private int index;
+
+            @Override
+            public boolean hasNext() {
+                while (index < parts.size()) {
+                    if (parts.get(index).hasNext()) {
+                        return true;
+                    }
+                    index++;
+                }
+                return false;
+            }
+
+            @Override
+            public String next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return parts.get(index).next();
+            }
+        };
+    }
+
+    /**
+     * 快照中包含批次的CDK组：独立CDK复制保存，批次中的码按需生成CDK对象
+     */
+    private static final class GroupView extends AbstractMap<String, CDK> {
+        private final Map<String, CDK> full;
+        private final CodeBatch batch;
+
+        private GroupView(Map<String, CDK> full, CodeBatch batch) {
+            this.full = full;
+            this.batch = batch;
+        }
+
+        @Override
+        public CDK get(Object key) {
+            CDK cdk = full.get(key);
+            if (cdk == null && key instanceof String && batch.contains((String) key)) {
+                cdk = batch.view((String) key);
+            }
+            return cdk;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return full.containsKey(key) || (key instanceof String && batch.contains((String) key));
+        }
+
+        @Override
+        public int size() {
+            return full.size() + batch.size();
+        }
+
+        @Override
+        public Set<Entry<String, CDK>> entrySet() {
+            return new AbstractSet<Entry<String, CDK>>() {
+                @Override
+                public Iterator<Entry<String, CDK>> iterator() {
+                    Iterator<Entry<String, CDK>> fullEntries = full.entrySet().iterator();
+                    Iterator<String> names = batch.iterator(null, true);
+                    return new Iterator<Entry<String, CDK>>() {
+                        @Override
+                        public boolean hasNext() {
+                            return fullEntries.hasNext() || names.hasNext();
+                        }
+
+                        @Override
+                        public Entry<String, CDK> next() {
+                            if (fullEntries.hasNext()) {
+                                return new SimpleImmutableEntry<>(fullEntries.next());
+                            }
+                            String name = names.next();
+                            return new SimpleImmutableEntry<>(name, batch.view(name));
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return GroupView.this.size();
+                }
+            };
+        }
+    }
+
+    /**
+     * 获取快照的版本号，CDK增删后版本号会变化
+     *
+     * @return 当前版本号
+     */
+    public long getVersion() {
+        return version.get();
+    }
+
+    /**
+     * 获取所有CDK组ID（只读视图，不复制）
+     *
+     * @return CDK组ID集合
+     */
+    public Set<String> getGroupIds() {
+        return Collections.unmodifiableSet(cdkMap.keySet());
+    }
+
+    /**
+     * 获取所有CDK名称（只读视图，不复制）
+     *
+     * @return CDK名称集合
+     */
+    public Set<String> getCDKNames() {
+        if (batches.isEmpty()) {
+            return Collections.unmodifiableSet(nameIndex.keySet());
+        }
+        return new AbstractSet<String>() {
+            @Override
+            public Iterator<String> iterator() {
+                List<Iterator<String>> parts = new ArrayList<>();
+                parts.add(nameIndex.keySet().iterator());
+                for (CodeBatch batch : batches.values()) {
+                    parts.add(batch.iterator(null, true));
                 }
+                return concat(parts);
             }
-            cdkConfig = YamlConfiguration.loadConfiguration(cdkFile);
-
-            cdkMap.clear();
-            for (String id : cdkConfig.getKeys(false)) {
-                cdkConfig.getConfigurationSection(id).getKeys(false).forEach(cdkName -> {
-                    String name = cdkConfig.getString(id + "." + cdkName + ".name");
-                    int quantity = cdkConfig.getInt(id + "." + cdkName + ".quantity");
-                    boolean isSingleUse = cdkConfig.getBoolean(id + "." + cdkName + ".single");
-                    String commands = cdkConfig.getString(id + "." + cdkName + ".commands");
-                    String requiredPermission = cdkConfig.getString(id + "." + cdkName + ".requiredPermission");
-                    String requiredGroup = cdkConfig.getString(id + "." + cdkName + ".requiredGroup");
-                    Date expirationDate = null;
-
-                    String dateStr = cdkConfig.getString(id + "." + cdkName + ".expiration");
-                    if (dateStr != null) {
-                        try {
-                            expirationDate = new SimpleDateFormat("yyyy-MM-dd HH:mm").parse(dateStr);
-                        } catch (ParseException e) {
-                            e.printStackTrace();
-                        }
-                    }
 
-                    CDK cdk = new CDK(id, name, quantity, isSingleUse, commands, expirationDate, requiredPermission, requiredGroup);
-                    
-                    // 加载已兑换玩家列表
-                    List<String> redeemedPlayersList = cdkConfig.getStringList(id + "." + cdkName + ".redeemedPlayers");
-                    Set<String> redeemedPlayers = new HashSet<>(redeemedPlayersList);
-                    cdk.setRedeemedPlayers(redeemedPlayers);
-                    
-                    // 确保redeemedPlayers不为null
-                    if (cdk.getRedeemedPlayers() == null) {
-                        cdk.setRedeemedPlayers(new HashSet<>());
-                    }
-                    
-                    cdkMap.computeIfAbsent(id, k -> new HashMap<>()).put(name, cdk);
-                });
+            @Override
+            public boolean contains(Object o) {
+                return o instanceof String && exists((String) o);
             }
-        }
+
+            @Override
+            public int size() {
+                return countCDKs();
+            }
+        };
     }
 
     /**
-     * 保存CDK配置
+     * 获取指定组的CDK数量
+     *
+     * @param id CDK的ID
+     * @return CDK数量，组不存在时返回0
      */
-    public synchronized void saveCDKs() {
-        if ("sqlite".equalsIgnoreCase(storageMode) || "mysql".equalsIgnoreCase(storageMode)) {
-            // 保存到数据库
-            databaseManager.saveCDKs(cdkMap);
-        } else {
-            // 保存到YAML文件
-            cdkConfig.getKeys(false).forEach(key -> cdkConfig.set(key, null)); // 清空现有内容，避免累积
-            for (Map.Entry<String, Map<String, CDK>> entry : cdkMap.entrySet()) {
-                String id = entry.getKey();
-                for (CDK cdk : entry.getValue().values()) {
-                    String basePath = id + "." + cdk.getName();
-                    cdkConfig.set(basePath + ".name", cdk.getName());
-                    cdkConfig.set(basePath + ".quantity", cdk.getQuantity());
-                    cdkConfig.set(basePath + ".single", cdk.isSingleUse());
-                    cdkConfig.set(basePath + ".commands", cdk.getCommands());
-                    cdkConfig.set(basePath + ".requiredPermission", cdk.getRequiredPermission());
-                    cdkConfig.set(basePath + ".requiredGroup", cdk.getRequiredGroup());
-                    if (cdk.getExpirationDate() != null) {
-                        cdkConfig.set(basePath + ".expiration", new SimpleDateFormat("yyyy-MM-dd HH:mm").format(cdk.getExpirationDate()));
-                    }
-                    // 保存已兑换玩家列表
-                    if (cdk.getRedeemedPlayers() != null) {
-                        cdkConfig.set(basePath + ".redeemedPlayers", new ArrayList<>(cdk.getRedeemedPlayers())); // 将 Set 转换为 List
-                    } else {
-                        cdkConfig.set(basePath + ".redeemedPlayers", new ArrayList<>());
-                    }
-                }
-            }
-            try {
-                cdkConfig.save(cdkFile);
-            } catch (IOException e) {
-                plugin.getLogger().severe("保存 CDK 文件时出错！");
-                e.printStackTrace();
-                throw new RuntimeException("保存 CDK 文件时出错", e);
-            }
-        }
+    public int countCDKs(String id) {
+        Map<String, CDK> group = cdkMap.get(id);
+        CodeBatch batch = batches.get(id);
+        return (group == null ? 0 : group.size()) + (batch == null ? 0 : batch.size());
     }
 
     /**
-     * 移除过期的CDK
+     * 获取每个组的CDK数量
+     *
+     * @return CDK组ID -> 数量
      */
-    public synchronized void removeExpiredCDKs() {
-        for (Map<String, CDK> cdkGroup : cdkMap.values()) {
-            cdkGroup.values().removeIf(CDK::isExpired);
+    public Map<String, Integer> getGroupCounts() {
+        Map<String, Integer> counts = new HashMap<>();
+        for (String id : cdkMap.keySet()) {
+            counts.put(id, countCDKs(id));
         }
-        saveCDKs();
+        return counts;
     }
 
     /**
-     * 生成唯一的随机CDK名称
+     * 统计已过期但尚未清理的CDK数量
      *
-     * @return 随机生成的CDK名称
+     * @return 过期CDK数量
      */
-    public synchronized String generateUniqueRandomCDKName() {
-        String cdkName;
-        int maxAttempts = 1000;
-        int attempts = 0;
-        do {
-            cdkName = generateRandomCDKName();
-            attempts++;
-            if (attempts > maxAttempts) {
-                // 如果碰撞次数过多，自动增加名称长度以降低碰撞率
-                int currentLength = config.getInt("default_cdk_name_length", 8);
-                config.set("default_cdk_name_length", currentLength + 1);
-                plugin.getLogger().warning("CDK名称碰撞次数过多，自动将默认长度增加至 " + (currentLength + 1));
-                attempts = 0;
-            }
-        } while (findCDKByName(cdkName) != null); // 全局范围避免冲突
-        return cdkName;
+    public int countExpiredCDKs() {
+        int count = 0;
+        for (CDK cdk : nameIndex.values()) {
+            if (cdk.isExpired()) count++;
+        }
+        for (CodeBatch batch : batches.values()) {
+            if (batch.getTemplate().isExpired()) count += batch.size();
+        }
+        return count;
     }
 
     /**
-     * 生成随机CDK名称
+     * 统计一次性CDK数量
      *
-     * @return 随机生成的CDK名称
+     * @return 一次性CDK数量
      */
-    public String generateRandomCDKName() {
-        int length = config.getInt("default_cdk_name_length", 8);
-        String characters = config.getString("default_cdk_characters", "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789");
-        StringBuilder result = new StringBuilder(length);
-        java.util.concurrent.ThreadLocalRandom random = java.util.concurrent.ThreadLocalRandom.current();
-        for (int i = 0; i < length; i++) {
-            result.append(characters.charAt(random.nextInt(characters.length())));
+    public int countSingleUseCDKs() {
+        int count = 0;
+        for (CDK cdk : nameIndex.values()) {
+            if (cdk.isSingleUse()) count++;
         }
-        return result.toString();
+        return count + countCompactCDKs();
     }
 
     /**
-     * 创建一个新的CDK
+     * 统计以紧凑批次保存的一次性CDK数量
      *
-     * @param id CDK的ID
-     * @param name CDK的名称
-     * @param quantity CDK的数量
-     * @param isSingleUse 是否为一次性使用
-     * @param commands 兑换时执行的命令
-     * @param expirationDate 过期时间
-     * @return 创建的CDK对象
-     * @throws IllegalArgumentException 如果CDK名称已存在
+     * @return 批次中的CDK数量
      */
-    public synchronized CDK createCDK(String id, String name, int quantity, boolean isSingleUse, String commands, Date expirationDate) {
-        return createCDK(id, name, quantity, isSingleUse, commands, expirationDate, null, null);
+    public int countCompactCDKs() {
+        int count = 0;
+        for (CodeBatch batch : batches.values()) {
+            count += batch.size();
+        }
+        return count;
     }
 
     /**
-     * 创建一个新的CDK
+     * 估算紧凑批次占用的堆内存
      *
-     * @param id CDK的ID
-     * @param name CDK的名称
-     * @param quantity CDK的数量
-     * @param isSingleUse 是否为一次性使用
-     * @param commands 兑换时执行的命令
-     * @param expirationDate 过期时间
-     * @param requiredPermission 兑换所需权限
-     * @param requiredGroup 兑换所需权限组
-     * @return 创建的CDK对象
-     * @throws IllegalArgumentException 如果CDK名称已存在
+     * @return 字节数
      */
-    public synchronized CDK createCDK(String id, String name, int quantity, boolean isSingleUse, String commands, Date expirationDate, String requiredPermission, String requiredGroup) {
-        if (findCDKByName(name) != null) {
-            throw new IllegalArgumentException("CDK名称已存在: " + name);
+    public long estimateCompactBytes() {
+        long bytes = 0L;
+        for (CodeBatch batch : batches.values()) {
+            bytes += batch.estimateBytes();
         }
-        CDK cdk = new CDK(id, name, quantity, isSingleUse, commands, expirationDate, requiredPermission, requiredGroup);
-        cdkMap.computeIfAbsent(id, k -> new HashMap<>()).put(name, cdk);
-        saveCDKs();
-        return cdk;
+        return bytes + codeIndex.estimateBytes();
+    }
+
+    public boolean updateCDK(String name, Integer quantity, String commands, Date expirationDate, boolean updateExpiration, String requiredPermission, boolean updatePermission, String requiredGroup, boolean updateGroup) {
+        CDK cdk = nameIndex.get(name);
+        if (cdk == null) cdk = promote(name);
+        if (cdk == null) return false;
+        synchronized (cdk) {
+            if (nameIndex.get(name) != cdk) return false;
+            int before = cdk.getQuantity();
+            if (quantity != null) cdk.setQuantity(quantity);
+            if (commands != null) cdk.setCommands(commands);
+            if (updateExpiration) cdk.setExpirationDate(expirationDate);
+            if (updatePermission) cdk.setRequiredPermission(requiredPermission);
+            if (updateGroup) cdk.setRequiredGroup(requiredGroup);
+            persist(CDKMutation.update(cdk, cdk.getQuantity() - before));
+        }
+        return true;
     }
 
     /**
-     * 删除指定ID的所有CDK
+     * 增加可多次使用CDK的剩余数量
      *
-     * @param id CDK的ID
-     * @return 如果删除成功则返回true，否则返回false
+     * @param cdkName CDK的名称
+     * @param amount 增加的数量
+     * @return 如果CDK存在则返回true
      */
-    public synchronized boolean deleteById(String id) {
-        if (cdkMap.containsKey(id)) {
-            cdkMap.remove(id);
-            saveCDKs();
-            return true;
+    public boolean increaseQuantity(String cdkName, int amount) {
+        CDK cdk = nameIndex.get(cdkName);
+        if (cdk == null) cdk = promote(cdkName);
+        if (cdk == null) return false;
+        synchronized (cdk) {
+            if (nameIndex.get(cdkName) != cdk) return false;
+            cdk.increaseQuantity(amount);
+            persist(CDKMutation.update(cdk, amount));
         }
-        return false;
+        return true;
+    }
+
+    public int countCDKs() {
+        return nameIndex.size() + countCompactCDKs();
     }
 
     /**
-     * 删除指定名称的CDK
+     * 为玩家兑换CDK：检查、扣减数量、记录兑换玩家并增量写入存储
      *
      * @param cdkName CDK的名称
-     * @return 如果删除成功则返回true，否则返回false
+     * @param playerName 玩家名称
+     * @param conditionMet 玩家是否满足使用条件
+     * @return 兑换结果
      */
-    public synchronized boolean deleteByCDKName(String cdkName) {
-        for (Map.Entry<String, Map<String, CDK>> entry : cdkMap.entrySet()) {
-            if (entry.getValue().containsKey(cdkName)) {
-                entry.getValue().remove(cdkName);
-                saveCDKs();
-                return true;
+    public RedemptionResult redeem(String cdkName, String playerName, boolean conditionMet) {
+        if (sharedDatabase(storage) != null) {
+            return redeemBatch(Collections.singletonList(new RedemptionRequest(cdkName, playerName, conditionMet))).get(0);
+        }
+        Object lock = lockFor(cdkName);
+        if (lock == null) {
+            return RedemptionResult.error("CDK_NOT_FOUND", "CDK not found");
+        }
+        // 只锁定当前CDK（或所在批次）：同一CDK的检查与扣减原子执行，不同CDK的兑换互不阻塞
+        synchronized (lock) {
+            List<CDKMutation> mutations = new ArrayList<>(2);
+            List<Runnable> rollbacks = new ArrayList<>(1);
+            RedemptionResult result = redeemLocked(lock, cdkName, playerName, conditionMet, mutations, rollbacks);
+            if (result.isSuccess()) {
+                persistOrRollback(mutations, rollbacks);
             }
+            return result;
         }
-        return false;
     }
 
     /**
-     * 根据CDK名称查找CDK
+     * 批量兑换：按名称顺序锁定涉及的所有CDK，逐条兑换后一次性写入存储
      *
-     * @param cdkName CDK的名称
-     * @return 找到的CDK对象，如果未找到则返回null
+     * @param requests 兑换请求
+     * @return 与请求一一对应的兑换结果
      */
-    public synchronized CDK findCDKByName(String cdkName) {
-        for (Map<String, CDK> cdkGroup : cdkMap.values()) {
-            if (cdkGroup.containsKey(cdkName)) {
-                return cdkGroup.get(cdkName);
+    public List<RedemptionResult> redeemBatch(List<RedemptionRequest> requests) {
+        // 固定按锁的名称排序加锁（CDK按名称，批次按ID），避免两个批量兑换互相等待
+        DatabaseManager database = sharedDatabase(storage);
+        Map<String, Object> locksByName = new HashMap<>();
+        TreeMap<String, Object> ordered = new TreeMap<>();
+        for (RedemptionRequest request : requests) {
+            Object lock = lockFor(request.getCdkName());
+            if (lock == null && database != null && !locksByName.containsKey(request.getCdkName())
+                    && mightExist(request.getCdkName())) {
+                lock = fetchShared(request.getCdkName());
+            }
+            if (lock != null) {
+                locksByName.put(request.getCdkName(), lock);
+                ordered.put(lock instanceof CodeBatch ? "b:" + ((CodeBatch) lock).getTemplate().getId() : "c:" + request.getCdkName(), lock);
             }
         }
-        return null;
+        if (database != null) {
+            return withLocks(new ArrayList<>(ordered.values()), 0, () -> claimLocked(database, requests, locksByName));
+        }
+        return withLocks(new ArrayList<>(ordered.values()), 0, () -> {
+            List<RedemptionResult> results = new ArrayList<>(requests.size());
+            List<CDKMutation> mutations = new ArrayList<>();
+            List<Runnable> rollbacks = new ArrayList<>();
+            for (RedemptionRequest request : requests) {
+                Object lock = locksByName.get(request.getCdkName());
+                results.add(lock == null
+                        ? RedemptionResult.error("CDK_NOT_FOUND", "CDK not found")
+                        : redeemLocked(lock, request.getCdkName(), request.getPlayerName(), request.isConditionMet(), mutations, rollbacks));
+            }
+            persistOrRollback(mutations, rollbacks);
+            return results;
+        });
     }
 
     /**
-     * 根据ID查找CDK组
-     *
-     * @param id CDK的ID
-     * @return 找到的CDK组，如果未找到则返回null
+     * 共享模式下在持有锁的情况下兑换一批CDK：先按本地缓存排除明显不能兑换的请求，
+     * 其余的在数据库中按条件扣减，再按数据库的结果更新缓存
      */
-    public synchronized Map<String, CDK> findCDKGroupById(String id) {
-        Map<String, CDK> group = cdkMap.get(id);
-        return group == null ? null : new HashMap<>(group);
+    private List<RedemptionResult> claimLocked(DatabaseManager database, List<RedemptionRequest> requests, Map<String, Object> locksByName) {
+        RedemptionResult[] results = new RedemptionResult[requests.size()];
+        List<DatabaseManager.Claim> claims = new ArrayList<>();
+        List<Integer> positions = new ArrayList<>();
+        for (int i = 0; i < requests.size(); i++) {
+            RedemptionRequest request = requests.get(i);
+            Object lock = locksByName.get(request.getCdkName());
+            CDK cdk = null;
+            if (lock instanceof CodeBatch) {
+                CodeBatch batch = (CodeBatch) lock;
+                cdk = batch.contains(request.getCdkName()) ? batch.getTemplate() : null;
+            } else if (lock != null && nameIndex.get(request.getCdkName()) == lock) {
+                cdk = (CDK) lock;
+            }
+            if (cdk == null) {
+                results[i] = RedemptionResult.error("CDK_NOT_FOUND", "CDK not found");
+            } else if (cdk.isExpired()) {
+                results[i] = RedemptionResult.error("CDK_EXPIRED", "CDK is expired");
+            } else if (!cdk.isSingleUse() && cdk.hasPlayerRedeemed(request.getPlayerName())) {
+                results[i] = RedemptionResult.error("ALREADY_REDEEMED", "Player already redeemed this CDK");
+            } else if (cdk.hasUseConditions() && !request.isConditionMet()) {
+                results[i] = RedemptionResult.error("CONDITION_NOT_MET", "Player does not meet CDK use conditions");
+            } else {
+                claims.add(new DatabaseManager.Claim(request.getCdkName(), request.getPlayerName(), cdk.isSingleUse()));
+                positions.add(i);
+            }
+        }
+        // 出错时整批回滚，本地缓存尚未修改
+        database.claim(claims);
+        for (int j = 0; j < claims.size(); j++) {
+            DatabaseManager.Claim claim = claims.get(j);
+            results[positions.get(j)] = applyClaim(locksByName.get(claim.getCdkName()), claim);
+        }
+        return Arrays.asList(results);
     }
 
     /**
-     * 获取所有CDK
-     *
-     * @return 所有CDK的映射
+     * 按数据库的兑换结果更新本地缓存
      */
-    public synchronized Map<String, Map<String, CDK>> getAllCDKs() {
-        Map<String, Map<String, CDK>> copy = new HashMap<>();
-        for (Map.Entry<String, Map<String, CDK>> entry : cdkMap.entrySet()) {
-            copy.put(entry.getKey(), new HashMap<>(entry.getValue()));
+    private RedemptionResult applyClaim(Object lock, DatabaseManager.Claim claim) {
+        String name = claim.getCdkName();
+        if (lock instanceof CodeBatch) {
+            CodeBatch batch = (CodeBatch) lock;
+            // 成功或失败都说明数据库中已没有这个码
+            if (batch.remove(name)) {
+                markDirty(batch.getTemplate().getId());
+            }
+            return claim.isClaimed()
+                    ? RedemptionResult.success(batch.view(name), batch.getTemplate().getCommandTemplate(), 0)
+                    : RedemptionResult.error("CDK_NOT_FOUND", "CDK not found");
+        }
+        CDK cdk = (CDK) lock;
+        if (!claim.isClaimed()) {
+            if ("ALREADY_REDEEMED".equals(claim.getCode())) {
+                if (cdk.isRedeemedPlayersLoaded()) {
+                    cdk.getRedeemedPlayers().add(claim.getPlayerName());
+                }
+                return RedemptionResult.error("ALREADY_REDEEMED", "Player already redeemed this CDK");
+            }
+            // 其它服务器已兑换完或删除
+            removeCDKWithoutSave(cdk);
+            return RedemptionResult.error("CDK_NOT_FOUND", "CDK not found");
+        }
+        if (!cdk.isSingleUse() && cdk.isRedeemedPlayersLoaded()) {
+            cdk.getRedeemedPlayers().add(claim.getPlayerName());
+        }
+        cdk.setQuantity(claim.getRemainingQuantity());
+        cdk.setVersion(claim.getVersion());
+        CommandTemplate commands = cdk.getCommandTemplate();
+        if (cdk.isSingleUse() || claim.getRemainingQuantity() <= 0) {
+            removeCDKWithoutSave(cdk);
         }
-        return copy;
+        return RedemptionResult.success(cdk, commands, claim.getRemainingQuantity());
     }
 
-    public synchronized boolean updateCDK(String name, Integer quantity, String commands, Date expirationDate, boolean updateExpiration, String requiredPermission, boolean updatePermission, String requiredGroup, boolean updateGroup) {
-        CDK cdk = findCDKByName(name);
-        if (cdk == null) return false;
-        if (quantity != null) cdk.setQuantity(quantity);
-        if (commands != null) cdk.setCommands(commands);
-        if (updateExpiration) cdk.setExpirationDate(expirationDate);
-        if (updatePermission) cdk.setRequiredPermission(requiredPermission);
-        if (updateGroup) cdk.setRequiredGroup(requiredGroup);
-        saveCDKs();
-        return true;
+    /**
+     * 获取兑换某个码时要锁定的对象：独立的CDK对象或所在的批次
+     */
+    private Object lockFor(String cdkName) {
+        CDK cdk = nameIndex.get(cdkName);
+        return cdk != null ? cdk : batchOf(cdkName);
     }
 
-    public synchronized int countCDKs() {
-        int count = 0;
-        for (Map<String, CDK> group : cdkMap.values()) count += group.size();
-        return count;
+    private <T> T withLocks(List<Object> locks, int index, Supplier<T> action) {
+        if (index == locks.size()) {
+            return action.get();
+        }
+        synchronized (locks.get(index)) {
+            return withLocks(locks, index + 1, action);
+        }
     }
 
-    public synchronized RedemptionResult redeemForApi(String cdkName, String playerName, boolean conditionMet) {
-        CDK cdk = findCDKByName(cdkName);
-        if (cdk == null) {
+    /**
+     * 写入兑换产生的变更，失败时按相反顺序撤销内存中的兑换
+     */
+    private void persistOrRollback(List<CDKMutation> mutations, List<Runnable> rollbacks) {
+        if (mutations.isEmpty()) {
+            return;
+        }
+        try {
+            persist(mutations);
+        } catch (RuntimeException e) {
+            for (int i = rollbacks.size() - 1; i >= 0; i--) {
+                rollbacks.get(i).run();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * 在持有CDK锁的情况下检查并执行一次兑换，变更和对应的撤销操作追加到列表中
+     */
+    private RedemptionResult redeemLocked(Object lock, String cdkName, String playerName, boolean conditionMet,
+                                          List<CDKMutation> mutations, List<Runnable> rollbacks) {
+        if (lock instanceof CodeBatch) {
+            return redeemCodeLocked((CodeBatch) lock, cdkName, conditionMet, mutations, rollbacks);
+        }
+        CDK cdk = (CDK) lock;
+        if (nameIndex.get(cdkName) != cdk) {
+            // 等待期间已被删除或兑换完
             return RedemptionResult.error("CDK_NOT_FOUND", "CDK not found");
         }
         if (cdk.isExpired()) {
@@ -341,51 +1600,157 @@ public class CDKManager {
         if (cdk.hasUseConditions() && !conditionMet) {
             return RedemptionResult.error("CONDITION_NOT_MET", "Player does not meet CDK use conditions");
         }
+        boolean added;
+        try {
+            added = cdk.addRedeemedPlayer(playerName);
+        } catch (IllegalStateException e) {
+            // 无法确认玩家是否兑换过时拒绝兑换
+            plugin.getLogger().warning(e.getMessage());
+            return RedemptionResult.error("STORAGE_ERROR", "Failed to load redeemed players");
+        }
+        if (!added) {
+            return RedemptionResult.error("ALREADY_REDEEMED", "Player already redeemed this CDK");
+        }
+        if (!cdk.tryDecreaseQuantity()) {
+            cdk.getRedeemedPlayers().remove(playerName);
+            return RedemptionResult.error("CDK_NOT_FOUND", "CDK not found");
+        }
 
-        String commands = cdk.getCommands();
-        int oldQuantity = cdk.getQuantity();
-        boolean alreadyContained = cdk.getRedeemedPlayers().contains(playerName);
-        boolean removed = false;
-        cdk.decreaseQuantity();
-        cdk.addRedeemedPlayer(playerName);
+        CommandTemplate commands = cdk.getCommandTemplate();
         int remainingQuantity = Math.max(0, cdk.getQuantity());
+        boolean removed = false;
         if (cdk.isSingleUse() || cdk.getQuantity() <= 0) {
-            removeCDKWithoutSave(cdkName);
+            removeCDKWithoutSave(cdk);
             removed = true;
             remainingQuantity = 0;
         }
-        try {
-            saveCDKs();
-        } catch (RuntimeException e) {
-            if (removed) {
-                cdkMap.computeIfAbsent(cdk.getId(), k -> new HashMap<>()).put(cdk.getName(), cdk);
-            }
-            cdk.setQuantity(oldQuantity);
-            if (!alreadyContained) {
-                cdk.getRedeemedPlayers().remove(playerName);
-            }
-            throw e;
+        if (removed) {
+            mutations.add(CDKMutation.delete(cdk));
+        } else {
+            mutations.add(CDKMutation.decrement(cdk));
+            mutations.add(CDKMutation.redeem(cdk, playerName));
         }
+        final boolean restore = removed;
+        rollbacks.add(() -> {
+            if (restore) {
+                cdkMap.computeIfAbsent(cdk.getId(), k -> new ConcurrentHashMap<>()).put(cdk.getName(), cdk);
+                index(cdk);
+                markDirty(cdk.getId());
+            }
+            cdk.increaseQuantity(1);
+            cdk.getRedeemedPlayers().remove(playerName);
+        });
         return RedemptionResult.success(cdk, commands, remainingQuantity);
     }
 
-    private void removeCDKWithoutSave(String cdkName) {
-        for (Map<String, CDK> group : cdkMap.values()) {
-            if (group.remove(cdkName) != null) {
-                return;
-            }
+    /**
+     * 在持有批次锁的情况下兑换批次中的一次性CDK：兑换即删除，不记录兑换玩家
+     */
+    private RedemptionResult redeemCodeLocked(CodeBatch batch, String cdkName, boolean conditionMet,
+                                              List<CDKMutation> mutations, List<Runnable> rollbacks) {
+        if (!batch.contains(cdkName)) {
+            // 等待期间已被兑换、删除或转为独立对象
+            return RedemptionResult.error("CDK_NOT_FOUND", "CDK not found");
+        }
+        CDK template = batch.getTemplate();
+        if (template.isExpired()) {
+            return RedemptionResult.error("CDK_EXPIRED", "CDK is expired");
+        }
+        if (template.hasUseConditions() && !conditionMet) {
+            return RedemptionResult.error("CONDITION_NOT_MET", "Player does not meet CDK use conditions");
+        }
+        batch.remove(cdkName);
+        String id = template.getId();
+        markDirty(id);
+        mutations.add(CDKMutation.delete(id, cdkName));
+        rollbacks.add(() -> {
+            // 撤销时不持有管理器锁，恢复前后都写入过滤器，见 index
+            rememberName(cdkName);
+            batch.restore(cdkName);
+            rememberName(cdkName);
+            markDirty(id);
+        });
+        return RedemptionResult.success(batch.view(cdkName), template.getCommandTemplate(), 0);
+    }
+
+    /**
+     * 从内存中移除指定的CDK对象（名称已指向其他对象时不做处理）
+     *
+     * @return 如果确实移除了该对象则返回true
+     */
+    private boolean removeCDKWithoutSave(CDK cdk) {
+        if (!unindex(cdk)) {
+            return false;
+        }
+        Map<String, CDK> group = cdkMap.get(cdk.getId());
+        if (group != null) {
+            group.remove(cdk.getName(), cdk);
+        }
+        markDirty(cdk.getId());
+        return true;
+    }
+
+    /**
+     * 分页查询结果
+     */
+    public static class CDKPage {
+        private final List<CDK> items;
+        private final String nextCursor;
+
+        private CDKPage(List<CDK> items, String nextCursor) {
+            this.items = items;
+            this.nextCursor = nextCursor;
+        }
+
+        public List<CDK> getItems() { return items; }
+        /** 下一页的起始游标（本页最后一个名称），没有下一页时为 null */
+        public String getNextCursor() { return nextCursor; }
+        public boolean hasMore() { return nextCursor != null; }
+    }
+
+    /**
+     * 某一版本的只读快照
+     */
+    private static final class Snapshot {
+        private static final Snapshot EMPTY = new Snapshot(-1L, Collections.<String, Map<String, CDK>>emptyMap());
+
+        private final long version;
+        private final Map<String, Map<String, CDK>> groups;
+
+        private Snapshot(long version, Map<String, Map<String, CDK>> groups) {
+            this.version = version;
+            this.groups = groups;
         }
     }
 
+    /**
+     * 批量兑换中的一项
+     */
+    public static class RedemptionRequest {
+        private final String cdkName;
+        private final String playerName;
+        private final boolean conditionMet;
+
+        public RedemptionRequest(String cdkName, String playerName, boolean conditionMet) {
+            this.cdkName = cdkName;
+            this.playerName = playerName;
+            this.conditionMet = conditionMet;
+        }
+
+        public String getCdkName() { return cdkName; }
+        public String getPlayerName() { return playerName; }
+        public boolean isConditionMet() { return conditionMet; }
+    }
+
     public static class RedemptionResult {
         private final boolean success;
         private final String code;
         private final String message;
         private final CDK cdk;
-        private final String commands;
+        private final CommandTemplate commands;
         private final int remainingQuantity;
 
-        private RedemptionResult(boolean success, String code, String message, CDK cdk, String commands, int remainingQuantity) {
+        private RedemptionResult(boolean success, String code, String message, CDK cdk, CommandTemplate commands, int remainingQuantity) {
             this.success = success;
             this.code = code;
             this.message = message;
@@ -394,7 +1759,7 @@ public class CDKManager {
             this.remainingQuantity = remainingQuantity;
         }
 
-        public static RedemptionResult success(CDK cdk, String commands, int remainingQuantity) {
+        public static RedemptionResult success(CDK cdk, CommandTemplate commands, int remainingQuantity) {
             return new RedemptionResult(true, null, null, cdk, commands, remainingQuantity);
         }
 
@@ -406,7 +1771,9 @@ public class CDKManager {
         public String getCode() { return code; }
         public String getMessage() { return message; }
         public CDK getCdk() { return cdk; }
-        public String getCommands() { return commands; }
+        public String getCommands() { return commands != null ? commands.getSource() : null; }
+        /** 兑换时CDK的命令模板 */
+        public CommandTemplate getCommandTemplate() { return commands; }
         public int getRemainingQuantity() { return remainingQuantity; }
     }
 
@@ -417,19 +1784,16 @@ public class CDKManager {
      */
     public synchronized void updateConfig(FileConfiguration config) {
         this.config = config;
-        this.storageMode = config.getString("storage_mode", "yaml");
-        
-        // 如果切换到数据库模式，初始化数据库管理器
-        if (("sqlite".equalsIgnoreCase(storageMode) || "mysql".equalsIgnoreCase(storageMode)) && databaseManager == null) {
-            this.databaseManager = new DatabaseManager(plugin, config, storageMode);
-            // 重新加载数据
+        String newMode = config.getString("storage_mode", "yaml");
+
+        // 存储模式发生变化时切换存储后端并重新加载数据
+        if (!newMode.equalsIgnoreCase(storageMode)) {
+            closeStorage();
+            storageMode = newMode;
+            storage = createStorage(storageMode);
+            writeQueue = createWriteQueue(storage);
             loadCDKs();
-        } else if (!("sqlite".equalsIgnoreCase(storageMode) || "mysql".equalsIgnoreCase(storageMode))) {
-            // 关闭数据库连接
-            if (databaseManager != null) {
-                databaseManager.close();
-                databaseManager = null;
-            }
+            startSync();
         }
     }
     
@@ -441,34 +1805,63 @@ public class CDKManager {
     public String getStorageMode() {
         return storageMode;
     }
+
+    /**
+     * 获取当前存储后端自带的兑换记录存储
+     *
+     * @return 数据库模式下为数据库存储，其它模式返回 null
+     */
+    public RedemptionLogStore getRedemptionLogStore() {
+        CDKStorage current = storage;
+        return current instanceof RedemptionLogStore ? (RedemptionLogStore) current : null;
+    }
+
+    /**
+     * 写入剩余变更并关闭存储后端
+     */
+    public synchronized void close() {
+        closeStorage();
+    }
+
+    private void closeStorage() {
+        stopSync();
+        if (filterExecutor != null) {
+            filterExecutor.shutdownNow();
+            filterExecutor = null;
+        }
+        if (writeQueue != null) {
+            writeQueue.shutdown();
+            writeQueue = null;
+        }
+        storage.close();
+    }
+
+    /**
+     * 获取写入 cdk.yml 的存储；当前即为YAML模式时复用同一实例，避免缓存的配置树过期
+     */
+    private CDKStorage yamlStorage() {
+        return storage instanceof YamlCDKStorage ? storage : new YamlCDKStorage(plugin);
+    }
     
     /**
      * 从YAML迁移到数据库
      * 
      * @return 迁移的CDK数量
      */
-    public int migrateYamlToDatabase() {
+    public synchronized int migrateYamlToDatabase() {
         if (!"yaml".equalsIgnoreCase(storageMode)) {
             throw new IllegalStateException("当前不是YAML模式，无法执行迁移");
         }
-        
-        // 保存当前模式
-        String oldMode = storageMode;
-        
+
+        flush();
+        // 获取配置中指定的数据库类型
+        DatabaseManager target = new DatabaseManager(plugin, config, config.getString("storage_mode", "sqlite"));
         try {
-            // 切换到数据库模式
-            storageMode = config.getString("storage_mode", "sqlite"); // 获取配置中指定的数据库类型
-            if (databaseManager == null) {
-                databaseManager = new DatabaseManager(plugin, config, storageMode);
-            }
-            
             // 保存当前数据到数据库
-            saveCDKs();
-            
-            return cdkMap.values().stream().mapToInt(Map::size).sum();
+            target.saveCDKs(materialize());
+            return countCDKs();
         } finally {
-            // 恢复原来的模式
-            storageMode = oldMode;
+            target.close();
         }
     }
     
@@ -477,40 +1870,20 @@ public class CDKManager {
      * 
      * @return 导出的CDK数量
      */
-    public int exportDatabaseToYaml() {
-        if (!("sqlite".equalsIgnoreCase(storageMode) || "mysql".equalsIgnoreCase(storageMode))) {
+    public synchronized int exportDatabaseToYaml() {
+        if (!isDatabaseMode(storageMode)) {
             throw new IllegalStateException("当前不是数据库模式，无法执行导出");
         }
-        
-        // 保存当前模式
-        String oldMode = storageMode;
-        
+
         try {
-            // 切换到YAML模式
-            storageMode = "yaml";
-            
-            // 确保YAML文件存在
-            cdkFile = new File(plugin.getDataFolder(), "cdk.yml");
-            if (!cdkFile.exists()) {
-                try {
-                    cdkFile.createNewFile();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-            cdkConfig = YamlConfiguration.loadConfiguration(cdkFile);
-            
+            flush();
             // 保存当前数据到YAML
-            saveCDKs();
-            
-            return cdkMap.values().stream().mapToInt(Map::size).sum();
+            new YamlCDKStorage(plugin).saveCDKs(materialize());
+            return countCDKs();
         } catch (Exception e) {
             plugin.getLogger().severe("导出数据时出错: " + e.getMessage());
             e.printStackTrace();
             return 0;
-        } finally {
-            // 恢复原来的模式
-            storageMode = oldMode;
         }
     }
     
@@ -520,65 +1893,18 @@ public class CDKManager {
      * @param targetDatabaseType 目标数据库类型 (sqlite 或 mysql)
      * @return 迁移的CDK数量
      */
-    public int migrateYamlToDatabaseDirect(String targetDatabaseType) {
-        // 保存当前模式
-        String oldMode = storageMode;
-        DatabaseManager oldDatabaseManager = databaseManager;
-        
-        try {
-            // 切换到数据库模式
-            storageMode = targetDatabaseType;
-            databaseManager = new DatabaseManager(plugin, config, targetDatabaseType);
-            
-            // 先从YAML加载数据
-            cdkMap.clear();
-            File yamlFile = new File(plugin.getDataFolder(), "cdk.yml");
-            if (yamlFile.exists()) {
-                FileConfiguration yamlConfig = YamlConfiguration.loadConfiguration(yamlFile);
-                for (String id : yamlConfig.getKeys(false)) {
-                    yamlConfig.getConfigurationSection(id).getKeys(false).forEach(cdkName -> {
-                        String name = yamlConfig.getString(id + "." + cdkName + ".name");
-                        int quantity = yamlConfig.getInt(id + "." + cdkName + ".quantity");
-                        boolean isSingleUse = yamlConfig.getBoolean(id + "." + cdkName + ".single");
-                        String commands = yamlConfig.getString(id + "." + cdkName + ".commands");
-                        String requiredPermission = yamlConfig.getString(id + "." + cdkName + ".requiredPermission");
-                        String requiredGroup = yamlConfig.getString(id + "." + cdkName + ".requiredGroup");
-                        Date expirationDate = null;
-
-                        String dateStr = yamlConfig.getString(id + "." + cdkName + ".expiration");
-                        if (dateStr != null) {
-                            try {
-                                expirationDate = new SimpleDateFormat("yyyy-MM-dd HH:mm").parse(dateStr);
-                            } catch (ParseException e) {
-                                e.printStackTrace();
-                            }
-                        }
+    public synchronized int migrateYamlToDatabaseDirect(String targetDatabaseType) {
+        flush();
+        // 先从YAML加载数据
+        replaceAll(new YamlCDKStorage(plugin).loadCDKs());
 
-                        CDK cdk = new CDK(id, name, quantity, isSingleUse, commands, expirationDate, requiredPermission, requiredGroup);
-                        
-                        // 加载已兑换玩家列表
-                        List<String> redeemedPlayersList = yamlConfig.getStringList(id + "." + cdkName + ".redeemedPlayers");
-                        Set<String> redeemedPlayers = new HashSet<>(redeemedPlayersList);
-                        cdk.setRedeemedPlayers(redeemedPlayers);
-                        
-                        // 确保redeemedPlayers不为null
-                        if (cdk.getRedeemedPlayers() == null) {
-                            cdk.setRedeemedPlayers(new HashSet<>());
-                        }
-                        
-                        cdkMap.computeIfAbsent(id, k -> new HashMap<>()).put(name, cdk);
-                    });
-                }
-            }
-            
+        DatabaseManager target = new DatabaseManager(plugin, config, targetDatabaseType);
+        try {
             // 保存当前数据到数据库
-            saveCDKs();
-            
-            return cdkMap.values().stream().mapToInt(Map::size).sum();
+            target.saveCDKs(materialize());
+            return countCDKs();
         } finally {
-            // 恢复原来的模式
-            storageMode = oldMode;
-            databaseManager = oldDatabaseManager;
+            target.close();
         }
     }
     
@@ -588,43 +1914,51 @@ public class CDKManager {
      * @param sourceDatabaseType 源数据库类型 (sqlite 或 mysql)
      * @return 导出的CDK数量
      */
-    public int exportDatabaseToYamlDirect(String sourceDatabaseType) {
-        // 保存当前模式
-        String oldMode = storageMode;
-        DatabaseManager oldDatabaseManager = databaseManager;
-        
+    public synchronized int exportDatabaseToYamlDirect(String sourceDatabaseType) {
         try {
-            // 切换到YAML模式
-            storageMode = "yaml";
-            
-            // 确保YAML文件存在
-            cdkFile = new File(plugin.getDataFolder(), "cdk.yml");
-            if (!cdkFile.exists()) {
-                try {
-                    cdkFile.createNewFile();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-            cdkConfig = YamlConfiguration.loadConfiguration(cdkFile);
-            
+            flush();
             // 从数据库加载数据
-            databaseManager = new DatabaseManager(plugin, config, sourceDatabaseType);
-            cdkMap.clear();
-            cdkMap.putAll(databaseManager.loadCDKs());
-            
-            // 保存当前数据到YAML
-            saveCDKs();
-            
-            return cdkMap.values().stream().mapToInt(Map::size).sum();
+            DatabaseManager source = new DatabaseManager(plugin, config, sourceDatabaseType);
+            try {
+                replaceAll(source.loadCDKs());
+
+                // 保存当前数据到YAML（已兑换玩家按需从源数据库读取，需在关闭前完成）
+                yamlStorage().saveCDKs(materialize());
+            } finally {
+                source.close();
+            }
+            return countCDKs();
         } catch (Exception e) {
             plugin.getLogger().severe("导出数据时出错: " + e.getMessage());
             e.printStackTrace();
             return 0;
+        }
+    }
+
+    /**
+     * 在任意两种存储模式之间直接迁移：从源存储加载全部数据并全量写入目标存储
+     *
+     * @param sourceMode 源存储模式 (yaml、journal、sqlite 或 mysql)
+     * @param targetMode 目标存储模式 (yaml、journal、sqlite 或 mysql)
+     * @return 迁移的CDK数量
+     */
+    public synchronized int migrateDirect(String sourceMode, String targetMode) {
+        flush();
+        // 与当前模式相同的一端复用当前存储实例，其余临时创建并在结束后关闭
+        CDKStorage source = sourceMode.equalsIgnoreCase(storageMode) ? storage : createStorage(sourceMode);
+        CDKStorage target = targetMode.equalsIgnoreCase(storageMode) ? storage : createStorage(targetMode);
+        try {
+            replaceAll(source.loadCDKs());
+            // 已兑换玩家可能按需从源存储读取，需在关闭源存储前写完
+            target.saveCDKs(materialize());
+            return countCDKs();
         } finally {
-            // 恢复原来的模式
-            storageMode = oldMode;
-            databaseManager = oldDatabaseManager;
+            if (source != storage) {
+                source.close();
+            }
+            if (target != storage) {
+                target.close();
+            }
         }
     }
 }
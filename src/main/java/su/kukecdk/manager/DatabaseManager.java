@@ -3,6 +3,13 @@ package su.kukecdk.manager;
 import org.bukkit.configuration.file.FileConfiguration;
 import org.bukkit.plugin.java.JavaPlugin;
 import su.kukecdk.model.CDK;
+import su.kukecdk.model.RedemptionRecord;
+import su.kukecdk.storage.CDKMutation;
+import su.kukecdk.storage.CDKStorage;
+import su.kukecdk.storage.ConnectionPool;
+import su.kukecdk.storage.RedemptionLogStore;
+import su.kukecdk.storage.RedemptionPage;
+import su.kukecdk.storage.RedemptionQuery;
 
 import java.io.File;
 import java.sql.*;
@@ -10,46 +17,61 @@ import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.*;
 
-public class DatabaseManager {
+/**
+ * SQLite / MySQL 存储
+ * <p>
+ * MySQL 开启多服共享模式（mysql.network.enabled）后，数据库是CDK数量和兑换记录的唯一来源：
+ * 兑换通过 {@link #claim(List)} 在数据库中按条件扣减，每行记录版本号和修改时间，删除时写入墓碑记录，
+ * 各服务器通过 {@link #pollChanges()} 定期拉取其它服务器的修改来更新本地缓存。
+ */
+public class DatabaseManager implements CDKStorage, RedemptionLogStore {
+    // 数据库当前时间（毫秒），各服务器统一以数据库时间记录修改时间，避免时钟不一致
+    private static final String NOW_MS = "ROUND(UNIX_TIMESTAMP(CURRENT_TIMESTAMP(3)) * 1000)";
+    // 拉取修改时向前多取的时间，覆盖拉取时尚未提交的事务
+    private static final long SYNC_OVERLAP_MS = 5000L;
+    // 墓碑记录保留时间，只需长于拉取间隔加上重叠时间
+    private static final long TOMBSTONE_RETENTION_MS = 60L * 60L * 1000L;
+
     private final JavaPlugin plugin;
-    private Connection connection;
+    // 写连接池；SQLite 下只有一个写连接，MySQL 下读写共用同一个池
+    private ConnectionPool writePool;
+    // 读连接池；SQLite 在 WAL 模式下读取不会等待写事务
+    private ConnectionPool readPool;
     private final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm");
     private final String storageMode;
     private final FileConfiguration config;
+    private final boolean networked;
+    // 上次加载或拉取时的数据库时间，下次只拉取这之后修改的行
+    private volatile long syncWatermark;
+    private volatile long lastTombstonePrune;
 
     public DatabaseManager(JavaPlugin plugin, FileConfiguration config, String storageMode) {
         this.plugin = plugin;
         this.config = config;
         this.storageMode = storageMode;
+        this.networked = "mysql".equalsIgnoreCase(storageMode) && config.getBoolean("mysql.network.enabled", false);
         initDatabase();
     }
 
     /**
-     * 检查并维护数据库连接
-     */
-    private void checkConnection() {
-        try {
-            if (connection == null || connection.isClosed() || !connection.isValid(2)) {
-                plugin.getLogger().info("数据库连接已断开，正在重新连接...");
-                initDatabase();
-            }
-        } catch (SQLException e) {
-            plugin.getLogger().severe("检查数据库连接时出错: " + e.getMessage());
-            // 尝试重新初始化
-            initDatabase();
-        }
-    }
-
-    /**
-     * 初始化数据库连接
+     * 初始化数据库连接池
      */
     private void initDatabase() {
         try {
             if ("sqlite".equalsIgnoreCase(storageMode)) {
-                // SQLite连接
+                // SQLite连接：单个写连接 + 多个只读连接，启用 WAL 使读写互不阻塞
                 File dataFolder = new File(plugin.getDataFolder(), "data.db");
                 Class.forName("org.sqlite.JDBC");
-                connection = DriverManager.getConnection("jdbc:sqlite:" + dataFolder);
+                String url = "jdbc:sqlite:" + dataFolder;
+                writePool = new ConnectionPool(plugin, "sqlite-writer", () -> openSqlite(url, false),
+                        1, 1, 30000L, config.getLong("sqlite.leak_detection_ms", 60000L), config.getLong("sqlite.acquire_timeout_ms", 10000L));
+                // 先用写连接建表并切换到 WAL，再创建读连接
+                try (Connection connection = writePool.getConnection()) {
+                    createTables(connection);
+                }
+                int readers = Math.max(1, config.getInt("sqlite.reader_pool_size", 4));
+                readPool = new ConnectionPool(plugin, "sqlite-reader", () -> openSqlite(url, true),
+                        1, readers, 30000L, config.getLong("sqlite.leak_detection_ms", 60000L), config.getLong("sqlite.acquire_timeout_ms", 10000L));
             } else if ("mysql".equalsIgnoreCase(storageMode)) {
                 // MySQL连接
                 Class.forName("com.mysql.cj.jdbc.Driver");
@@ -58,28 +80,73 @@ public class DatabaseManager {
                 String database = config.getString("mysql.database", "kukecdk");
                 String username = config.getString("mysql.username", "root");
                 String password = config.getString("mysql.password", "password");
-                // 添加 autoReconnect=true 这是一个旧参数，但在某些驱动版本有效。
-                // 最重要的是代码层面的重连。
-                String url = "jdbc:mysql://" + host + ":" + port + "/" + database + "?useSSL=false&serverTimezone=UTC&allowPublicKeyRetrieval=true&autoReconnect=true";
-                connection = DriverManager.getConnection(url, username, password);
+                String url = "jdbc:mysql://" + host + ":" + port + "/" + database + "?useSSL=false&serverTimezone=UTC&allowPublicKeyRetrieval=true&rewriteBatchedStatements=true";
+                // 断线由连接池的空闲校验处理，不再依赖 autoReconnect
+                writePool = new ConnectionPool(plugin, "mysql", () -> DriverManager.getConnection(url, username, password),
+                        config.getInt("mysql.pool.min_size", 2),
+                        config.getInt("mysql.pool.max_size", 10),
+                        config.getLong("mysql.pool.validation_idle_ms", 30000L),
+                        config.getLong("mysql.pool.leak_detection_ms", 60000L),
+                        config.getLong("mysql.pool.acquire_timeout_ms", 10000L));
+                readPool = writePool;
+                try (Connection connection = writePool.getConnection()) {
+                    createTables(connection);
+                }
             }
-            createTables();
         } catch (Exception e) {
             plugin.getLogger().severe("初始化数据库时出错: " + e.getMessage());
             e.printStackTrace();
         }
     }
 
+    /**
+     * 打开一个 SQLite 连接并设置 WAL 等参数
+     *
+     * @param url      JDBC 地址
+     * @param readOnly 是否为只读连接
+     * @return 新连接
+     */
+    private Connection openSqlite(String url, boolean readOnly) throws SQLException {
+        Connection connection = DriverManager.getConnection(url);
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("PRAGMA journal_mode=WAL");
+            statement.execute("PRAGMA synchronous=NORMAL");
+            statement.execute("PRAGMA busy_timeout=" + config.getInt("sqlite.busy_timeout_ms", 5000));
+            if (readOnly) {
+                statement.execute("PRAGMA query_only=1");
+            }
+        } catch (SQLException e) {
+            connection.close();
+            throw e;
+        }
+        return connection;
+    }
+
+    private Connection writeConnection() throws SQLException {
+        if (writePool == null) {
+            throw new SQLException("数据库未初始化");
+        }
+        return writePool.getConnection();
+    }
+
+    private Connection readConnection() throws SQLException {
+        if (readPool == null) {
+            throw new SQLException("数据库未初始化");
+        }
+        return readPool.getConnection();
+    }
+
     /**
      * 创建数据库表
      */
-    private void createTables() {
+    private void createTables(Connection connection) {
         try {
             String tablePrefix = "mysql".equalsIgnoreCase(storageMode) ? config.getString("mysql.table_prefix", "kukecdk_") : "";
             
             // 根据数据库类型创建不同的SQL
             String createCDKTableSQL;
             String createRedeemedPlayersTableSQL;
+            String createRedemptionsTableSQL;
             
             if ("mysql".equalsIgnoreCase(storageMode)) {
                 // MySQL使用VARCHAR类型以支持PRIMARY KEY
@@ -99,7 +166,20 @@ public class DatabaseManager {
                 createRedeemedPlayersTableSQL = "CREATE TABLE IF NOT EXISTS " + tablePrefix + "redeemed_players (" +
                         "cdk_name VARCHAR(128) NOT NULL, " +
                         "player_name VARCHAR(60) NOT NULL, " +
-                        "PRIMARY KEY (cdk_name, player_name)" +
+                        "redeemed_at BIGINT, " +
+                        "PRIMARY KEY (cdk_name, player_name), " +
+                        "INDEX idx_" + tablePrefix + "redeemed_player (player_name)" +
+                        ") ENGINE=InnoDB DEFAULT CHARSET=utf8mb4;";
+
+                createRedemptionsTableSQL = "CREATE TABLE IF NOT EXISTS " + tablePrefix + "redemptions (" +
+                        "seq BIGINT NOT NULL AUTO_INCREMENT, " +
+                        "player_name VARCHAR(60) NOT NULL, " +
+                        "player_uuid VARCHAR(36), " +
+                        "cdk_name VARCHAR(128) NOT NULL, " +
+                        "cdk_id VARCHAR(128), " +
+                        "redeemed_at BIGINT NOT NULL, " +
+                        "source VARCHAR(16) NOT NULL, " +
+                        "PRIMARY KEY (seq)" +
                         ") ENGINE=InnoDB DEFAULT CHARSET=utf8mb4;";
             } else {
                 // SQLite使用TEXT类型
@@ -117,26 +197,88 @@ public class DatabaseManager {
                 createRedeemedPlayersTableSQL = "CREATE TABLE IF NOT EXISTS " + tablePrefix + "redeemed_players (" +
                         "cdk_name TEXT NOT NULL, " +
                         "player_name TEXT NOT NULL, " +
+                        "redeemed_at INTEGER, " +
                         "PRIMARY KEY (cdk_name, player_name)" +
                         ");";
+
+                createRedemptionsTableSQL = "CREATE TABLE IF NOT EXISTS " + tablePrefix + "redemptions (" +
+                        "seq INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                        "player_name TEXT NOT NULL, " +
+                        "player_uuid TEXT, " +
+                        "cdk_name TEXT NOT NULL, " +
+                        "cdk_id TEXT, " +
+                        "redeemed_at INTEGER NOT NULL, " +
+                        "source TEXT NOT NULL" +
+                        ");";
             }
 
             try (Statement statement = connection.createStatement()) {
                 statement.execute(createCDKTableSQL);
                 statement.execute(createRedeemedPlayersTableSQL);
+                statement.execute(createRedemptionsTableSQL);
+            }
+            addColumnIfMissing(connection, tablePrefix + "cdk", "required_permission", "mysql".equalsIgnoreCase(storageMode) ? "VARCHAR(255)" : "TEXT");
+            addColumnIfMissing(connection, tablePrefix + "cdk", "required_group", "mysql".equalsIgnoreCase(storageMode) ? "VARCHAR(128)" : "TEXT");
+            addColumnIfMissing(connection, tablePrefix + "redeemed_players", "redeemed_at", "mysql".equalsIgnoreCase(storageMode) ? "BIGINT" : "INTEGER");
+            createIndex(connection, tablePrefix + "redeemed_players", "idx_" + tablePrefix + "redeemed_player", "player_name");
+            createIndex(connection, tablePrefix + "redemptions", "idx_" + tablePrefix + "redemptions_player", "player_name, seq");
+            createIndex(connection, tablePrefix + "redemptions", "idx_" + tablePrefix + "redemptions_cdk", "cdk_name, seq");
+            createIndex(connection, tablePrefix + "redemptions", "idx_" + tablePrefix + "redemptions_cdk_id", "cdk_id, seq");
+            createIndex(connection, tablePrefix + "redemptions", "idx_" + tablePrefix + "redemptions_time", "redeemed_at");
+            // 按时间范围查询时先用这些索引定位起始序号
+            createIndex(connection, tablePrefix + "redemptions", "idx_" + tablePrefix + "redemptions_player_time", "player_name, redeemed_at");
+            createIndex(connection, tablePrefix + "redemptions", "idx_" + tablePrefix + "redemptions_cdk_time", "cdk_name, redeemed_at");
+            createIndex(connection, tablePrefix + "redemptions", "idx_" + tablePrefix + "redemptions_cdk_id_time", "cdk_id, redeemed_at");
+            if (networked) {
+                addColumnIfMissing(connection, tablePrefix + "cdk", "version", "BIGINT NOT NULL DEFAULT 0");
+                addColumnIfMissing(connection, tablePrefix + "cdk", "updated_at", "BIGINT NOT NULL DEFAULT 0");
+                createIndex(connection, tablePrefix + "cdk", "idx_" + tablePrefix + "cdk_updated", "updated_at");
+                try (Statement statement = connection.createStatement()) {
+                    statement.execute("CREATE TABLE IF NOT EXISTS " + tablePrefix + "cdk_tombstones (" +
+                            "name VARCHAR(128) NOT NULL, " +
+                            "deleted_at BIGINT NOT NULL, " +
+                            "PRIMARY KEY (name), " +
+                            "INDEX idx_" + tablePrefix + "cdk_tombstones_time (deleted_at)" +
+                            ") ENGINE=InnoDB DEFAULT CHARSET=utf8mb4;");
+                }
             }
-            addColumnIfMissing(tablePrefix + "cdk", "required_permission", "mysql".equalsIgnoreCase(storageMode) ? "VARCHAR(255)" : "TEXT");
-            addColumnIfMissing(tablePrefix + "cdk", "required_group", "mysql".equalsIgnoreCase(storageMode) ? "VARCHAR(128)" : "TEXT");
         } catch (SQLException e) {
             plugin.getLogger().severe("创建数据库表时出错: " + e.getMessage());
             e.printStackTrace();
         }
     }
 
+    /**
+     * 在索引不存在时创建索引
+     *
+     * @param tableName 表名
+     * @param indexName 索引名
+     * @param columns   索引字段，逗号分隔
+     */
+    private void createIndex(Connection connection, String tableName, String indexName, String columns) {
+        try (Statement statement = connection.createStatement()) {
+            if ("mysql".equalsIgnoreCase(storageMode)) {
+                // MySQL 不支持 CREATE INDEX IF NOT EXISTS，先查询是否已存在
+                try (ResultSet rs = connection.getMetaData().getIndexInfo(null, null, tableName, false, false)) {
+                    while (rs.next()) {
+                        if (indexName.equalsIgnoreCase(rs.getString("INDEX_NAME"))) {
+                            return;
+                        }
+                    }
+                }
+                statement.execute("CREATE INDEX " + indexName + " ON " + tableName + " (" + columns + ")");
+            } else {
+                statement.execute("CREATE INDEX IF NOT EXISTS " + indexName + " ON " + tableName + " (" + columns + ")");
+            }
+        } catch (SQLException e) {
+            plugin.getLogger().warning("创建索引 " + indexName + " 时出错: " + e.getMessage());
+        }
+    }
+
     /**
      * 为旧版本数据库补齐新字段。
      */
-    private void addColumnIfMissing(String tableName, String columnName, String columnType) {
+    private void addColumnIfMissing(Connection connection, String tableName, String columnName, String columnType) {
         try (Statement statement = connection.createStatement();
              ResultSet rs = statement.executeQuery("SELECT * FROM " + tableName + " WHERE 1=0")) {
             ResultSetMetaData metaData = rs.getMetaData();
@@ -162,77 +304,413 @@ public class DatabaseManager {
      *
      * @return 包含所有CDK的映射
      */
+    @Override
     public Map<String, Map<String, CDK>> loadCDKs() {
-        checkConnection();
         Map<String, Map<String, CDK>> cdkMap = new HashMap<>();
         
-        try {
+        try (Connection connection = readConnection()) {
             String tablePrefix = "mysql".equalsIgnoreCase(storageMode) ? config.getString("mysql.table_prefix", "kukecdk_") : "";
             
+            if (networked) {
+                // 先记下数据库时间再读取，读取期间的修改会在下次拉取时补上
+                syncWatermark = databaseNow(connection);
+            }
+
             // 加载所有CDK
             String selectCDKSQL = "SELECT * FROM " + tablePrefix + "cdk";
             try (Statement statement = connection.createStatement();
                  ResultSet rs = statement.executeQuery(selectCDKSQL)) {
                 
                 while (rs.next()) {
-                    String id = rs.getString("id");
-                    String name = rs.getString("name");
-                    int quantity = rs.getInt("quantity");
-                    boolean isSingleUse = rs.getBoolean("single_use");
-                    String commands = rs.getString("commands");
-                    String requiredPermission = rs.getString("required_permission");
-                    String requiredGroup = rs.getString("required_group");
-                    String expirationStr = rs.getString("expiration_date");
-                    
-                    java.util.Date expirationDate = null;
-                    if (expirationStr != null && !expirationStr.isEmpty()) {
-                        try {
-                            expirationDate = dateFormat.parse(expirationStr);
-                        } catch (ParseException e) {
-                            plugin.getLogger().warning("解析CDK " + name + " 的过期时间时出错: " + e.getMessage());
-                        }
-                    }
-                    
-                    CDK cdk = new CDK(id, name, quantity, isSingleUse, commands, expirationDate, requiredPermission, requiredGroup);
-                    cdkMap.computeIfAbsent(id, k -> new HashMap<>()).put(name, cdk);
+                    CDK cdk = readCDK(rs);
+                    cdkMap.computeIfAbsent(cdk.getId(), k -> new HashMap<>()).put(cdk.getName(), cdk);
                 }
             }
             
-            // 加载所有已兑换玩家信息
-            String selectPlayersSQL = "SELECT * FROM " + tablePrefix + "redeemed_players";
-            try (Statement statement = connection.createStatement();
-                 ResultSet rs = statement.executeQuery(selectPlayersSQL)) {
-                
+        } catch (SQLException e) {
+            plugin.getLogger().severe("从数据库加载CDK时出错: " + e.getMessage());
+            e.printStackTrace();
+        }
+        
+        return cdkMap;
+    }
+
+    /**
+     * 把查询结果的当前行转换为CDK
+     */
+    private CDK readCDK(ResultSet rs) throws SQLException {
+        String id = rs.getString("id");
+        String name = rs.getString("name");
+        int quantity = rs.getInt("quantity");
+        boolean isSingleUse = rs.getBoolean("single_use");
+        String commands = rs.getString("commands");
+        String requiredPermission = rs.getString("required_permission");
+        String requiredGroup = rs.getString("required_group");
+        String expirationStr = rs.getString("expiration_date");
+        
+        java.util.Date expirationDate = null;
+        if (expirationStr != null && !expirationStr.isEmpty()) {
+            try {
+                expirationDate = parseDate(expirationStr);
+            } catch (ParseException e) {
+                plugin.getLogger().warning("解析CDK " + name + " 的过期时间时出错: " + e.getMessage());
+            }
+        }
+        
+        CDK cdk = new CDK(id, name, quantity, isSingleUse, commands, expirationDate, requiredPermission, requiredGroup);
+        // 已兑换玩家在首次访问时再按CDK读取，避免启动时全表扫描
+        cdk.setRedeemerLoader(this::loadRedeemedPlayers);
+        if (networked) {
+            cdk.setVersion(rs.getLong("version"));
+        }
+        return cdk;
+    }
+
+    /**
+     * 读取单个CDK的已兑换玩家（走主键前缀索引）
+     *
+     * @param cdkName CDK名称
+     * @return 已兑换玩家集合，读取失败时返回 null
+     */
+    public Set<String> loadRedeemedPlayers(String cdkName) {
+        String tablePrefix = "mysql".equalsIgnoreCase(storageMode) ? config.getString("mysql.table_prefix", "kukecdk_") : "";
+        try (Connection connection = readConnection();
+             PreparedStatement ps = connection.prepareStatement("SELECT player_name FROM " + tablePrefix + "redeemed_players WHERE cdk_name = ?")) {
+            ps.setString(1, cdkName);
+            Set<String> players = new HashSet<>();
+            try (ResultSet rs = ps.executeQuery()) {
                 while (rs.next()) {
-                    String cdkName = rs.getString("cdk_name");
-                    String playerName = rs.getString("player_name");
-                    
-                    // 查找对应的CDK并添加玩家
-                    for (Map<String, CDK> cdkGroup : cdkMap.values()) {
-                        CDK cdk = cdkGroup.get(cdkName);
-                        if (cdk != null) {
-                            cdk.addRedeemedPlayer(playerName);
-                            break;
+                    players.add(rs.getString(1));
+                }
+            }
+            return players;
+        } catch (SQLException e) {
+            plugin.getLogger().severe("读取CDK " + cdkName + " 的兑换记录时出错: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * 追加一批兑换记录，整批在同一事务中提交
+     *
+     * @param records 兑换记录
+     */
+    @Override
+    public void append(List<RedemptionRecord> records) {
+        if (records.isEmpty()) {
+            return;
+        }
+        String tablePrefix = "mysql".equalsIgnoreCase(storageMode) ? config.getString("mysql.table_prefix", "kukecdk_") : "";
+        String sql = "INSERT INTO " + tablePrefix + "redemptions (player_name, player_uuid, cdk_name, cdk_id, redeemed_at, source) VALUES (?, ?, ?, ?, ?, ?)";
+        try (Connection connection = writeConnection()) {
+            connection.setAutoCommit(false);
+            try (PreparedStatement ps = connection.prepareStatement(sql)) {
+                for (RedemptionRecord record : records) {
+                    ps.setString(1, record.getPlayerName());
+                    ps.setString(2, record.getPlayerUuid() != null ? record.getPlayerUuid().toString() : null);
+                    ps.setString(3, record.getCdkName());
+                    ps.setString(4, record.getCdkId());
+                    ps.setLong(5, record.getTimestamp());
+                    ps.setString(6, record.getSource().name());
+                    ps.addBatch();
+                }
+                ps.executeBatch();
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException("写入兑换记录时出错", e);
+        }
+    }
+
+    /**
+     * 按序号键集分页查询兑换记录
+     * <p>
+     * 带起始时间的第一页先用 (条件列, redeemed_at) 索引找到时间范围内最小的序号，再从该序号开始按序号分页，
+     * 不会从头遍历该玩家或CDK的全部历史记录。
+     *
+     * @param query 查询条件
+     * @return 一页记录，查询失败时返回 null
+     */
+    @Override
+    public RedemptionPage queryRedemptions(RedemptionQuery query) {
+        String tablePrefix = "mysql".equalsIgnoreCase(storageMode) ? config.getString("mysql.table_prefix", "kukecdk_") : "";
+        StringBuilder filters = new StringBuilder();
+        List<Object> filterParams = new ArrayList<>();
+        if (query.getPlayerName() != null) {
+            filters.append(" AND player_name = ?");
+            filterParams.add(query.getPlayerName());
+        }
+        if (query.getCdkName() != null) {
+            filters.append(" AND cdk_name = ?");
+            filterParams.add(query.getCdkName());
+        }
+        if (query.getCdkId() != null) {
+            filters.append(" AND cdk_id = ?");
+            filterParams.add(query.getCdkId());
+        }
+        if (query.getFromTime() != null) {
+            filters.append(" AND redeemed_at >= ?");
+            filterParams.add(query.getFromTime());
+        }
+        if (query.getToTime() != null) {
+            filters.append(" AND redeemed_at < ?");
+            filterParams.add(query.getToTime());
+        }
+
+        try (Connection connection = readConnection()) {
+            long afterSeq = query.getAfterSeq();
+            if (afterSeq == 0L && query.getFromTime() != null) {
+                Long first = null;
+                try (PreparedStatement ps = connection.prepareStatement("SELECT MIN(seq) FROM " + tablePrefix + "redemptions WHERE 1=1" + filters)) {
+                    for (int i = 0; i < filterParams.size(); i++) {
+                        ps.setObject(i + 1, filterParams.get(i));
+                    }
+                    try (ResultSet rs = ps.executeQuery()) {
+                        if (rs.next()) {
+                            long min = rs.getLong(1);
+                            first = rs.wasNull() ? null : min;
                         }
                     }
                 }
+                if (first == null) {
+                    return RedemptionPage.EMPTY;
+                }
+                afterSeq = first - 1;
             }
-            
+
+            String sql = "SELECT seq, player_name, player_uuid, cdk_name, cdk_id, redeemed_at, source FROM "
+                    + tablePrefix + "redemptions WHERE seq > ?" + filters + " ORDER BY seq LIMIT ?";
+            List<RedemptionRecord> items = new ArrayList<>();
+            try (PreparedStatement ps = connection.prepareStatement(sql)) {
+                ps.setLong(1, afterSeq);
+                for (int i = 0; i < filterParams.size(); i++) {
+                    ps.setObject(i + 2, filterParams.get(i));
+                }
+                ps.setInt(filterParams.size() + 2, query.getLimit() + 1);
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        String uuid = rs.getString(3);
+                        items.add(new RedemptionRecord(rs.getLong(1), rs.getString(2),
+                                uuid != null ? UUID.fromString(uuid) : null,
+                                rs.getString(4), rs.getString(5), rs.getLong(6),
+                                RedemptionRecord.Source.parse(rs.getString(7))));
+                    }
+                }
+            }
+            boolean hasMore = items.size() > query.getLimit();
+            if (hasMore) {
+                items.remove(items.size() - 1);
+            }
+            return new RedemptionPage(items, hasMore);
+        } catch (SQLException | IllegalArgumentException e) {
+            plugin.getLogger().severe("查询兑换记录时出错: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * 以单行语句增量写入一批变更，整批在同一事务中提交
+     *
+     * @param mutations 变更列表
+     */
+    @Override
+    public void apply(List<CDKMutation> mutations) {
+        if (mutations.isEmpty()) {
+            return;
+        }
+        String tablePrefix = "mysql".equalsIgnoreCase(storageMode) ? config.getString("mysql.table_prefix", "kukecdk_") : "";
+        boolean isMysql = "mysql".equalsIgnoreCase(storageMode);
+
+        // 共享模式下每次修改都递增版本号并记录修改时间，供其它服务器拉取
+        String touch = networked ? ", version = version + 1, updated_at = " + NOW_MS : "";
+        String insertCDKSQL = upsertCDKSQL(tablePrefix);
+        // 共享模式下按增量更新数量，本地缓存可能落后于其它服务器已提交的扣减
+        String updateCDKSQL = "UPDATE " + tablePrefix + "cdk SET quantity = " + (networked ? "quantity + ?" : "?") + ", commands = ?, required_permission = ?, required_group = ?, expiration_date = ?" + touch + " WHERE name = ?";
+        String deleteCDKSQL = "DELETE FROM " + tablePrefix + "cdk WHERE name = ?";
+        String deleteCDKPlayersSQL = "DELETE FROM " + tablePrefix + "redeemed_players WHERE cdk_name = ?";
+        String deleteGroupPlayersSQL = "DELETE FROM " + tablePrefix + "redeemed_players WHERE cdk_name IN (SELECT name FROM " + tablePrefix + "cdk WHERE id = ?)";
+        String deleteGroupSQL = "DELETE FROM " + tablePrefix + "cdk WHERE id = ?";
+        String decrementSQL = "UPDATE " + tablePrefix + "cdk SET quantity = quantity - 1" + touch + " WHERE name = ?";
+        String tombstoneSQL = "INSERT INTO " + tablePrefix + "cdk_tombstones (name, deleted_at) VALUES (?, " + NOW_MS + ") ON DUPLICATE KEY UPDATE deleted_at = VALUES(deleted_at)";
+        String tombstoneGroupSQL = "INSERT INTO " + tablePrefix + "cdk_tombstones (name, deleted_at) SELECT name, " + NOW_MS + " FROM " + tablePrefix + "cdk WHERE id = ? ON DUPLICATE KEY UPDATE deleted_at = VALUES(deleted_at)";
+        String insertPlayerSQL = (isMysql ? "INSERT IGNORE INTO " : "INSERT OR IGNORE INTO ") + tablePrefix + "redeemed_players (cdk_name, player_name, redeemed_at) VALUES (?, ?, ?)";
+
+        Connection connection;
+        try {
+            connection = writeConnection();
         } catch (SQLException e) {
-            plugin.getLogger().severe("从数据库加载CDK时出错: " + e.getMessage());
+            plugin.getLogger().severe("获取数据库连接时出错: " + e.getMessage());
+            throw new RuntimeException("写入CDK变更到数据库时出错", e);
+        }
+        Map<String, PreparedStatement> statements = new HashMap<>();
+        try {
+            connection.setAutoCommit(false);
+            // 连续的 INSERT 合并为 JDBC 批处理，其余变更执行前先提交批次以保持顺序
+            PreparedStatement pendingInserts = null;
+            for (CDKMutation mutation : mutations) {
+                PreparedStatement ps;
+                if (mutation.getType() == CDKMutation.Type.INSERT) {
+                    pendingInserts = prepare(connection, statements, insertCDKSQL);
+                    bindCDK(pendingInserts, mutation.getCdk());
+                    pendingInserts.addBatch();
+                    continue;
+                }
+                if (pendingInserts != null) {
+                    pendingInserts.executeBatch();
+                    pendingInserts = null;
+                }
+                switch (mutation.getType()) {
+                    case UPDATE:
+                        CDK cdk = mutation.getCdk();
+                        ps = prepare(connection, statements, updateCDKSQL);
+                        ps.setInt(1, networked ? mutation.getQuantityDelta() : cdk.getQuantity());
+                        ps.setString(2, cdk.getCommands());
+                        ps.setString(3, cdk.getRequiredPermission());
+                        ps.setString(4, cdk.getRequiredGroup());
+                        ps.setString(5, formatDate(cdk.getExpirationDate()));
+                        ps.setString(6, cdk.getName());
+                        ps.executeUpdate();
+                        break;
+                    case DELETE:
+                        if (networked) {
+                            ps = prepare(connection, statements, tombstoneSQL);
+                            ps.setString(1, mutation.getName());
+                            ps.executeUpdate();
+                        }
+                        ps = prepare(connection, statements, deleteCDKPlayersSQL);
+                        ps.setString(1, mutation.getName());
+                        ps.executeUpdate();
+                        ps = prepare(connection, statements, deleteCDKSQL);
+                        ps.setString(1, mutation.getName());
+                        ps.executeUpdate();
+                        break;
+                    case DELETE_GROUP:
+                        if (networked) {
+                            ps = prepare(connection, statements, tombstoneGroupSQL);
+                            ps.setString(1, mutation.getId());
+                            ps.executeUpdate();
+                        }
+                        ps = prepare(connection, statements, deleteGroupPlayersSQL);
+                        ps.setString(1, mutation.getId());
+                        ps.executeUpdate();
+                        ps = prepare(connection, statements, deleteGroupSQL);
+                        ps.setString(1, mutation.getId());
+                        ps.executeUpdate();
+                        break;
+                    case DECREMENT:
+                        ps = prepare(connection, statements, decrementSQL);
+                        ps.setString(1, mutation.getName());
+                        ps.executeUpdate();
+                        break;
+                    case REDEEM:
+                        ps = prepare(connection, statements, insertPlayerSQL);
+                        ps.setString(1, mutation.getName());
+                        ps.setString(2, mutation.getPlayerName());
+                        ps.setLong(3, mutation.getTimestamp());
+                        ps.executeUpdate();
+                        break;
+                    default:
+                        break;
+                }
+            }
+            if (pendingInserts != null) {
+                pendingInserts.executeBatch();
+            }
+            connection.commit();
+        } catch (SQLException e) {
+            plugin.getLogger().severe("写入CDK变更到数据库时出错: " + e.getMessage());
             e.printStackTrace();
+            try {
+                connection.rollback();
+            } catch (SQLException rollbackEx) {
+                plugin.getLogger().severe("回滚事务时出错: " + rollbackEx.getMessage());
+            }
+            throw new RuntimeException("写入CDK变更到数据库时出错", e);
+        } finally {
+            for (PreparedStatement ps : statements.values()) {
+                try {
+                    ps.close();
+                } catch (SQLException ignored) {}
+            }
+            try {
+                connection.setAutoCommit(true);
+            } catch (SQLException ignored) {}
+            try {
+                connection.close();
+            } catch (SQLException ignored) {}
         }
-        
-        return cdkMap;
+    }
+
+    private PreparedStatement prepare(Connection connection, Map<String, PreparedStatement> statements, String sql) throws SQLException {
+        PreparedStatement ps = statements.get(sql);
+        if (ps == null) {
+            ps = connection.prepareStatement(sql);
+            statements.put(sql, ps);
+        }
+        return ps;
     }
 
     /**
-     * 将CDK保存到数据库
+     * 新增或覆盖一个CDK的语句，参数顺序见 {@link #bindCDK}
+     */
+    private String upsertCDKSQL(String tablePrefix) {
+        if (!"mysql".equalsIgnoreCase(storageMode)) {
+            return "INSERT OR REPLACE INTO " + tablePrefix + "cdk (id, name, quantity, single_use, commands, required_permission, required_group, expiration_date) VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
+        }
+        if (networked) {
+            return "INSERT INTO " + tablePrefix + "cdk (id, name, quantity, single_use, commands, required_permission, required_group, expiration_date, version, updated_at) VALUES (?, ?, ?, ?, ?, ?, ?, ?, 1, " + NOW_MS + ") " +
+                    "ON DUPLICATE KEY UPDATE quantity=VALUES(quantity), single_use=VALUES(single_use), commands=VALUES(commands), required_permission=VALUES(required_permission), required_group=VALUES(required_group), expiration_date=VALUES(expiration_date), version=version+1, updated_at=VALUES(updated_at)";
+        }
+        return "INSERT INTO " + tablePrefix + "cdk (id, name, quantity, single_use, commands, required_permission, required_group, expiration_date) VALUES (?, ?, ?, ?, ?, ?, ?, ?) " +
+                "ON DUPLICATE KEY UPDATE quantity=VALUES(quantity), single_use=VALUES(single_use), commands=VALUES(commands), required_permission=VALUES(required_permission), required_group=VALUES(required_group), expiration_date=VALUES(expiration_date)";
+    }
+
+    private String formatDate(java.util.Date date) {
+        if (date == null) {
+            return null;
+        }
+        // SimpleDateFormat 不是线程安全的，写入线程与同步线程共用同一实例
+        synchronized (dateFormat) {
+            return dateFormat.format(date);
+        }
+    }
+
+    private java.util.Date parseDate(String value) throws ParseException {
+        synchronized (dateFormat) {
+            return dateFormat.parse(value);
+        }
+    }
+
+    private void bindCDK(PreparedStatement ps, CDK cdk) throws SQLException {
+        ps.setString(1, cdk.getId());
+        ps.setString(2, cdk.getName());
+        ps.setInt(3, cdk.getQuantity());
+        ps.setBoolean(4, cdk.isSingleUse());
+        ps.setString(5, cdk.getCommands());
+        ps.setString(6, cdk.getRequiredPermission());
+        ps.setString(7, cdk.getRequiredGroup());
+        ps.setString(8, formatDate(cdk.getExpirationDate()));
+    }
+
+    /**
+     * 将CDK全量保存到数据库（仅用于迁移和导出，日常写入请使用 {@link #apply(List)}）
      *
      * @param cdkMap 要保存的CDK映射
      */
+    @Override
     public void saveCDKs(Map<String, Map<String, CDK>> cdkMap) {
-        checkConnection();
+        Connection connection;
+        try {
+            connection = writeConnection();
+        } catch (SQLException e) {
+            plugin.getLogger().severe("获取数据库连接时出错: " + e.getMessage());
+            throw new RuntimeException("保存CDK到数据库时出错", e);
+        }
         try {
             String tablePrefix = "mysql".equalsIgnoreCase(storageMode) ? config.getString("mysql.table_prefix", "kukecdk_") : "";
             boolean isMysql = "mysql".equalsIgnoreCase(storageMode);
@@ -249,7 +727,7 @@ public class DatabaseManager {
                 }
             } catch (SQLException e) {
                 // 如果查询失败，可能是表不存在，尝试重新创建
-                createTables();
+                createTables(connection);
                 // 再次尝试查询，如果还失败则抛出异常
                 try (Statement stmt = connection.createStatement();
                      ResultSet rs = stmt.executeQuery("SELECT name FROM " + tablePrefix + "cdk")) {
@@ -268,6 +746,11 @@ public class DatabaseManager {
             // 3. 计算需要删除的CDK (数据库中有但内存中没有的)
             Set<String> toDelete = new HashSet<>(dbCDKNames);
             toDelete.removeAll(memoryCDKNames);
+            if (networked && !toDelete.isEmpty()) {
+                // 共享模式下其它服务器新建的CDK不在本服内存中，只写入不删除
+                plugin.getLogger().info("多服共享模式下保留数据库中其它服务器的 " + toDelete.size() + " 个CDK");
+                toDelete.clear();
+            }
 
             // 开始事务
             connection.setAutoCommit(false);
@@ -290,42 +773,22 @@ public class DatabaseManager {
             }
             
             // 5. 更新或插入CDK
-            String upsertCDKSQL;
-            if (isMysql) {
-                upsertCDKSQL = "INSERT INTO " + tablePrefix + "cdk (id, name, quantity, single_use, commands, required_permission, required_group, expiration_date) VALUES (?, ?, ?, ?, ?, ?, ?, ?) " +
-                        "ON DUPLICATE KEY UPDATE quantity=VALUES(quantity), single_use=VALUES(single_use), commands=VALUES(commands), required_permission=VALUES(required_permission), required_group=VALUES(required_group), expiration_date=VALUES(expiration_date)";
-            } else {
-                upsertCDKSQL = "INSERT OR REPLACE INTO " + tablePrefix + "cdk (id, name, quantity, single_use, commands, required_permission, required_group, expiration_date) VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
-            }
+            String upsertCDKSQL = upsertCDKSQL(tablePrefix);
 
-            // 对于 redeemed_players，简单起见，先删除该CDK的记录再插入新的
-            String deleteCDKPlayersSQL = "DELETE FROM " + tablePrefix + "redeemed_players WHERE cdk_name = ?";
-            String insertPlayerSQL = "INSERT INTO " + tablePrefix + "redeemed_players (cdk_name, player_name) VALUES (?, ?)";
+            // 兑换记录只增不减，已存在的行保持原兑换时间，只补写缺少的行
+            String insertPlayerSQL = (isMysql ? "INSERT IGNORE INTO " : "INSERT OR IGNORE INTO ") + tablePrefix + "redeemed_players (cdk_name, player_name) VALUES (?, ?)";
 
             try (PreparedStatement cdkStatement = connection.prepareStatement(upsertCDKSQL);
-                 PreparedStatement delPlayersStmt = connection.prepareStatement(deleteCDKPlayersSQL);
                  PreparedStatement insPlayersStmt = connection.prepareStatement(insertPlayerSQL)) {
                 
                 for (Map.Entry<String, Map<String, CDK>> entry : cdkMap.entrySet()) {
                     for (CDK cdk : entry.getValue().values()) {
                         // Upsert CDK
-                        cdkStatement.setString(1, cdk.getId());
-                        cdkStatement.setString(2, cdk.getName());
-                        cdkStatement.setInt(3, cdk.getQuantity());
-                        cdkStatement.setBoolean(4, cdk.isSingleUse());
-                        cdkStatement.setString(5, cdk.getCommands());
-                        cdkStatement.setString(6, cdk.getRequiredPermission());
-                        cdkStatement.setString(7, cdk.getRequiredGroup());
-                        cdkStatement.setString(8, cdk.getExpirationDate() != null ? dateFormat.format(cdk.getExpirationDate()) : null);
+                        bindCDK(cdkStatement, cdk);
                         cdkStatement.executeUpdate();
                         
-                        // 更新玩家列表
-                        // 先删除旧的
-                        delPlayersStmt.setString(1, cdk.getName());
-                        delPlayersStmt.executeUpdate();
-
-                        // 插入新的
-                        if (cdk.getRedeemedPlayers() != null && !cdk.getRedeemedPlayers().isEmpty()) {
+                        // 补写玩家列表；尚未加载的列表就在数据库中，不需要补写
+                        if (cdk.isRedeemedPlayersLoaded() && !cdk.getRedeemedPlayers().isEmpty()) {
                             for (String playerName : cdk.getRedeemedPlayers()) {
                                 insPlayersStmt.setString(1, cdk.getName());
                                 insPlayersStmt.setString(2, playerName);
@@ -354,20 +817,276 @@ public class DatabaseManager {
                 rollbackEx.printStackTrace();
             }
             throw new RuntimeException("保存CDK到数据库时出错", e);
+        } finally {
+            try {
+                connection.close();
+            } catch (SQLException ignored) {}
         }
     }
 
     /**
-     * 关闭数据库连接
+     * 是否处于多服共享模式
+     *
+     * @return 共享模式返回true
      */
-    public void close() {
+    public boolean isNetworked() {
+        return networked;
+    }
+
+    private long databaseNow(Connection connection) throws SQLException {
+        try (Statement statement = connection.createStatement();
+             ResultSet rs = statement.executeQuery("SELECT " + NOW_MS)) {
+            rs.next();
+            return rs.getLong(1);
+        }
+    }
+
+    /**
+     * 从数据库读取单个CDK，用于共享模式下本地缓存中还没有的CDK
+     *
+     * @param cdkName CDK名称
+     * @return CDK对象，不存在或读取失败时返回 null
+     */
+    public CDK loadCDK(String cdkName) {
+        String tablePrefix = "mysql".equalsIgnoreCase(storageMode) ? config.getString("mysql.table_prefix", "kukecdk_") : "";
+        try (Connection connection = readConnection();
+             PreparedStatement ps = connection.prepareStatement("SELECT * FROM " + tablePrefix + "cdk WHERE name = ?")) {
+            ps.setString(1, cdkName);
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next() ? readCDK(rs) : null;
+            }
+        } catch (SQLException e) {
+            plugin.getLogger().warning("读取CDK " + cdkName + " 时出错: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * 在数据库中按条件兑换一批CDK，整批在同一事务中提交
+     * <p>
+     * 一次性CDK只有在数量大于0时才会被删除；多次使用的CDK先写入兑换玩家（已存在则视为重复兑换），
+     * 再在数量大于0时减一，数量用完时删除。各服务器同时兑换同一个CDK时由数据库的行锁保证不会多扣。
+     * 每项的结果写回对应的 {@link Claim}。
+     *
+     * @param claims 兑换请求
+     * @throws RuntimeException 数据库出错时抛出，整批回滚
+     */
+    public void claim(List<Claim> claims) {
+        if (claims.isEmpty()) {
+            return;
+        }
+        String tablePrefix = config.getString("mysql.table_prefix", "kukecdk_");
+        String touch = ", version = version + 1, updated_at = " + NOW_MS;
+        String claimSingleSQL = "DELETE FROM " + tablePrefix + "cdk WHERE name = ? AND quantity > 0";
+        String insertPlayerSQL = "INSERT IGNORE INTO " + tablePrefix + "redeemed_players (cdk_name, player_name, redeemed_at) VALUES (?, ?, ?)";
+        String removePlayerSQL = "DELETE FROM " + tablePrefix + "redeemed_players WHERE cdk_name = ? AND player_name = ?";
+        String decrementSQL = "UPDATE " + tablePrefix + "cdk SET quantity = quantity - 1" + touch + " WHERE name = ? AND quantity > 0";
+        String selectSQL = "SELECT quantity, version FROM " + tablePrefix + "cdk WHERE name = ?";
+        String deleteCDKSQL = "DELETE FROM " + tablePrefix + "cdk WHERE name = ?";
+        String deletePlayersSQL = "DELETE FROM " + tablePrefix + "redeemed_players WHERE cdk_name = ?";
+        String tombstoneSQL = "INSERT INTO " + tablePrefix + "cdk_tombstones (name, deleted_at) VALUES (?, " + NOW_MS + ") ON DUPLICATE KEY UPDATE deleted_at = VALUES(deleted_at)";
+
+        Connection connection;
         try {
-            if (connection != null && !connection.isClosed()) {
+            connection = writeConnection();
+        } catch (SQLException e) {
+            throw new RuntimeException("兑换CDK时出错", e);
+        }
+        Map<String, PreparedStatement> statements = new HashMap<>();
+        try {
+            connection.setAutoCommit(false);
+            for (Claim claim : claims) {
+                PreparedStatement ps;
+                boolean removed;
+                if (claim.singleUse) {
+                    ps = prepare(connection, statements, claimSingleSQL);
+                    ps.setString(1, claim.cdkName);
+                    if (ps.executeUpdate() == 0) {
+                        claim.reject("CDK_NOT_FOUND");
+                        continue;
+                    }
+                    removed = true;
+                } else {
+                    ps = prepare(connection, statements, insertPlayerSQL);
+                    ps.setString(1, claim.cdkName);
+                    ps.setString(2, claim.playerName);
+                    ps.setLong(3, claim.timestamp);
+                    if (ps.executeUpdate() == 0) {
+                        claim.reject("ALREADY_REDEEMED");
+                        continue;
+                    }
+                    ps = prepare(connection, statements, decrementSQL);
+                    ps.setString(1, claim.cdkName);
+                    if (ps.executeUpdate() == 0) {
+                        // 已被删除或兑换完，撤销刚写入的兑换玩家
+                        ps = prepare(connection, statements, removePlayerSQL);
+                        ps.setString(1, claim.cdkName);
+                        ps.setString(2, claim.playerName);
+                        ps.executeUpdate();
+                        claim.reject("CDK_NOT_FOUND");
+                        continue;
+                    }
+                    ps = prepare(connection, statements, selectSQL);
+                    ps.setString(1, claim.cdkName);
+                    try (ResultSet rs = ps.executeQuery()) {
+                        rs.next();
+                        claim.remainingQuantity = Math.max(0, rs.getInt(1));
+                        claim.version = rs.getLong(2);
+                    }
+                    removed = claim.remainingQuantity <= 0;
+                    if (removed) {
+                        ps = prepare(connection, statements, deleteCDKSQL);
+                        ps.setString(1, claim.cdkName);
+                        ps.executeUpdate();
+                    }
+                }
+                if (removed) {
+                    ps = prepare(connection, statements, deletePlayersSQL);
+                    ps.setString(1, claim.cdkName);
+                    ps.executeUpdate();
+                    ps = prepare(connection, statements, tombstoneSQL);
+                    ps.setString(1, claim.cdkName);
+                    ps.executeUpdate();
+                }
+                claim.claimed = true;
+            }
+            connection.commit();
+        } catch (SQLException e) {
+            plugin.getLogger().severe("兑换CDK时出错: " + e.getMessage());
+            try {
+                connection.rollback();
+            } catch (SQLException rollbackEx) {
+                plugin.getLogger().severe("回滚事务时出错: " + rollbackEx.getMessage());
+            }
+            for (Claim claim : claims) {
+                claim.claimed = false;
+                claim.code = null;
+            }
+            throw new RuntimeException("兑换CDK时出错", e);
+        } finally {
+            for (PreparedStatement ps : statements.values()) {
+                try {
+                    ps.close();
+                } catch (SQLException ignored) {}
+            }
+            try {
+                connection.setAutoCommit(true);
+            } catch (SQLException ignored) {}
+            try {
                 connection.close();
+            } catch (SQLException ignored) {}
+        }
+    }
+
+    /**
+     * 拉取上次加载或拉取之后其它服务器的修改
+     *
+     * @return 修改的行和删除的名称，读取失败时返回 null
+     */
+    public RemoteChanges pollChanges() {
+        String tablePrefix = config.getString("mysql.table_prefix", "kukecdk_");
+        long since = syncWatermark - SYNC_OVERLAP_MS;
+        try (Connection connection = readConnection()) {
+            long now = databaseNow(connection);
+            // 先读墓碑再读数据行：删除后又重新创建的CDK两边都会出现，按此顺序应用结果正确
+            List<String> deleted = new ArrayList<>();
+            try (PreparedStatement ps = connection.prepareStatement("SELECT name FROM " + tablePrefix + "cdk_tombstones WHERE deleted_at >= ?")) {
+                ps.setLong(1, since);
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        deleted.add(rs.getString(1));
+                    }
+                }
+            }
+            List<CDK> updated = new ArrayList<>();
+            try (PreparedStatement ps = connection.prepareStatement("SELECT * FROM " + tablePrefix + "cdk WHERE updated_at >= ?")) {
+                ps.setLong(1, since);
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        updated.add(readCDK(rs));
+                    }
+                }
+            }
+            if (now - lastTombstonePrune >= 60000L) {
+                try (PreparedStatement ps = connection.prepareStatement("DELETE FROM " + tablePrefix + "cdk_tombstones WHERE deleted_at < ?")) {
+                    ps.setLong(1, now - TOMBSTONE_RETENTION_MS);
+                    ps.executeUpdate();
+                }
+                lastTombstonePrune = now;
             }
+            syncWatermark = now;
+            return new RemoteChanges(updated, deleted);
         } catch (SQLException e) {
-            plugin.getLogger().severe("关闭数据库连接时出错: " + e.getMessage());
-            e.printStackTrace();
+            plugin.getLogger().warning("拉取其它服务器的CDK修改时出错: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * 一次共享模式下的兑换请求及其结果
+     */
+    public static final class Claim {
+        private final String cdkName;
+        private final String playerName;
+        private final boolean singleUse;
+        private final long timestamp;
+        private boolean claimed;
+        private String code;
+        private int remainingQuantity;
+        private long version;
+
+        public Claim(String cdkName, String playerName, boolean singleUse) {
+            this.cdkName = cdkName;
+            this.playerName = playerName;
+            this.singleUse = singleUse;
+            this.timestamp = System.currentTimeMillis();
+        }
+
+        private void reject(String code) {
+            this.claimed = false;
+            this.code = code;
+        }
+
+        public String getCdkName() { return cdkName; }
+        public String getPlayerName() { return playerName; }
+        /** 是否兑换成功 */
+        public boolean isClaimed() { return claimed; }
+        /** 失败时的错误码：CDK_NOT_FOUND 或 ALREADY_REDEEMED */
+        public String getCode() { return code; }
+        /** 兑换后的剩余数量，用完或一次性CDK为 0 */
+        public int getRemainingQuantity() { return remainingQuantity; }
+        /** 兑换后该行的版本号，行已删除时为 0 */
+        public long getVersion() { return version; }
+    }
+
+    /**
+     * 从共享数据库拉取到的修改
+     */
+    public static final class RemoteChanges {
+        private final List<CDK> updated;
+        private final List<String> deleted;
+
+        private RemoteChanges(List<CDK> updated, List<String> deleted) {
+            this.updated = updated;
+            this.deleted = deleted;
+        }
+
+        /** 新增或修改过的CDK（数据库中的当前状态） */
+        public List<CDK> getUpdated() { return updated; }
+        /** 被删除的CDK名称 */
+        public List<String> getDeleted() { return deleted; }
+    }
+
+    /**
+     * 关闭数据库连接池
+     */
+    @Override
+    public void close() {
+        if (readPool != null && readPool != writePool) {
+            readPool.close();
+        }
+        if (writePool != null) {
+            writePool.close();
         }
     }
 }
@@ -3,28 +3,62 @@ package su.kukecdk.manager;
 import org.bukkit.configuration.file.FileConfiguration;
 import org.bukkit.configuration.file.YamlConfiguration;
 import org.bukkit.plugin.java.JavaPlugin;
+import su.kukecdk.util.AtomicFileWriter;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Queue;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * 失败尝试与临时封禁管理
+ * <p>
+ * 兑换命令可能同时来自多个区域线程（Folia）和铁砧GUI，所有记录都保存在并发Map中。
+ * 每条失败记录带有过期时间，读取时发现过期即视为重置；另有一个按创建顺序排列的过期队列，
+ * 每次记录失败时只从队首检查少量记录，无需遍历所有玩家。记录数超过上限时从最早的记录开始淘汰。
+ * <p>
+ * 封禁记录在后台线程合并写入 failed_attempts.yml，短时间内的多次封禁只重写一次文件。
+ */
 public class FailedAttemptsManager {
+    // 每次记录失败时最多检查的队首记录数
+    private static final int SWEEP_STEPS = 16;
+
     private final JavaPlugin plugin;
-    private FileConfiguration config;
     private File configFile;
+    // 封禁记录在后台线程合并写入，避免在主线程写盘
+    private final ScheduledExecutorService saveExecutor;
+    private final AtomicBoolean saveScheduled = new AtomicBoolean(false);
     
-    // 玎家失败尝试次数记录
-    private final Map<UUID, Integer> failedAttempts = new HashMap<>();
-    // 玩家失败尝试时间记录
-    private final Map<UUID, Long> failedAttemptTimes = new HashMap<>();
+    // 玩家失败尝试记录
+    private final Map<UUID, Attempts> failedAttempts = new ConcurrentHashMap<>();
+    // 失败记录的过期队列，按加入顺序排列
+    private final Queue<Expiry> expiryQueue = new ConcurrentLinkedQueue<>();
     
     // 被封禁玩家及其解封时间
-    private final Map<UUID, Long> bannedPlayers = new HashMap<>();
+    private final Map<UUID, Long> bannedPlayers = new ConcurrentHashMap<>();
+
+    private final AtomicLong attemptCount = new AtomicLong();
+    private final AtomicLong banCount = new AtomicLong();
+    private final AtomicLong expiredCount = new AtomicLong();
+    private final AtomicLong evictedCount = new AtomicLong();
     
     public FailedAttemptsManager(JavaPlugin plugin) {
         this.plugin = plugin;
+        this.saveExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "KukeCDK-Bans");
+            thread.setDaemon(true);
+            return thread;
+        });
         loadConfig();
     }
     
@@ -40,7 +74,7 @@ public class FailedAttemptsManager {
                 e.printStackTrace();
             }
         }
-        config = YamlConfiguration.loadConfiguration(configFile);
+        FileConfiguration config = YamlConfiguration.loadConfiguration(configFile);
         
         // 加载被封禁的玩家
         if (config.contains("banned_players")) {
@@ -55,23 +89,59 @@ public class FailedAttemptsManager {
     /**
      * 保存配置文件
      */
-    public void saveConfig() {
+    public synchronized void saveConfig() {
         // 清除已过期的封禁
         long currentTime = System.currentTimeMillis();
         bannedPlayers.entrySet().removeIf(entry -> entry.getValue() < currentTime);
         
-        // 保存被封禁的玩家
+        // 每次按当前封禁重新生成文件，已解封的玩家不再保留
+        YamlConfiguration config = new YamlConfiguration();
         for (Map.Entry<UUID, Long> entry : bannedPlayers.entrySet()) {
             config.set("banned_players." + entry.getKey().toString(), entry.getValue());
         }
         
         try {
-            config.save(configFile);
+            AtomicFileWriter.write(configFile, config.saveToString());
         } catch (IOException e) {
             plugin.getLogger().severe("保存失败尝试配置文件时出错！");
             e.printStackTrace();
         }
     }
+
+    /**
+     * 在后台合并写入封禁记录；未启用异步写入时立即写入
+     */
+    private void scheduleSave() {
+        if (!plugin.getConfig().getBoolean("persistence.async", true)) {
+            saveConfig();
+            return;
+        }
+        if (saveScheduled.compareAndSet(false, true)) {
+            long delay = Math.max(50L, plugin.getConfig().getLong("persistence.flush_interval_ms", 1000L));
+            try {
+                saveExecutor.schedule(() -> {
+                    saveScheduled.set(false);
+                    saveConfig();
+                }, delay, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // 插件正在卸载，由 close() 写入
+                saveScheduled.set(false);
+            }
+        }
+    }
+
+    /**
+     * 停止后台写盘线程并写入当前的封禁记录
+     */
+    public void close() {
+        saveExecutor.shutdown();
+        try {
+            saveExecutor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        saveConfig();
+    }
     
     /**
      * 记录玩家失败尝试
@@ -80,13 +150,25 @@ public class FailedAttemptsManager {
      * @return 当前失败次数
      */
     public int recordFailedAttempt(UUID uuid) {
-        // 检查是否需要重置失败尝试记录
-        checkAndResetFailedAttempts();
-        
-        int attempts = failedAttempts.getOrDefault(uuid, 0) + 1;
-        failedAttempts.put(uuid, attempts);
-        failedAttemptTimes.put(uuid, System.currentTimeMillis());
-        return attempts;
+        long now = System.currentTimeMillis();
+        long deadline = now + getResetDurationMillis();
+        attemptCount.incrementAndGet();
+        Attempts[] created = new Attempts[1];
+        Attempts attempts = failedAttempts.compute(uuid, (key, current) -> {
+            if (current == null || current.deadline <= now) {
+                // 首次失败或上次失败已超过重置时间，重新计数
+                created[0] = new Attempts(deadline);
+                return created[0];
+            }
+            current.count++;
+            current.deadline = deadline;
+            return current;
+        });
+        if (created[0] != null) {
+            expiryQueue.add(new Expiry(uuid, created[0], deadline));
+        }
+        sweep(now, SWEEP_STEPS);
+        return attempts.count;
     }
     
     /**
@@ -95,26 +177,58 @@ public class FailedAttemptsManager {
      * @param uuid 玩家UUID
      */
     public void clearFailedAttempts(UUID uuid) {
+        // 过期队列中对应的记录在检查到时丢弃
         failedAttempts.remove(uuid);
-        failedAttemptTimes.remove(uuid);
     }
-    
+
     /**
-     * 检查并重置过期的失败尝试记录
+     * 清理所有已过期的失败尝试记录，由周期任务调用
      */
-    private void checkAndResetFailedAttempts() {
-        long currentTime = System.currentTimeMillis();
-        int resetDurationMinutes = getConfigValue("failed_attempts.reset_duration", 10);
-        long resetDurationMillis = resetDurationMinutes * 60 * 1000L;
-        
-        // 移除过期的失败尝试记录
-        failedAttemptTimes.entrySet().removeIf(entry -> {
-            if (currentTime - entry.getValue() >= resetDurationMillis) {
-                failedAttempts.remove(entry.getKey());
-                return true;
+    public void purgeExpired() {
+        sweep(System.currentTimeMillis(), Integer.MAX_VALUE);
+    }
+
+    /**
+     * 从过期队列的队首开始清理：移除已过期的记录，记录数超过上限时淘汰最早的记录；
+     * 队首记录之后又有失败时移到队尾，遇到未过期的记录即停止
+     *
+     * @param now      当前时间
+     * @param maxSteps 最多检查的记录数
+     */
+    private void sweep(long now, int maxSteps) {
+        int maxTracked = Math.max(1, getConfigValue("failed_attempts.max_tracked", 10000));
+        for (int step = 0; step < maxSteps; step++) {
+            Expiry head = expiryQueue.peek();
+            if (head == null) {
+                return;
             }
-            return false;
-        });
+            if (failedAttempts.get(head.uuid) != head.attempts) {
+                // 记录已被清除或重新计数
+                expiryQueue.remove(head);
+                continue;
+            }
+            if (head.attempts.deadline <= now) {
+                if (expiryQueue.remove(head) && failedAttempts.remove(head.uuid, head.attempts)) {
+                    expiredCount.incrementAndGet();
+                }
+            } else if (failedAttempts.size() > maxTracked) {
+                if (expiryQueue.remove(head) && failedAttempts.remove(head.uuid, head.attempts)) {
+                    evictedCount.incrementAndGet();
+                }
+            } else if (head.deadline < head.attempts.deadline) {
+                // 之后又有失败，按新的过期时间排到队尾
+                if (expiryQueue.remove(head)) {
+                    expiryQueue.add(new Expiry(head.uuid, head.attempts, head.attempts.deadline));
+                }
+            } else {
+                return;
+            }
+        }
+    }
+
+    private long getResetDurationMillis() {
+        int resetDurationMinutes = getConfigValue("failed_attempts.reset_duration", 10);
+        return resetDurationMinutes * 60 * 1000L;
     }
     
     /**
@@ -125,17 +239,17 @@ public class FailedAttemptsManager {
      */
     public boolean isPlayerBanned(UUID uuid) {
         // 检查是否有封禁记录
-        if (!bannedPlayers.containsKey(uuid)) {
+        Long unbanTime = bannedPlayers.get(uuid);
+        if (unbanTime == null) {
             return false;
         }
         
         // 检查封禁是否已过期
-        long unbanTime = bannedPlayers.get(uuid);
         long currentTime = System.currentTimeMillis();
         
         if (currentTime >= unbanTime) {
-            // 封禁已过期，移除记录
-            bannedPlayers.remove(uuid);
+            // 封禁已过期，移除记录（期间被重新封禁则保留）
+            bannedPlayers.remove(uuid, unbanTime);
             return false;
         }
         
@@ -151,7 +265,10 @@ public class FailedAttemptsManager {
     public void banPlayer(UUID uuid, long banDurationMillis) {
         long unbanTime = System.currentTimeMillis() + banDurationMillis;
         bannedPlayers.put(uuid, unbanTime);
-        saveConfig();
+        // 封禁后重新计数
+        failedAttempts.remove(uuid);
+        banCount.incrementAndGet();
+        scheduleSave();
     }
     
     /**
@@ -164,6 +281,22 @@ public class FailedAttemptsManager {
         return bannedPlayers.get(uuid);
     }
     
+    /**
+     * 获取失败尝试统计
+     *
+     * @return 统计数据
+     */
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("attempts", attemptCount.get());
+        stats.put("bans", banCount.get());
+        stats.put("expired", expiredCount.get());
+        stats.put("evictions", evictedCount.get());
+        stats.put("tracked", failedAttempts.size());
+        stats.put("banned", bannedPlayers.size());
+        return stats;
+    }
+
     /**
      * 获取配置值
      * 
@@ -174,4 +307,31 @@ public class FailedAttemptsManager {
     public <T> T getConfigValue(String path, T def) {
         return (T) plugin.getConfig().get(path, def);
     }
-}
\ No newline at end of file
+
+    /**
+     * 单个玩家的失败计数，在 Map 的 compute 中修改
+     */
+    private static final class Attempts {
+        private volatile int count = 1;
+        private volatile long deadline;
+
+        private Attempts(long deadline) {
+            this.deadline = deadline;
+        }
+    }
+
+    /**
+     * 过期队列中的一项，deadline 为加入队列时记录的过期时间
+     */
+    private static final class Expiry {
+        private final UUID uuid;
+        private final Attempts attempts;
+        private final long deadline;
+
+        private Expiry(UUID uuid, Attempts attempts, long deadline) {
+            this.uuid = uuid;
+            this.attempts = attempts;
+            this.deadline = deadline;
+        }
+    }
+}
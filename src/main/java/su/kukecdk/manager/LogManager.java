@@ -4,103 +4,234 @@ import org.bukkit.configuration.file.FileConfiguration;
 import org.bukkit.configuration.file.YamlConfiguration;
 import org.bukkit.plugin.java.JavaPlugin;
 import su.kukecdk.model.CDK;
+import su.kukecdk.model.RedemptionRecord;
+import su.kukecdk.storage.FileRedemptionLogStore;
+import su.kukecdk.storage.RedemptionLogStore;
+import su.kukecdk.storage.RedemptionPage;
+import su.kukecdk.storage.RedemptionQuery;
 
 import java.io.File;
-import java.io.IOException;
+import java.text.ParseException;
 import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
- * 日志管理器类，负责处理插件的日志记录
+ * 日志管理器类，负责记录和查询兑换记录
+ * <p>
+ * 数据库模式下兑换记录写入数据库的 redemptions 表，其它模式写入 redemptions/ 目录下按天分段的日志文件。
  */
 public class LogManager {
+    // 旧版 log.yml 中每行的格式：CDK.toString() + " (兑换时间: yyyy-MM-dd HH:mm)"
+    private static final Pattern LEGACY_LINE = Pattern.compile("^CDK ID: (.*?), 名称: (.*?), .*\\(兑换时间: (\\d{4}-\\d{2}-\\d{2} \\d{2}:\\d{2})\\)$");
+
     private final JavaPlugin plugin;
-    private File logFile;
-    private FileConfiguration logConfig;
+    private final CDKManager cdkManager;
+    // 兑换记录在后台线程批量写入，避免在主线程写盘
+    private final ScheduledExecutorService saveExecutor;
+    private final AtomicBoolean saveScheduled = new AtomicBoolean(false);
+    private final ConcurrentLinkedQueue<RedemptionRecord> pending = new ConcurrentLinkedQueue<>();
+    private final Object fileLock = new Object();
+    private FileRedemptionLogStore fileStore;
 
     /**
      * 创建一个新的日志管理器
      *
-     * @param plugin 插件实例
+     * @param plugin     插件实例
+     * @param cdkManager CDK管理器，用于获取数据库模式下的记录存储
      */
-    public LogManager(JavaPlugin plugin) {
+    public LogManager(JavaPlugin plugin, CDKManager cdkManager) {
         this.plugin = plugin;
-        createLogFile();
+        this.cdkManager = cdkManager;
+        this.saveExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "KukeCDK-Log");
+            thread.setDaemon(true);
+            return thread;
+        });
+        importLegacyLog();
     }
 
     /**
-     * 创建日志文件
+     * 获取当前使用的记录存储：数据库模式下使用数据库，否则使用本地日志文件
      */
-    private void createLogFile() {
-        logFile = new File(plugin.getDataFolder(), "log.yml");
-        if (!logFile.exists()) {
-            try {
-                logFile.createNewFile();
-            } catch (IOException e) {
-                e.printStackTrace();
+    private RedemptionLogStore store() {
+        RedemptionLogStore store = cdkManager.getRedemptionLogStore();
+        return store != null ? store : fileStore();
+    }
+
+    private FileRedemptionLogStore fileStore() {
+        synchronized (fileLock) {
+            if (fileStore == null) {
+                fileStore = new FileRedemptionLogStore(plugin, plugin.getConfig().getBoolean("persistence.fsync", true));
             }
+            return fileStore;
         }
-        logConfig = YamlConfiguration.loadConfiguration(logFile);
     }
 
     /**
-     * 保存日志文件
+     * 把旧版 log.yml 中的记录导入新的记录存储，导入后重命名为 log.yml.migrated
      */
-    public synchronized void saveLog() {
+    private void importLegacyLog() {
+        File logFile = new File(plugin.getDataFolder(), "log.yml");
+        if (!logFile.isFile()) {
+            return;
+        }
+        FileConfiguration logConfig = YamlConfiguration.loadConfiguration(logFile);
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm");
+        List<RedemptionRecord> records = new ArrayList<>();
+        for (String playerName : logConfig.getKeys(false)) {
+            for (String line : logConfig.getStringList(playerName + ".used")) {
+                String cdkName = line;
+                String cdkId = null;
+                long timestamp = logFile.lastModified();
+                Matcher matcher = LEGACY_LINE.matcher(line);
+                if (matcher.matches()) {
+                    cdkId = matcher.group(1);
+                    cdkName = matcher.group(2);
+                    try {
+                        timestamp = format.parse(matcher.group(3)).getTime();
+                    } catch (ParseException ignored) {}
+                }
+                records.add(new RedemptionRecord(0L, playerName, null, cdkName, cdkId, timestamp, RedemptionRecord.Source.LEGACY));
+            }
+        }
+        records.sort(Comparator.comparingLong(RedemptionRecord::getTimestamp));
         try {
-            logConfig.save(logFile);
-        } catch (IOException e) {
-            plugin.getLogger().severe("保存日志文件时出错！");
-            e.printStackTrace();
+            store().append(records);
+        } catch (RuntimeException e) {
+            plugin.getLogger().severe("导入旧版兑换日志 log.yml 时出错，下次启动时会重试: " + e.getMessage());
+            return;
+        }
+        File migrated = new File(plugin.getDataFolder(), "log.yml.migrated");
+        if (!logFile.renameTo(migrated)) {
+            plugin.getLogger().warning("无法重命名 log.yml，请手动删除以免重复导入");
         }
+        plugin.getLogger().info("已从 log.yml 导入 " + records.size() + " 条兑换记录");
     }
 
     /**
-     * 记录CDK使用日志
-     *
-     * @param playerName 玩家名称
-     * @param cdk 使用的CDK
+     * 写入所有排队中的兑换记录；数据库写入失败时改写入本地日志文件，避免丢失记录
      */
-    public synchronized void logCDKUsage(String playerName, CDK cdk) {
-        String path = playerName + ".used";
-        List<String> usedCDKs = logConfig.getStringList(path);
-
-        // 获取当前时间
-        String currentTime = new SimpleDateFormat("yyyy-MM-dd HH:mm").format(new Date());
+    public void saveLog() {
+        synchronized (fileLock) {
+            List<RedemptionRecord> batch = new ArrayList<>();
+            RedemptionRecord record;
+            while ((record = pending.poll()) != null) {
+                batch.add(record);
+            }
+            if (batch.isEmpty()) {
+                return;
+            }
+            RedemptionLogStore store = store();
+            try {
+                store.append(batch);
+                return;
+            } catch (RuntimeException e) {
+                plugin.getLogger().severe("保存兑换记录时出错: " + e.getMessage());
+                if (store == fileStore) {
+                    return;
+                }
+            }
+            try {
+                fileStore().append(batch);
+                plugin.getLogger().warning(batch.size() + " 条兑换记录已改为写入本地 redemptions 目录");
+            } catch (RuntimeException e) {
+                plugin.getLogger().severe("保存兑换记录时出错，" + batch.size() + " 条记录丢失: " + e.getMessage());
+            }
+        }
+    }
 
-        // 使用 toString 方法记录 CDK 使用情况和兑换时间
-        usedCDKs.add(cdk.toString() + " (兑换时间: " + currentTime + ")");
-        logConfig.set(path, usedCDKs);
+    /**
+     * 在后台合并写入兑换记录；未启用异步写入时立即写入
+     */
+    private void scheduleSave() {
+        if (!plugin.getConfig().getBoolean("persistence.async", true)) {
+            saveLog();
+            return;
+        }
+        if (saveScheduled.compareAndSet(false, true)) {
+            long delay = Math.max(50L, plugin.getConfig().getLong("persistence.flush_interval_ms", 1000L));
+            saveExecutor.schedule(() -> {
+                saveScheduled.set(false);
+                saveLog();
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+    }
 
+    /**
+     * 停止后台写盘线程并写入剩余的兑换记录
+     */
+    public void close() {
+        saveExecutor.shutdown();
+        try {
+            saveExecutor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
         saveLog();
+        synchronized (fileLock) {
+            if (fileStore != null) {
+                fileStore.close();
+            }
+        }
     }
 
     /**
-     * 获取玩家使用的CDK列表
+     * 记录CDK使用日志
      *
      * @param playerName 玩家名称
-     * @return 玩家使用的CDK列表
+     * @param playerUuid 玩家UUID
+     * @param cdk 使用的CDK
+     * @param source 兑换来源
      */
-    public synchronized List<String> getPlayerUsedCDKs(String playerName) {
-        String path = playerName + ".used";
-        return logConfig.getStringList(path);
+    public void logCDKUsage(String playerName, UUID playerUuid, CDK cdk, RedemptionRecord.Source source) {
+        pending.add(RedemptionRecord.of(playerName, playerUuid, cdk, source));
+        scheduleSave();
     }
 
-    public synchronized java.util.Map<String, java.util.List<String>> getAllPlayerLogs() {
-        java.util.Map<String, java.util.List<String>> result = new java.util.LinkedHashMap<>();
-        for (String playerName : logConfig.getKeys(false)) {
-            result.put(playerName, logConfig.getStringList(playerName + ".used"));
+    /**
+     * 分页查询兑换记录，查询前会先写入排队中的记录
+     *
+     * @param query 查询条件
+     * @return 一页记录，查询失败时返回空页
+     */
+    public RedemptionPage queryRedemptions(RedemptionQuery query) {
+        if (!pending.isEmpty()) {
+            saveLog();
         }
-        return result;
+        RedemptionPage page = store().queryRedemptions(query);
+        return page != null ? page : RedemptionPage.EMPTY;
+    }
+
+    /**
+     * 分页获取玩家的兑换记录
+     *
+     * @param playerName 玩家名称
+     * @param afterSeq 上一页最后一条记录的序号，为 0 时从头开始
+     * @param limit 每页数量
+     * @return 一页记录
+     */
+    public RedemptionPage getPlayerUsedCDKs(String playerName, long afterSeq, int limit) {
+        return queryRedemptions(new RedemptionQuery(afterSeq, limit, playerName));
     }
 
     /**
-     * 获取日志配置
+     * 分页获取所有玩家的兑换记录
      *
-     * @return 日志配置
+     * @param afterSeq 上一页最后一条记录的序号，为 0 时从头开始
+     * @param limit 每页数量
+     * @return 一页记录
      */
-    public FileConfiguration getLogConfig() {
-        return logConfig;
+    public RedemptionPage getAllPlayerLogs(long afterSeq, int limit) {
+        return queryRedemptions(new RedemptionQuery(afterSeq, limit, null));
     }
 }
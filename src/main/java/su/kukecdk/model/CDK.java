@@ -1,9 +1,12 @@
 package su.kukecdk.model;
 
 import java.text.SimpleDateFormat;
+import java.util.Collections;
 import java.util.Date;
-import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
 
 /**
  * CDK模型类，表示一个CDK及其属性
@@ -11,13 +14,20 @@ import java.util.Set;
 public class CDK {
     private String id;
     private String name;
-    private int quantity;
+    // 剩余数量使用 CAS 扣减，读取无需加锁
+    private final AtomicInteger quantity;
     private boolean isSingleUse;
-    private String commands;
-    private Date expirationDate;
-    private String requiredPermission;
-    private String requiredGroup;
-    private Set<String> redeemedPlayers;
+    private volatile String commands;
+    // 按需编译的命令模板，命令修改后重新编译
+    private volatile CommandTemplate commandTemplate;
+    private volatile Date expirationDate;
+    private volatile String requiredPermission;
+    private volatile String requiredGroup;
+    // 为 null 时表示尚未加载（或一次性CDK尚无兑换记录），首次访问时通过 redeemerLoader 按需读取
+    private volatile Set<String> redeemedPlayers;
+    private Function<String, Set<String>> redeemerLoader;
+    // 多服共享模式下数据库中该行的版本号，用于忽略比本地更旧的同步数据
+    private volatile long version;
 
     /**
      * 创建一个新的CDK对象
@@ -48,13 +58,14 @@ public class CDK {
     public CDK(String id, String name, int quantity, boolean isSingleUse, String commands, Date expirationDate, String requiredPermission, String requiredGroup) {
         this.id = id;
         this.name = name;
-        this.quantity = quantity;
+        this.quantity = new AtomicInteger(quantity);
         this.isSingleUse = isSingleUse;
         this.commands = commands;
         this.expirationDate = expirationDate;
         this.requiredPermission = normalizeOptional(requiredPermission);
         this.requiredGroup = normalizeOptional(requiredGroup);
-        this.redeemedPlayers = new HashSet<>();
+        // 一次性CDK兑换后即删除，不预先分配兑换玩家集合，首次写入时再创建
+        this.redeemedPlayers = isSingleUse ? null : ConcurrentHashMap.<String>newKeySet();
     }
 
     private String normalizeOptional(String value) {
@@ -81,23 +92,42 @@ public class CDK {
      * @return 如果玩家已兑换过则返回true，否则返回false
      */
     public boolean hasPlayerRedeemed(String playerName) {
-        return redeemedPlayers.contains(playerName);
+        return loadRedeemedPlayers(false).contains(playerName);
     }
 
     /**
      * 添加已兑换玩家
      * 
      * @param playerName 玩家名称
+     * @return 如果玩家此前未兑换过则返回true
+     * @throws IllegalStateException 已兑换玩家列表加载失败
      */
-    public void addRedeemedPlayer(String playerName) {
-        redeemedPlayers.add(playerName);
+    public boolean addRedeemedPlayer(String playerName) {
+        return loadRedeemedPlayers(true).add(playerName);
     }
 
     /**
      * 减少CDK数量
      */
     public void decreaseQuantity() {
-        quantity--;
+        quantity.decrementAndGet();
+    }
+
+    /**
+     * 在剩余数量大于0时原子地减一
+     *
+     * @return 扣减成功返回true，数量已用完返回false
+     */
+    public boolean tryDecreaseQuantity() {
+        while (true) {
+            int current = quantity.get();
+            if (current <= 0) {
+                return false;
+            }
+            if (quantity.compareAndSet(current, current - 1)) {
+                return true;
+            }
+        }
     }
 
     /**
@@ -106,7 +136,7 @@ public class CDK {
      * @param amount 增加的数量
      */
     public void increaseQuantity(int amount) {
-        quantity += amount;
+        quantity.addAndGet(amount);
     }
 
     /**
@@ -133,7 +163,20 @@ public class CDK {
      * @return CDK的数量
      */
     public int getQuantity() {
-        return quantity;
+        return quantity.get();
+    }
+
+    /**
+     * 获取数据库中该行的版本号（仅多服共享模式使用）
+     *
+     * @return 版本号，未从共享数据库读取时为 0
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    public void setVersion(long version) {
+        this.version = version;
     }
 
     /**
@@ -200,11 +243,27 @@ public class CDK {
     }
 
     public void setQuantity(int quantity) {
-        this.quantity = quantity;
+        this.quantity.set(quantity);
     }
 
     public void setCommands(String commands) {
         this.commands = commands;
+        this.commandTemplate = null;
+    }
+
+    /**
+     * 获取编译后的兑换命令模板
+     *
+     * @return 与当前命令对应的模板
+     */
+    public CommandTemplate getCommandTemplate() {
+        CommandTemplate template = commandTemplate;
+        String current = commands;
+        if (template == null || template.getSource() != current) {
+            template = CommandTemplate.compile(current);
+            commandTemplate = template;
+        }
+        return template;
     }
 
     public void setExpirationDate(Date expirationDate) {
@@ -224,9 +283,10 @@ public class CDK {
      * 获取已兑换玩家列表
      * 
      * @return 已兑换玩家列表
+     * @throws IllegalStateException 已兑换玩家列表加载失败
      */
     public Set<String> getRedeemedPlayers() {
-        return redeemedPlayers;
+        return loadRedeemedPlayers(true);
     }
 
     /**
@@ -235,12 +295,69 @@ public class CDK {
      * @param redeemedPlayers 已兑换玩家列表
      */
     public void setRedeemedPlayers(Set<String> redeemedPlayers) {
-        this.redeemedPlayers = redeemedPlayers;
+        this.redeemedPlayers = concurrentCopy(redeemedPlayers);
+    }
+
+    private static Set<String> concurrentCopy(Set<String> players) {
+        Set<String> copy = ConcurrentHashMap.newKeySet(Math.max(16, players.size()));
+        copy.addAll(players);
+        return copy;
+    }
+
+    /**
+     * 设置已兑换玩家列表的延迟加载器，之前加载的列表会被丢弃
+     *
+     * @param redeemerLoader 根据CDK名称读取已兑换玩家的函数，读取失败时返回 null
+     */
+    public void setRedeemerLoader(Function<String, Set<String>> redeemerLoader) {
+        this.redeemerLoader = redeemerLoader;
+        this.redeemedPlayers = null;
+    }
+
+    /**
+     * 检查已兑换玩家列表是否已经加载到内存
+     *
+     * @return 已加载则返回true
+     */
+    public boolean isRedeemedPlayersLoaded() {
+        return redeemedPlayers != null;
+    }
+
+    /**
+     * 按需加载已兑换玩家列表，加载失败时不缓存任何列表，下次访问会重试
+     *
+     * @param forWrite 调用方是否要修改列表；只读时加载失败返回空列表，要修改时抛出异常，
+     *                 避免在不完整的列表上记录兑换导致同一玩家重复兑换
+     * @return 已兑换玩家列表
+     * @throws IllegalStateException 要修改列表但加载失败
+     */
+    private Set<String> loadRedeemedPlayers(boolean forWrite) {
+        Set<String> players = redeemedPlayers;
+        if (players != null) {
+            return players;
+        }
+        synchronized (this) {
+            if (redeemedPlayers == null) {
+                if (redeemerLoader == null) {
+                    redeemedPlayers = ConcurrentHashMap.newKeySet();
+                    return redeemedPlayers;
+                }
+                Set<String> loaded = redeemerLoader.apply(name);
+                if (loaded == null) {
+                    if (!forWrite) {
+                        return Collections.emptySet();
+                    }
+                    throw new IllegalStateException("读取CDK " + name + " 的已兑换玩家失败");
+                }
+                redeemedPlayers = concurrentCopy(loaded);
+            }
+            return redeemedPlayers;
+        }
     }
 
     @Override
     public String toString() {
         String expirationStr = expirationDate != null ? new SimpleDateFormat("yyyy-MM-dd HH:mm").format(expirationDate) : "永久有效";
-        return "CDK ID: " + id + ", 名称: " + name + ", 剩余数量: " + quantity + ", 类型: " + (isSingleUse ? "一次性" : "多次使用") + ", 有效时间: " + expirationStr;
+        return "CDK ID: " + id + ", 名称: " + name + ", 剩余数量: " + quantity.get() + ", 类型: " + (isSingleUse ? "一次性" : "多次使用") + ", 有效时间: " + expirationStr;
     }
 }
@@ -0,0 +1,339 @@
+package su.kukecdk.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 同一ID下一次性CDK的紧凑存储
+ * <p>
+ * 命令、过期时间和使用条件只在模板中保存一份；兑换码按字符编码为 long 后存放在有序数组中，
+ * 已兑换或删除的码在位图中标记，新增时合并并清理。每个码约占 8 字节，按名称顺序遍历即可用于分页。
+ * 新增的码同时登记到所有批次共用的 {@link CodeIndex}，按名称查找时不必逐个检查批次。
+ * 只有由数字、字母和下划线组成且不超过 10 个字符的名称可以编码，其它名称仍以独立的 CDK 对象保存。
+ * <p>
+ * 修改操作在本对象上加锁，读取不加锁：有序数组发布后不再修改，删除标记通过 AtomicLongArray 对读取方可见。
+ */
+public final class CodeBatch {
+    // 按 ASCII 顺序排列，编码后的数值顺序与名称的字符串顺序一致；0 表示名称结束
+    private static final String ALPHABET = "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZ_abcdefghijklmnopqrstuvwxyz";
+    private static final int BITS = 6;
+    private static final int MAX_LENGTH = 10;
+    private static final byte[] SYMBOLS = new byte[128];
+
+    static {
+        for (int i = 0; i < ALPHABET.length(); i++) {
+            SYMBOLS[ALPHABET.charAt(i)] = (byte) (i + 1);
+        }
+    }
+
+    private final CDK template;
+    private final CodeIndex codeIndex;
+    private volatile Table table = Table.EMPTY;
+    private volatile int size;
+
+    /**
+     * 以给定CDK的命令、过期时间和使用条件作为模板创建批次
+     *
+     * @param id        CDK的ID
+     * @param source    提供模板属性的CDK
+     * @param codeIndex 登记码所在批次的共用索引
+     */
+    public CodeBatch(String id, CDK source, CodeIndex codeIndex) {
+        this.codeIndex = codeIndex;
+        this.template = new CDK(id, null, 1, true, source.getCommands(), source.getExpirationDate(),
+                source.getRequiredPermission(), source.getRequiredGroup());
+    }
+
+    /**
+     * 把名称编码为 long
+     *
+     * @param name CDK名称
+     * @return 编码值，名称无法编码时返回 -1
+     */
+    public static long encode(String name) {
+        if (name == null || name.isEmpty() || name.length() > MAX_LENGTH) {
+            return -1L;
+        }
+        long value = 0L;
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            int symbol = c < 128 ? SYMBOLS[c] : 0;
+            if (symbol == 0) {
+                return -1L;
+            }
+            value |= (long) symbol << (BITS * (MAX_LENGTH - 1 - i));
+        }
+        return value;
+    }
+
+    /**
+     * 把编码值还原为名称
+     *
+     * @param value 编码值
+     * @return CDK名称
+     */
+    public static String decode(long value) {
+        char[] chars = new char[MAX_LENGTH];
+        int length = 0;
+        while (length < MAX_LENGTH) {
+            int symbol = (int) (value >>> (BITS * (MAX_LENGTH - 1 - length))) & ((1 << BITS) - 1);
+            if (symbol == 0) {
+                break;
+            }
+            chars[length++] = ALPHABET.charAt(symbol - 1);
+        }
+        return new String(chars, 0, length);
+    }
+
+    public static boolean isEncodable(String name) {
+        return encode(name) >= 0;
+    }
+
+    /**
+     * 检查CDK的属性是否与模板一致，一致时可以放入本批次
+     *
+     * @param cdk CDK对象
+     * @return 一致则返回true
+     */
+    public boolean matchesTemplate(CDK cdk) {
+        return Objects.equals(template.getId(), cdk.getId())
+                && Objects.equals(template.getCommands(), cdk.getCommands())
+                && Objects.equals(template.getExpirationDate(), cdk.getExpirationDate())
+                && Objects.equals(template.getRequiredPermission(), cdk.getRequiredPermission())
+                && Objects.equals(template.getRequiredGroup(), cdk.getRequiredGroup());
+    }
+
+    /**
+     * 获取批次共用的模板，名称为 null
+     *
+     * @return 模板CDK
+     */
+    public CDK getTemplate() {
+        return template;
+    }
+
+    /**
+     * 为指定名称创建一个CDK对象，属性取自模板，每次调用都返回新对象
+     *
+     * @param name CDK名称
+     * @return CDK对象
+     */
+    public CDK view(String name) {
+        return new CDK(template.getId(), name, 1, true, template.getCommands(), template.getExpirationDate(),
+                template.getRequiredPermission(), template.getRequiredGroup());
+    }
+
+    public boolean contains(String name) {
+        return contains(encode(name));
+    }
+
+    public boolean contains(long code) {
+        if (code < 0) {
+            return false;
+        }
+        Table current = table;
+        int index = Arrays.binarySearch(current.codes, code);
+        return index >= 0 && !current.isRemoved(index);
+    }
+
+    /**
+     * 当前有效的兑换码数量
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * 估算占用的堆内存（字节）
+     */
+    public long estimateBytes() {
+        Table current = table;
+        return current.codes.length * 8L + ((current.codes.length + 63) >>> 6) * 8L;
+    }
+
+    /**
+     * 移除一个兑换码
+     *
+     * @param name CDK名称
+     * @return 移除前存在则返回true
+     */
+    public synchronized boolean remove(String name) {
+        Table current = table;
+        int index = Arrays.binarySearch(current.codes, encode(name));
+        if (index < 0 || current.isRemoved(index)) {
+            return false;
+        }
+        current.setRemoved(index, true);
+        size--;
+        return true;
+    }
+
+    /**
+     * 撤销对兑换码的移除
+     *
+     * @param name CDK名称
+     */
+    public synchronized void restore(String name) {
+        Table current = table;
+        int index = Arrays.binarySearch(current.codes, encode(name));
+        if (index < 0) {
+            addAll(Collections.singletonList(name));
+        } else if (current.isRemoved(index)) {
+            current.setRemoved(index, false);
+            size++;
+            // 移除期间索引可能已在扩容时丢弃该码
+            codeIndex.put(current.codes[index], this);
+        }
+    }
+
+    /**
+     * 移除所有兑换码
+     */
+    public synchronized void clear() {
+        table = Table.EMPTY;
+        size = 0;
+    }
+
+    /**
+     * 批量加入兑换码，与现有数据合并为新的有序数组并清理已移除的码
+     *
+     * @param names 可编码且尚不存在的名称
+     */
+    public synchronized void addAll(Collection<String> names) {
+        long[] added = new long[names.size()];
+        int count = 0;
+        for (String name : names) {
+            long code = encode(name);
+            if (code < 0) {
+                throw new IllegalArgumentException("CDK名称无法编码: " + name);
+            }
+            added[count++] = code;
+        }
+        Arrays.sort(added, 0, count);
+
+        Table current = table;
+        long[] merged = new long[size + count];
+        int i = 0;
+        int j = 0;
+        int k = 0;
+        while (i < current.codes.length || j < count) {
+            if (i < current.codes.length && current.isRemoved(i)) {
+                i++;
+                continue;
+            }
+            long next;
+            if (j >= count || (i < current.codes.length && current.codes[i] <= added[j])) {
+                next = current.codes[i++];
+            } else {
+                next = added[j++];
+            }
+            // 重复的码只保留一个
+            if (k == 0 || merged[k - 1] != next) {
+                merged[k++] = next;
+            }
+        }
+        table = new Table(k == merged.length ? merged : Arrays.copyOf(merged, k));
+        size = k;
+        // 新数组发布后再登记：索引扩容时按 contains 丢弃失效条目，提前登记会被丢弃
+        codeIndex.putAll(added, count, this);
+    }
+
+    /**
+     * 按名称顺序遍历有效的兑换码
+     *
+     * @param start     起始名称，为 null 时从头开始
+     * @param inclusive 是否包含与起始名称相同的码
+     * @return 名称迭代器，遍历期间的修改不一定可见
+     */
+    public Iterator<String> iterator(String start, boolean inclusive) {
+        Table current = table;
+        int from = start == null ? 0 : lowerBound(current.codes, start, inclusive);
+        return new Iterator<String>() {
+            private int index = skipRemoved(from);
+
+            private int skipRemoved(int position) {
+                while (position < current.codes.length && current.isRemoved(position)) {
+                    position++;
+                }
+                return position;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return index < current.codes.length;
+            }
+
+            @Override
+            public String next() {
+                if (index >= current.codes.length) {
+                    throw new NoSuchElementException();
+                }
+                String name = decode(current.codes[index]);
+                index = skipRemoved(index + 1);
+                return name;
+            }
+        };
+    }
+
+    /**
+     * 获取所有有效兑换码的名称
+     *
+     * @return 名称列表，按名称排序
+     */
+    public List<String> names() {
+        List<String> names = new ArrayList<>(size);
+        for (Iterator<String> it = iterator(null, true); it.hasNext(); ) {
+            names.add(it.next());
+        }
+        return names;
+    }
+
+    /**
+     * 第一个大于（inclusive 时大于等于）start 的位置；start 不必可编码
+     */
+    private static int lowerBound(long[] codes, String start, boolean inclusive) {
+        int low = 0;
+        int high = codes.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            int cmp = decode(codes[mid]).compareTo(start);
+            if (cmp < 0 || (cmp == 0 && !inclusive)) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * 有序编码数组及其删除标记；数组发布后不再修改
+     */
+    private static final class Table {
+        private static final Table EMPTY = new Table(new long[0]);
+
+        private final long[] codes;
+        private final AtomicLongArray removed;
+
+        private Table(long[] codes) {
+            this.codes = codes;
+            this.removed = new AtomicLongArray((codes.length + 63) >>> 6);
+        }
+
+        private boolean isRemoved(int index) {
+            return (removed.get(index >>> 6) & (1L << index)) != 0;
+        }
+
+        private void setRemoved(int index, boolean value) {
+            long word = removed.get(index >>> 6);
+            removed.set(index >>> 6, value ? word | (1L << index) : word & ~(1L << index));
+        }
+    }
+}
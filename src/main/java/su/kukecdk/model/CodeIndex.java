@@ -0,0 +1,159 @@
+package su.kukecdk.model;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * 所有紧凑批次共用的兑换码索引：编码后的码 -> 所在批次
+ * <p>
+ * 开放寻址哈希表，查找只需一次探测序列，与批次数量无关。码从批次移除时不更新索引，
+ * 以批次的 contains 为准；扩容或 {@link #purge()} 时丢弃这些已失效的条目。
+ * <p>
+ * 写入在本对象上加锁，读取不加锁：先写批次再写码，读取方看到码时一定能看到对应的批次；扩容时整表替换。
+ */
+public final class CodeIndex {
+    private static final int MIN_CAPACITY = 16;
+
+    private volatile Table table = new Table(MIN_CAPACITY);
+
+    /**
+     * 查找码所在的批次
+     *
+     * @param code 编码后的码
+     * @return 批次，码已被移除时也可能返回原批次，调用方需再用 contains 确认
+     */
+    public CodeBatch get(long code) {
+        if (code <= 0) {
+            return null;
+        }
+        Table current = table;
+        int slot = current.slot(code);
+        while (true) {
+            long key = current.keys.get(slot);
+            if (key == code) {
+                return current.batches.get(slot);
+            }
+            if (key == 0L) {
+                return null;
+            }
+            slot = (slot + 1) & current.mask;
+        }
+    }
+
+    public synchronized void put(long code, CodeBatch batch) {
+        ensureCapacity(1);
+        table.insert(code, batch);
+    }
+
+    /**
+     * 批量登记同一批次中的码
+     *
+     * @param codes 编码后的码
+     * @param count 有效元素个数
+     * @param batch 所在批次
+     */
+    public synchronized void putAll(long[] codes, int count, CodeBatch batch) {
+        ensureCapacity(count);
+        Table current = table;
+        for (int i = 0; i < count; i++) {
+            current.insert(codes[i], batch);
+        }
+    }
+
+    public synchronized void clear() {
+        table = new Table(MIN_CAPACITY);
+    }
+
+    /**
+     * 丢弃已从批次中移除的码，删除整个批次后调用
+     */
+    public synchronized void purge() {
+        table = rehash(table, 0);
+    }
+
+    public int size() {
+        return table.used;
+    }
+
+    /**
+     * 估算占用的堆内存（字节）
+     */
+    public long estimateBytes() {
+        return table.keys.length() * 12L;
+    }
+
+    private void ensureCapacity(int extra) {
+        Table current = table;
+        // 负载因子不超过 0.75
+        if ((current.used + (long) extra) * 4 > (long) current.keys.length() * 3) {
+            table = rehash(current, extra);
+        }
+    }
+
+    /**
+     * 按仍然有效的条目数重建，容量取需要数量的两倍
+     */
+    private static Table rehash(Table current, int extra) {
+        int live = 0;
+        for (int i = 0; i < current.keys.length(); i++) {
+            long key = current.keys.get(i);
+            if (key != 0L && current.batches.get(i).contains(key)) {
+                live++;
+            }
+        }
+        long needed = Math.max(MIN_CAPACITY, (live + (long) extra) * 2);
+        if (needed > (1 << 30)) {
+            throw new IllegalStateException("兑换码数量超出索引容量");
+        }
+        Table fresh = new Table(Integer.highestOneBit((int) needed - 1) << 1);
+        for (int i = 0; i < current.keys.length(); i++) {
+            long key = current.keys.get(i);
+            if (key != 0L) {
+                CodeBatch batch = current.batches.get(i);
+                if (batch.contains(key)) {
+                    fresh.insert(key, batch);
+                }
+            }
+        }
+        return fresh;
+    }
+
+    /**
+     * 容量为 2 的幂的哈希表，0 表示空位（可编码的名称编码后不为 0）
+     */
+    private static final class Table {
+        private final AtomicLongArray keys;
+        private final AtomicReferenceArray<CodeBatch> batches;
+        private final int mask;
+        private int used;
+
+        private Table(int capacity) {
+            this.keys = new AtomicLongArray(capacity);
+            this.batches = new AtomicReferenceArray<>(capacity);
+            this.mask = capacity - 1;
+        }
+
+        private int slot(long code) {
+            long hash = code * 0x9E3779B97F4A7C15L;
+            return (int) (hash ^ (hash >>> 32)) & mask;
+        }
+
+        private void insert(long code, CodeBatch batch) {
+            int slot = slot(code);
+            while (true) {
+                long key = keys.get(slot);
+                if (key == code) {
+                    batches.set(slot, batch);
+                    return;
+                }
+                if (key == 0L) {
+                    batches.set(slot, batch);
+                    keys.set(slot, code);
+                    used++;
+                    return;
+                }
+                slot = (slot + 1) & mask;
+            }
+        }
+    }
+}
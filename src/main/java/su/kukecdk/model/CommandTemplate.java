@@ -0,0 +1,135 @@
+package su.kukecdk.model;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 预编译的CDK奖励命令
+ * <p>
+ * 命令字符串按 | 拆分后，每条命令再按 %player% 拆成若干文本片段，兑换时只需拼接玩家名，
+ * 不再每次做正则拆分和字符串替换；同时记录去掉 %player% 后是否还有其它占位符需要交给 PlaceholderAPI。
+ */
+public final class CommandTemplate {
+    private static final String PLAYER_PLACEHOLDER = "%player%";
+    private static final CommandTemplate EMPTY = new CommandTemplate(null, Collections.<Command>emptyList());
+
+    private final String source;
+    private final List<Command> commands;
+
+    private CommandTemplate(String source, List<Command> commands) {
+        this.source = source;
+        this.commands = commands;
+    }
+
+    /**
+     * 编译命令字符串
+     *
+     * @param source 以 | 分隔的命令
+     * @return 编译后的模板
+     */
+    public static CommandTemplate compile(String source) {
+        if (source == null) {
+            return EMPTY;
+        }
+        // 与 split("\\|") 一致：忽略末尾的空命令
+        int limit = source.length();
+        while (limit > 0 && source.charAt(limit - 1) == '|') {
+            limit--;
+        }
+        if (limit == 0 && !source.isEmpty()) {
+            return new CommandTemplate(source, Collections.<Command>emptyList());
+        }
+        List<Command> commands = new ArrayList<>();
+        String body = source.substring(0, limit);
+        int start = 0;
+        while (true) {
+            int end = body.indexOf('|', start);
+            commands.add(Command.compile(body.substring(start, end < 0 ? body.length() : end)));
+            if (end < 0) {
+                break;
+            }
+            start = end + 1;
+        }
+        return new CommandTemplate(source, Collections.unmodifiableList(commands));
+    }
+
+    /**
+     * 获取编译所用的原始命令字符串
+     *
+     * @return 原始命令字符串
+     */
+    public String getSource() {
+        return source;
+    }
+
+    public List<Command> getCommands() {
+        return commands;
+    }
+
+    /**
+     * 单条命令：文本片段之间是 %player% 插槽
+     */
+    public static final class Command {
+        private final String[] segments;
+        private final boolean needsPlaceholders;
+        private final int length;
+
+        private Command(String[] segments, boolean needsPlaceholders) {
+            this.segments = segments;
+            this.needsPlaceholders = needsPlaceholders;
+            int total = 0;
+            for (String segment : segments) {
+                total += segment.length();
+            }
+            this.length = total;
+        }
+
+        private static Command compile(String command) {
+            List<String> segments = new ArrayList<>();
+            int percents = 0;
+            int start = 0;
+            while (true) {
+                int slot = command.indexOf(PLAYER_PLACEHOLDER, start);
+                String segment = command.substring(start, slot < 0 ? command.length() : slot);
+                for (int i = 0; i < segment.length(); i++) {
+                    if (segment.charAt(i) == '%') percents++;
+                }
+                segments.add(segment);
+                if (slot < 0) {
+                    break;
+                }
+                start = slot + PLAYER_PLACEHOLDER.length();
+            }
+            // PAPI 占位符形如 %xxx%，至少需要两个 %
+            return new Command(segments.toArray(new String[0]), percents >= 2);
+        }
+
+        /**
+         * 用玩家名填充 %player% 插槽
+         *
+         * @param playerName 玩家名称
+         * @return 填充后的命令
+         */
+        public String render(String playerName) {
+            if (segments.length == 1) {
+                return segments[0];
+            }
+            StringBuilder builder = new StringBuilder(length + (segments.length - 1) * playerName.length());
+            builder.append(segments[0]);
+            for (int i = 1; i < segments.length; i++) {
+                builder.append(playerName).append(segments[i]);
+            }
+            return builder.toString();
+        }
+
+        /**
+         * 检查命令中是否还有需要 PlaceholderAPI 解析的占位符
+         *
+         * @return 需要解析则返回true
+         */
+        public boolean needsPlaceholders() {
+            return needsPlaceholders;
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package su.kukecdk.model;
+
+import java.util.UUID;
+
+/**
+ * 一条兑换记录
+ */
+public final class RedemptionRecord {
+    /**
+     * 兑换来源
+     */
+    public enum Source {
+        COMMAND,
+        GUI,
+        API,
+        // 从旧版 log.yml 导入的记录
+        LEGACY;
+
+        public static Source parse(String value) {
+            if (value != null) {
+                for (Source source : values()) {
+                    if (source.name().equalsIgnoreCase(value)) {
+                        return source;
+                    }
+                }
+            }
+            return LEGACY;
+        }
+    }
+
+    private final long seq;
+    private final String playerName;
+    private final UUID playerUuid;
+    private final String cdkName;
+    private final String cdkId;
+    private final long timestamp;
+    private final Source source;
+
+    /**
+     * @param seq        记录序号，由日志存储在写入时分配；尚未写入时为 0
+     * @param playerName 玩家名称
+     * @param playerUuid 玩家UUID，旧记录可能为 null
+     * @param cdkName    CDK名称
+     * @param cdkId      CDK的ID，旧记录可能为 null
+     * @param timestamp  兑换时间（毫秒）
+     * @param source     兑换来源
+     */
+    public RedemptionRecord(long seq, String playerName, UUID playerUuid, String cdkName, String cdkId, long timestamp, Source source) {
+        this.seq = seq;
+        this.playerName = playerName;
+        this.playerUuid = playerUuid;
+        this.cdkName = cdkName;
+        this.cdkId = cdkId;
+        this.timestamp = timestamp;
+        this.source = source;
+    }
+
+    /**
+     * 创建一条当前时间的兑换记录
+     *
+     * @param playerName 玩家名称
+     * @param playerUuid 玩家UUID
+     * @param cdk        兑换的CDK
+     * @param source     兑换来源
+     * @return 尚未分配序号的记录
+     */
+    public static RedemptionRecord of(String playerName, UUID playerUuid, CDK cdk, Source source) {
+        return new RedemptionRecord(0L, playerName, playerUuid, cdk.getName(), cdk.getId(), System.currentTimeMillis(), source);
+    }
+
+    public long getSeq() { return seq; }
+    public String getPlayerName() { return playerName; }
+    public UUID getPlayerUuid() { return playerUuid; }
+    public String getCdkName() { return cdkName; }
+    public String getCdkId() { return cdkId; }
+    public long getTimestamp() { return timestamp; }
+    public Source getSource() { return source; }
+}
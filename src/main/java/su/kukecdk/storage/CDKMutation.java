@@ -0,0 +1,107 @@
+package su.kukecdk.storage;
+
+import su.kukecdk.model.CDK;
+
+/**
+ * 单条CDK变更记录，由 CDKManager 产生并交给存储后端增量写入
+ */
+public final class CDKMutation {
+    /**
+     * 变更类型
+     */
+    public enum Type {
+        /** 新增一个CDK */
+        INSERT,
+        /** 更新一个CDK的属性（数量、命令、过期时间、使用条件） */
+        UPDATE,
+        /** 删除一个CDK及其兑换记录 */
+        DELETE,
+        /** 删除某个ID下的所有CDK */
+        DELETE_GROUP,
+        /** 数量减一 */
+        DECREMENT,
+        /** 追加一个已兑换玩家 */
+        REDEEM
+    }
+
+    private final Type type;
+    private final String id;
+    private final String name;
+    private final CDK cdk;
+    private final String playerName;
+    private final int quantityDelta;
+    private final long timestamp;
+
+    private CDKMutation(Type type, String id, String name, CDK cdk, String playerName) {
+        this(type, id, name, cdk, playerName, 0);
+    }
+
+    private CDKMutation(Type type, String id, String name, CDK cdk, String playerName, int quantityDelta) {
+        this.type = type;
+        this.id = id;
+        this.name = name;
+        this.cdk = cdk;
+        this.playerName = playerName;
+        this.quantityDelta = quantityDelta;
+        this.timestamp = System.currentTimeMillis();
+    }
+
+    public static CDKMutation insert(CDK cdk) {
+        return new CDKMutation(Type.INSERT, cdk.getId(), cdk.getName(), snapshot(cdk), null);
+    }
+
+    /**
+     * 更新CDK的属性
+     *
+     * @param cdk           更新后的CDK
+     * @param quantityDelta 本次修改使数量变化的值；多服共享的数据库按增量更新数量，不覆盖其它服务器的扣减
+     */
+    public static CDKMutation update(CDK cdk, int quantityDelta) {
+        return new CDKMutation(Type.UPDATE, cdk.getId(), cdk.getName(), snapshot(cdk), null, quantityDelta);
+    }
+
+    /**
+     * 复制变更发生时的CDK状态，后台延迟写入时不会读到之后的修改
+     */
+    private static CDK snapshot(CDK cdk) {
+        CDK copy = new CDK(cdk.getId(), cdk.getName(), cdk.getQuantity(), cdk.isSingleUse(), cdk.getCommands(), cdk.getExpirationDate(), cdk.getRequiredPermission(), cdk.getRequiredGroup());
+        // 未加载的兑换列表仍在存储中，无需复制
+        if (cdk.isRedeemedPlayersLoaded()) {
+            copy.getRedeemedPlayers().addAll(cdk.getRedeemedPlayers());
+        }
+        return copy;
+    }
+
+    public static CDKMutation delete(CDK cdk) {
+        return delete(cdk.getId(), cdk.getName());
+    }
+
+    /**
+     * 按ID和名称删除，用于没有独立CDK对象的批次兑换码
+     */
+    public static CDKMutation delete(String id, String name) {
+        return new CDKMutation(Type.DELETE, id, name, null, null);
+    }
+
+    public static CDKMutation deleteGroup(String id) {
+        return new CDKMutation(Type.DELETE_GROUP, id, null, null, null);
+    }
+
+    public static CDKMutation decrement(CDK cdk) {
+        return new CDKMutation(Type.DECREMENT, cdk.getId(), cdk.getName(), null, null);
+    }
+
+    public static CDKMutation redeem(CDK cdk, String playerName) {
+        return new CDKMutation(Type.REDEEM, cdk.getId(), cdk.getName(), null, playerName);
+    }
+
+    public Type getType() { return type; }
+    public String getId() { return id; }
+    public String getName() { return name; }
+    public CDK getCdk() { return cdk; }
+    public String getPlayerName() { return playerName; }
+    /** UPDATE 时数量变化的值 */
+    public int getQuantityDelta() { return quantityDelta; }
+    /** 变更产生的时间（毫秒时间戳），REDEEM 时即为兑换时间 */
+    public long getTimestamp() { return timestamp; }
+}
@@ -0,0 +1,75 @@
+package su.kukecdk.storage;
+
+import su.kukecdk.model.CDK;
+
+/**
+ * CDK分页查询条件：按名称排序，从 after 之后开始取 limit 条
+ */
+public final class CDKQuery {
+    private final String after;
+    private final int limit;
+    private final String id;
+    private final String namePrefix;
+    private final Boolean expired;
+    private final Boolean singleUse;
+
+    /**
+     * @param after      上一页最后一个CDK名称，为 null 时从头开始
+     * @param limit      本页最多返回的数量
+     * @param id         只返回该ID下的CDK，为 null 时不过滤
+     * @param namePrefix 只返回以此开头的名称，为 null 时不过滤
+     * @param expired    只返回已过期（true）或未过期（false）的CDK，为 null 时不过滤
+     * @param singleUse  只返回一次性（true）或可多次使用（false）的CDK，为 null 时不过滤
+     */
+    public CDKQuery(String after, int limit, String id, String namePrefix, Boolean expired, Boolean singleUse) {
+        this.after = after;
+        this.limit = Math.max(1, limit);
+        this.id = id;
+        this.namePrefix = namePrefix == null || namePrefix.isEmpty() ? null : namePrefix;
+        this.expired = expired;
+        this.singleUse = singleUse;
+    }
+
+    /**
+     * 检查CDK是否满足除分页位置以外的过滤条件
+     *
+     * @param cdk CDK对象
+     * @return 满足条件则返回true
+     */
+    public boolean matches(CDK cdk) {
+        if (id != null && !id.equals(cdk.getId())) return false;
+        if (namePrefix != null && !cdk.getName().startsWith(namePrefix)) return false;
+        if (expired != null && cdk.isExpired() != expired) return false;
+        if (singleUse != null && cdk.isSingleUse() != singleUse) return false;
+        return true;
+    }
+
+    /**
+     * 计算本页的起始名称（不含）：游标落在名称前缀之前时忽略游标，改为从前缀处开始
+     *
+     * @return 起始名称，为 null 时从头（或从名称前缀处）开始
+     */
+    public String startAfter() {
+        if (namePrefix == null) {
+            return after;
+        }
+        return after != null && after.compareTo(namePrefix) >= 0 ? after : null;
+    }
+
+    /**
+     * 检查名称是否已超出前缀范围，按名称排序时可据此提前结束扫描
+     *
+     * @param name CDK名称
+     * @return 已超出范围则返回true
+     */
+    public boolean isPastPrefix(String name) {
+        return namePrefix != null && !name.startsWith(namePrefix) && name.compareTo(namePrefix) > 0;
+    }
+
+    public String getAfter() { return after; }
+    public int getLimit() { return limit; }
+    public String getId() { return id; }
+    public String getNamePrefix() { return namePrefix; }
+    public Boolean getExpired() { return expired; }
+    public Boolean getSingleUse() { return singleUse; }
+}
@@ -0,0 +1,42 @@
+package su.kukecdk.storage;
+
+import su.kukecdk.model.CDK;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * CDK存储后端
+ * <p>
+ * 日常的增删改通过 {@link #apply(List)} 以单行语句增量写入；
+ * {@link #saveCDKs(Map)} 会全量重写存储，仅用于迁移和导出。
+ */
+public interface CDKStorage {
+
+    /**
+     * 加载所有CDK
+     *
+     * @return ID -> (名称 -> CDK) 的映射
+     */
+    Map<String, Map<String, CDK>> loadCDKs();
+
+    /**
+     * 按顺序增量写入一批变更
+     *
+     * @param mutations 变更列表
+     * @throws RuntimeException 写入失败时抛出
+     */
+    void apply(List<CDKMutation> mutations);
+
+    /**
+     * 全量重写存储内容（仅用于迁移和导出）
+     *
+     * @param cdkMap 要写入的全部CDK
+     */
+    void saveCDKs(Map<String, Map<String, CDK>> cdkMap);
+
+    /**
+     * 关闭存储，释放文件或连接
+     */
+    void close();
+}
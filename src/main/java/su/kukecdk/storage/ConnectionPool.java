@@ -0,0 +1,263 @@
+package su.kukecdk.storage;
+
+import org.bukkit.plugin.java.JavaPlugin;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 轻量级 JDBC 连接池
+ * <p>
+ * 每次操作借出一个连接，调用 {@link Connection#close()} 时归还到池中。
+ * 支持最小/最大连接数、空闲校验和借出超时的泄漏检测。
+ */
+public class ConnectionPool {
+    /**
+     * 创建物理连接的工厂
+     */
+    public interface ConnectionFactory {
+        Connection create() throws SQLException;
+    }
+
+    private final JavaPlugin plugin;
+    private final String name;
+    private final ConnectionFactory factory;
+    private final int minSize;
+    private final long validationIdleMillis;
+    private final long leakThresholdMillis;
+    private final long acquireTimeoutMillis;
+    private final Semaphore permits;
+    private final LinkedBlockingDeque<PooledEntry> idle = new LinkedBlockingDeque<>();
+    private final Map<PooledEntry, Boolean> borrowed = new ConcurrentHashMap<>();
+    private final AtomicInteger totalConnections = new AtomicInteger();
+    private final ScheduledExecutorService housekeeper;
+    private volatile boolean closed;
+
+    public ConnectionPool(JavaPlugin plugin, String name, ConnectionFactory factory, int minSize, int maxSize,
+                          long validationIdleMillis, long leakThresholdMillis, long acquireTimeoutMillis) {
+        this.plugin = plugin;
+        this.name = name;
+        this.factory = factory;
+        int max = Math.max(1, maxSize);
+        this.minSize = Math.max(0, Math.min(minSize, max));
+        this.validationIdleMillis = Math.max(0L, validationIdleMillis);
+        this.leakThresholdMillis = Math.max(0L, leakThresholdMillis);
+        this.acquireTimeoutMillis = Math.max(1L, acquireTimeoutMillis);
+        this.permits = new Semaphore(max, true);
+        this.housekeeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "KukeCDK-DBPool-" + name);
+            thread.setDaemon(true);
+            return thread;
+        });
+        for (int i = 0; i < this.minSize; i++) {
+            try {
+                idle.offer(new PooledEntry(factory.create()));
+                totalConnections.incrementAndGet();
+            } catch (SQLException e) {
+                plugin.getLogger().warning("连接池 " + name + " 预创建连接失败: " + e.getMessage());
+                break;
+            }
+        }
+        housekeeper.scheduleWithFixedDelay(this::housekeep, 5L, 5L, TimeUnit.SECONDS);
+    }
+
+    /**
+     * 借出一个连接，使用完毕后必须调用 close() 归还
+     *
+     * @return 池化连接
+     * @throws SQLException 等待超时或无法创建连接时抛出
+     */
+    public Connection getConnection() throws SQLException {
+        if (closed) {
+            throw new SQLException("连接池 " + name + " 已关闭");
+        }
+        try {
+            if (!permits.tryAcquire(acquireTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                throw new SQLException("等待连接池 " + name + " 超时（" + acquireTimeoutMillis + "ms）");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("等待数据库连接时被中断", e);
+        }
+        try {
+            PooledEntry entry = takeValidIdle();
+            if (entry == null) {
+                entry = new PooledEntry(factory.create());
+                totalConnections.incrementAndGet();
+            }
+            entry.borrowedAt = System.currentTimeMillis();
+            entry.borrowSite = leakThresholdMillis > 0 ? new Throwable("连接借出位置") : null;
+            entry.leakReported = false;
+            borrowed.put(entry, Boolean.TRUE);
+            return entry.proxy();
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    private PooledEntry takeValidIdle() {
+        PooledEntry entry;
+        while ((entry = idle.pollFirst()) != null) {
+            if (System.currentTimeMillis() - entry.lastUsedAt < validationIdleMillis || isValid(entry.connection)) {
+                return entry;
+            }
+            discard(entry);
+        }
+        return null;
+    }
+
+    private boolean isValid(Connection connection) {
+        try {
+            return !connection.isClosed() && connection.isValid(2);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    private void release(PooledEntry entry) {
+        if (borrowed.remove(entry) == null) {
+            return; // 重复 close
+        }
+        try {
+            boolean broken = entry.connection.isClosed();
+            if (!broken && !entry.connection.getAutoCommit()) {
+                entry.connection.rollback();
+                entry.connection.setAutoCommit(true);
+            }
+            entry.lastUsedAt = System.currentTimeMillis();
+            if (broken || closed) {
+                discard(entry);
+            } else {
+                idle.offerFirst(entry);
+            }
+        } catch (SQLException e) {
+            discard(entry);
+        } finally {
+            permits.release();
+        }
+    }
+
+    private void discard(PooledEntry entry) {
+        totalConnections.decrementAndGet();
+        try {
+            entry.connection.close();
+        } catch (SQLException ignored) {}
+    }
+
+    /**
+     * 定期任务：泄漏检测、清理失效的空闲连接并补足最小连接数
+     */
+    private void housekeep() {
+        long now = System.currentTimeMillis();
+        if (leakThresholdMillis > 0) {
+            for (PooledEntry entry : borrowed.keySet()) {
+                if (!entry.leakReported && now - entry.borrowedAt > leakThresholdMillis) {
+                    entry.leakReported = true;
+                    plugin.getLogger().warning("连接池 " + name + " 检测到可能的连接泄漏：连接已借出 " + (now - entry.borrowedAt) + "ms 未归还");
+                    if (entry.borrowSite != null) {
+                        entry.borrowSite.printStackTrace();
+                    }
+                }
+            }
+        }
+        for (PooledEntry entry : idle) {
+            if (now - entry.lastUsedAt >= validationIdleMillis && idle.remove(entry)) {
+                if (isValid(entry.connection)) {
+                    entry.lastUsedAt = now;
+                    idle.offerLast(entry);
+                } else {
+                    discard(entry);
+                }
+            }
+        }
+        while (!closed && totalConnections.get() < minSize) {
+            try {
+                idle.offerLast(new PooledEntry(factory.create()));
+                totalConnections.incrementAndGet();
+            } catch (SQLException e) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * @return 当前物理连接总数
+     */
+    public int getTotalConnections() {
+        return totalConnections.get();
+    }
+
+    /**
+     * @return 当前借出中的连接数
+     */
+    public int getActiveConnections() {
+        return borrowed.size();
+    }
+
+    /**
+     * 关闭连接池：关闭所有空闲连接，借出中的连接在归还时关闭
+     */
+    public void close() {
+        closed = true;
+        housekeeper.shutdownNow();
+        PooledEntry entry;
+        while ((entry = idle.pollFirst()) != null) {
+            discard(entry);
+        }
+    }
+
+    private final class PooledEntry {
+        private final Connection connection;
+        private volatile long lastUsedAt = System.currentTimeMillis();
+        private volatile long borrowedAt;
+        private volatile Throwable borrowSite;
+        private volatile boolean leakReported;
+
+        private PooledEntry(Connection connection) {
+            this.connection = connection;
+        }
+
+        /**
+         * 创建只拦截 close() 的代理，归还后再调用任何方法都会报错
+         */
+        private Connection proxy() {
+            final boolean[] returned = {false};
+            return (Connection) Proxy.newProxyInstance(
+                    Connection.class.getClassLoader(),
+                    new Class<?>[]{Connection.class},
+                    (proxy, method, args) -> {
+                        String methodName = method.getName();
+                        if ("close".equals(methodName)) {
+                            if (!returned[0]) {
+                                returned[0] = true;
+                                release(PooledEntry.this);
+                            }
+                            return null;
+                        }
+                        if ("isClosed".equals(methodName) && returned[0]) {
+                            return true;
+                        }
+                        if (returned[0]) {
+                            throw new SQLException("连接已归还到连接池");
+                        }
+                        try {
+                            return method.invoke(connection, args);
+                        } catch (InvocationTargetException e) {
+                            throw e.getCause();
+                        }
+                    }
+            );
+        }
+    }
+}
@@ -0,0 +1,486 @@
+package su.kukecdk.storage;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.bukkit.plugin.java.JavaPlugin;
+import su.kukecdk.model.RedemptionRecord;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * 基于文件的兑换记录存储（yaml / journal 模式使用）
+ * <p>
+ * 记录以一行 JSON 追加到 redemptions/yyyy-MM-dd.log，每天一个分段文件。
+ * 内存中只保存每条记录在文件中的位置、兑换时间以及按玩家 / CDK名称 / ID 的索引，
+ * 查询时先用索引定位候选记录，再按位置读取所需的行。
+ * 记录序号即记录在全部分段中的顺序（从 1 开始）。
+ */
+public class FileRedemptionLogStore implements RedemptionLogStore {
+    // 位置编码：高 24 位为分段编号，低 40 位为文件内偏移
+    private static final int OFFSET_BITS = 40;
+    private static final long OFFSET_MASK = (1L << OFFSET_BITS) - 1;
+
+    private final JavaPlugin plugin;
+    private final File folder;
+    private final boolean fsync;
+    private final SimpleDateFormat dayFormat = new SimpleDateFormat("yyyy-MM-dd");
+
+    private final List<File> segments = new ArrayList<>();
+    private final LongList positions = new LongList();
+    private final IntList lengths = new IntList();
+    private final LongList times = new LongList();
+    // 截至每条记录为止的最大兑换时间，单调不减，用于按时间窗口二分定位
+    private final LongList maxTimes = new LongList();
+    // 时钟回拨等原因导致的最大时间倒退量
+    private long maxSkew;
+    private final KeyIndex byPlayer = new KeyIndex();
+    private final KeyIndex byCdk = new KeyIndex();
+    private final KeyIndex byId = new KeyIndex();
+
+    private FileOutputStream out;
+    private String currentDay;
+    private long currentOffset;
+
+    public FileRedemptionLogStore(JavaPlugin plugin, boolean fsync) {
+        this.plugin = plugin;
+        this.fsync = fsync;
+        this.folder = new File(plugin.getDataFolder(), "redemptions");
+        if (!folder.exists()) {
+            folder.mkdirs();
+        }
+        load();
+    }
+
+    /**
+     * 扫描所有分段文件，重建位置和索引
+     */
+    private synchronized void load() {
+        File[] files = folder.listFiles((dir, name) -> name.endsWith(".log"));
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files);
+        int skipped = 0;
+        for (File file : files) {
+            int segment = segments.size();
+            segments.add(file);
+            try (InputStream in = new BufferedInputStream(new FileInputStream(file), 64 * 1024)) {
+                ByteArrayOutputStream line = new ByteArrayOutputStream(256);
+                long lineStart = 0L;
+                long offset = 0L;
+                int b;
+                while ((b = in.read()) != -1) {
+                    offset++;
+                    if (b != '\n') {
+                        line.write(b);
+                        continue;
+                    }
+                    if (!indexLine(segment, lineStart, line) && line.size() > 0) {
+                        skipped++;
+                    }
+                    line.reset();
+                    lineStart = offset;
+                }
+                // 没有换行结尾的最后一行是崩溃留下的半行记录，忽略
+                if (line.size() > 0) {
+                    skipped++;
+                }
+            } catch (IOException e) {
+                plugin.getLogger().severe("读取兑换记录文件 " + file.getName() + " 时出错: " + e.getMessage());
+            }
+        }
+        if (skipped > 0) {
+            plugin.getLogger().warning("兑换记录中有 " + skipped + " 行无法解析，已跳过");
+        }
+    }
+
+    private boolean indexLine(int segment, long offset, ByteArrayOutputStream line) {
+        if (line.size() == 0) {
+            return false;
+        }
+        try {
+            JsonObject json = parse(new String(line.toByteArray(), StandardCharsets.UTF_8));
+            index(segment, offset, line.size(), fromJson(json, 0L));
+            return true;
+        } catch (RuntimeException e) {
+            return false;
+        }
+    }
+
+    private void index(int segment, long offset, int length, RedemptionRecord record) {
+        int ordinal = positions.size();
+        positions.add(((long) segment << OFFSET_BITS) | offset);
+        lengths.add(length);
+        long time = record.getTimestamp();
+        long max = ordinal == 0 ? time : Math.max(maxTimes.get(ordinal - 1), time);
+        if (time < max) {
+            maxSkew = Math.max(maxSkew, max - time);
+        }
+        times.add(time);
+        maxTimes.add(max);
+        byPlayer.add(record.getPlayerName(), ordinal);
+        byCdk.add(record.getCdkName(), ordinal);
+        byId.add(record.getCdkId(), ordinal);
+    }
+
+    @Override
+    public synchronized void append(List<RedemptionRecord> records) {
+        if (records.isEmpty()) {
+            return;
+        }
+        try {
+            for (RedemptionRecord record : records) {
+                FileOutputStream stream = streamFor(record.getTimestamp());
+                long seq = positions.size() + 1L;
+                byte[] line = (toJson(record, seq).toString() + "\n").getBytes(StandardCharsets.UTF_8);
+                stream.write(line);
+                index(segments.size() - 1, currentOffset, line.length - 1, record);
+                currentOffset += line.length;
+            }
+            if (fsync) {
+                out.getChannel().force(false);
+            }
+        } catch (IOException e) {
+            closeStream();
+            throw new RuntimeException("写入兑换记录时出错", e);
+        }
+    }
+
+    /**
+     * 获取记录所属日期的分段文件；日期只向前滚动，时钟回拨时继续写入当前分段，保证序号与文件顺序一致
+     */
+    private FileOutputStream streamFor(long timestamp) throws IOException {
+        String day = dayFormat.format(new Date(timestamp));
+        if (out != null && (currentDay == null || day.compareTo(currentDay) <= 0)) {
+            return out;
+        }
+        File last = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        if (last != null && (out == null && day.compareTo(segmentDay(last)) <= 0)) {
+            // 重启后继续写入最后一个分段
+            day = segmentDay(last);
+        } else {
+            if (out != null && fsync) {
+                // 换日前先落盘上一个分段，本批中写入旧分段的记录同样受 fsync 保护
+                out.getChannel().force(false);
+            }
+            closeStream();
+            last = new File(folder, day + ".log");
+            segments.add(last);
+        }
+        terminateTornRecord(last);
+        out = new FileOutputStream(last, true);
+        currentDay = day;
+        currentOffset = last.length();
+        return out;
+    }
+
+    private static String segmentDay(File segment) {
+        String name = segment.getName();
+        return name.substring(0, name.length() - ".log".length());
+    }
+
+    /**
+     * 崩溃可能留下没有换行的半行记录，追加前补一个换行，避免新记录接在后面一起损坏
+     */
+    private void terminateTornRecord(File file) throws IOException {
+        if (!file.exists() || file.length() == 0) {
+            return;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(raf.length() - 1);
+            if (raf.read() != '\n') {
+                raf.write('\n');
+            }
+        }
+    }
+
+    @Override
+    public RedemptionPage queryRedemptions(RedemptionQuery query) {
+        int limit = query.getLimit();
+        int[] ordinals;
+        long[] found;
+        int[] sizes;
+        List<File> files;
+        synchronized (this) {
+            ordinals = findOrdinals(query, limit + 1);
+            if (ordinals == null) {
+                return RedemptionPage.EMPTY;
+            }
+            found = new long[ordinals.length];
+            sizes = new int[ordinals.length];
+            for (int i = 0; i < ordinals.length; i++) {
+                found[i] = positions.get(ordinals[i]);
+                sizes[i] = lengths.get(ordinals[i]);
+            }
+            files = new ArrayList<>(segments);
+        }
+
+        boolean hasMore = ordinals.length > limit;
+        int count = Math.min(limit, ordinals.length);
+        List<RedemptionRecord> items = new ArrayList<>(count);
+        // 已写入的行不会再修改，读取时无需持有锁
+        Map<Integer, RandomAccessFile> open = new HashMap<>();
+        try {
+            for (int i = 0; i < count; i++) {
+                int segment = (int) (found[i] >>> OFFSET_BITS);
+                RandomAccessFile raf = open.get(segment);
+                if (raf == null) {
+                    raf = new RandomAccessFile(files.get(segment), "r");
+                    open.put(segment, raf);
+                }
+                byte[] line = new byte[sizes[i]];
+                raf.seek(found[i] & OFFSET_MASK);
+                raf.readFully(line);
+                JsonObject json = parse(new String(line, StandardCharsets.UTF_8));
+                items.add(fromJson(json, ordinals[i] + 1L));
+            }
+        } catch (IOException | RuntimeException e) {
+            plugin.getLogger().severe("读取兑换记录时出错: " + e.getMessage());
+            return null;
+        } finally {
+            for (RandomAccessFile raf : open.values()) {
+                try {
+                    raf.close();
+                } catch (IOException ignored) {}
+            }
+        }
+        return new RedemptionPage(items, hasMore);
+    }
+
+    /**
+     * 在内存索引中查找满足条件的记录下标，最多 max 条
+     *
+     * @return 记录下标（升序），条件中的玩家、CDK或ID从未出现过时返回 null
+     */
+    private int[] findOrdinals(RedemptionQuery query, int max) {
+        // 序号 = 下标 + 1，从下标 afterSeq 开始
+        long start = query.getAfterSeq();
+        int end = positions.size();
+        if (query.getFromTime() != null) {
+            // 之前的记录时间都不超过截至该处的最大时间，因此都早于 fromTime
+            start = Math.max(start, maxTimes.lowerBound(query.getFromTime()));
+        }
+        if (query.getToTime() != null) {
+            // 最大时间超过 toTime + 倒退量后，后面的记录不可能早于 toTime
+            end = Math.min(end, maxTimes.lowerBound(query.getToTime() + maxSkew));
+        }
+        if (start >= end) {
+            return new int[0];
+        }
+
+        int playerCode = byPlayer.code(query.getPlayerName());
+        int cdkCode = byCdk.code(query.getCdkName());
+        int idCode = byId.code(query.getCdkId());
+        if (playerCode == KeyIndex.UNKNOWN || cdkCode == KeyIndex.UNKNOWN || idCode == KeyIndex.UNKNOWN) {
+            return null;
+        }
+        // 选择最短的倒排列表作为候选，其余条件逐条比较
+        IntList candidates = null;
+        candidates = shorter(candidates, byPlayer.postings(playerCode));
+        candidates = shorter(candidates, byCdk.postings(cdkCode));
+        candidates = shorter(candidates, byId.postings(idCode));
+
+        IntList result = new IntList();
+        int pos = candidates != null ? candidates.lowerBound((int) start) : (int) start;
+        int limit = candidates != null ? candidates.size() : end;
+        for (; pos < limit && result.size() < max; pos++) {
+            int ordinal = candidates != null ? candidates.get(pos) : pos;
+            if (ordinal >= end) {
+                break;
+            }
+            if ((playerCode == KeyIndex.ANY || byPlayer.codeAt(ordinal) == playerCode)
+                    && (cdkCode == KeyIndex.ANY || byCdk.codeAt(ordinal) == cdkCode)
+                    && (idCode == KeyIndex.ANY || byId.codeAt(ordinal) == idCode)
+                    && query.matchesTime(times.get(ordinal))) {
+                result.add(ordinal);
+            }
+        }
+        return result.slice(0, result.size());
+    }
+
+    private static IntList shorter(IntList current, IntList other) {
+        if (other == null) {
+            return current;
+        }
+        return current == null || other.size() < current.size() ? other : current;
+    }
+
+    /**
+     * @return 记录总数
+     */
+    public synchronized int size() {
+        return positions.size();
+    }
+
+    private static JsonObject toJson(RedemptionRecord record, long seq) {
+        JsonObject json = new JsonObject();
+        json.addProperty("seq", seq);
+        json.addProperty("time", record.getTimestamp());
+        json.addProperty("player", record.getPlayerName());
+        if (record.getPlayerUuid() != null) json.addProperty("uuid", record.getPlayerUuid().toString());
+        json.addProperty("cdk", record.getCdkName());
+        if (record.getCdkId() != null) json.addProperty("cdkId", record.getCdkId());
+        json.addProperty("source", record.getSource().name());
+        return json;
+    }
+
+    private static RedemptionRecord fromJson(JsonObject json, long seq) {
+        JsonElement uuid = json.get("uuid");
+        JsonElement cdkId = json.get("cdkId");
+        JsonElement source = json.get("source");
+        return new RedemptionRecord(seq,
+                json.get("player").getAsString(),
+                uuid != null && !uuid.isJsonNull() ? UUID.fromString(uuid.getAsString()) : null,
+                json.get("cdk").getAsString(),
+                cdkId != null && !cdkId.isJsonNull() ? cdkId.getAsString() : null,
+                json.get("time").getAsLong(),
+                RedemptionRecord.Source.parse(source != null && !source.isJsonNull() ? source.getAsString() : null));
+    }
+
+    @SuppressWarnings("deprecation")
+    private static JsonObject parse(String line) {
+        return new JsonParser().parse(line).getAsJsonObject();
+    }
+
+    private void closeStream() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException ignored) {}
+            out = null;
+            currentDay = null;
+        }
+    }
+
+    public synchronized void close() {
+        closeStream();
+    }
+
+    /**
+     * 只增长的 long 数组
+     */
+    private static final class LongList {
+        private long[] values = new long[1024];
+        private int size;
+
+        void add(long value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        long get(int index) { return values[index]; }
+        int size() { return size; }
+
+        /**
+         * 元素升序时使用：第一个不小于 value 的元素下标
+         */
+        int lowerBound(long value) {
+            int index = Arrays.binarySearch(values, 0, size, value);
+            if (index < 0) {
+                return -index - 1;
+            }
+            // 存在相同元素时取第一个
+            while (index > 0 && values[index - 1] == value) {
+                index--;
+            }
+            return index;
+        }
+    }
+
+    /**
+     * 字符串键的倒排索引：每个键分配一个编号，并记录每条记录对应的键编号
+     */
+    private static final class KeyIndex {
+        static final int ANY = -1;
+        static final int UNKNOWN = -2;
+        private static final int NONE = -3;
+
+        private final Map<String, Integer> codes = new HashMap<>();
+        private final List<IntList> postings = new ArrayList<>();
+        private final IntList codeByOrdinal = new IntList();
+
+        void add(String key, int ordinal) {
+            int code = NONE;
+            if (key != null) {
+                Integer existing = codes.get(key);
+                if (existing == null) {
+                    existing = postings.size();
+                    codes.put(key, existing);
+                    postings.add(new IntList());
+                }
+                code = existing;
+                postings.get(code).add(ordinal);
+            }
+            codeByOrdinal.add(code);
+        }
+
+        /**
+         * @return 键的编号；key 为 null 时返回 ANY，键不存在时返回 UNKNOWN
+         */
+        int code(String key) {
+            if (key == null) {
+                return ANY;
+            }
+            Integer code = codes.get(key);
+            return code != null ? code : UNKNOWN;
+        }
+
+        IntList postings(int code) {
+            return code >= 0 ? postings.get(code) : null;
+        }
+
+        int codeAt(int ordinal) {
+            return codeByOrdinal.get(ordinal);
+        }
+    }
+
+    /**
+     * 只增长且元素升序的 int 数组
+     */
+    private static final class IntList {
+        private int[] values = new int[4];
+        private int size;
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        int get(int index) { return values[index]; }
+        int size() { return size; }
+
+        /**
+         * @return 第一个不小于 value 的元素下标
+         */
+        int lowerBound(int value) {
+            int index = Arrays.binarySearch(values, 0, size, value);
+            return index >= 0 ? index : -index - 1;
+        }
+
+        int[] slice(int from, int count) {
+            int to = (int) Math.min(size, (long) from + count);
+            return from >= to ? new int[0] : Arrays.copyOfRange(values, from, to);
+        }
+    }
+}
@@ -0,0 +1,550 @@
+package su.kukecdk.storage;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import org.bukkit.configuration.file.FileConfiguration;
+import org.bukkit.plugin.java.JavaPlugin;
+import su.kukecdk.model.CDK;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 追加日志 + 快照的CDK存储（storage_mode: journal）
+ * <p>
+ * 每条变更以一行 JSON 追加到 cdk.journal。记录数超过阈值时把日志改名为 cdk.journal.1 并开始新的日志，
+ * 由后台线程把快照与 cdk.journal.1 合并为新的 cdk.snapshot 后删除 cdk.journal.1，写入路径上只有一次改名。
+ * 启动时先读取快照，再按序号依次重放 cdk.journal.1 和 cdk.journal 中快照之后的记录。
+ * <p>
+ * 只有当前日志的最后一行允许损坏（崩溃时写了一半），其它位置的损坏记录会使读取失败，不会被跳过后合并进快照。
+ */
+public class JournalCDKStorage implements CDKStorage {
+    private final JavaPlugin plugin;
+    private final File snapshotFile;
+    private final File journalFile;
+    // 等待合并进快照的旧日志
+    private final File rotatedFile;
+    private final String fsyncPolicy;
+    private final long fsyncIntervalMillis;
+    private final int compactThreshold;
+
+    private FileOutputStream journalStream;
+    private Writer journalWriter;
+    // 最后一条已写入记录的序号
+    private long sequence;
+    // 当前日志文件中的记录数
+    private int journalRecords;
+    private long lastSync;
+    private ExecutorService compactor;
+    private volatile boolean compacting;
+    // 每次全量保存快照时递增，后台合并期间发生过全量保存则放弃合并结果
+    private long generation;
+
+    public JournalCDKStorage(JavaPlugin plugin, FileConfiguration config) {
+        this.plugin = plugin;
+        File folder = new File(plugin.getDataFolder(), "journal");
+        if (!folder.exists()) {
+            folder.mkdirs();
+        }
+        this.snapshotFile = new File(folder, "cdk.snapshot");
+        this.journalFile = new File(folder, "cdk.journal");
+        this.rotatedFile = new File(folder, "cdk.journal.1");
+        this.fsyncPolicy = config.getString("journal.fsync", "always").toLowerCase();
+        this.fsyncIntervalMillis = Math.max(0L, config.getLong("journal.fsync_interval_ms", 1000L));
+        this.compactThreshold = Math.max(1000, config.getInt("journal.compact_threshold", 100000));
+    }
+
+    @Override
+    public synchronized Map<String, Map<String, CDK>> loadCDKs() {
+        closeWriter();
+        State state = readState(true);
+        sequence = state.sequence;
+        journalRecords = state.journalRecords;
+        if (rotatedFile.exists()) {
+            // 上次合并未完成
+            startCompaction();
+        }
+        return state.cdkMap;
+    }
+
+    @Override
+    public synchronized void apply(List<CDKMutation> mutations) {
+        if (mutations.isEmpty()) {
+            return;
+        }
+        try {
+            Writer writer = writer();
+            for (CDKMutation mutation : mutations) {
+                writer.write(encode(++sequence, mutation).toString());
+                writer.write('\n');
+                journalRecords++;
+            }
+            writer.flush();
+            sync();
+        } catch (IOException e) {
+            plugin.getLogger().severe("写入CDK日志文件时出错: " + e.getMessage());
+            // 丢弃可能只写了一半的输出流，下次写入时重新打开
+            closeWriter();
+            throw new RuntimeException("写入CDK日志文件时出错", e);
+        }
+        // 上次合并失败时保留旧日志，不再轮转，当前日志继续增长
+        if (journalRecords >= compactThreshold && !compacting && !rotatedFile.exists()) {
+            try {
+                rotate();
+            } catch (IOException e) {
+                // 改名失败不影响已写入的日志，下次写入时再试
+                plugin.getLogger().warning("轮转CDK日志时出错: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * 全量写入快照并清空日志（用于迁移和导出）
+     */
+    @Override
+    public synchronized void saveCDKs(Map<String, Map<String, CDK>> cdkMap) {
+        closeWriter();
+        try {
+            writeSnapshot(cdkMap, sequence);
+            truncateJournal();
+            Files.deleteIfExists(rotatedFile.toPath());
+            generation++;
+        } catch (IOException e) {
+            plugin.getLogger().severe("保存CDK快照时出错: " + e.getMessage());
+            throw new RuntimeException("保存CDK快照时出错", e);
+        }
+    }
+
+    @Override
+    public void close() {
+        // 合并的最后一步需要本对象的锁，不能在持有锁时等待
+        ExecutorService executor;
+        synchronized (this) {
+            executor = compactor;
+            compactor = null;
+        }
+        if (executor != null) {
+            executor.shutdown();
+            try {
+                // 未完成的合并下次启动时继续
+                executor.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (this) {
+            if (journalStream != null) {
+                try {
+                    journalWriter.flush();
+                    journalStream.getChannel().force(false);
+                } catch (IOException e) {
+                    plugin.getLogger().warning("关闭CDK日志文件时出错: " + e.getMessage());
+                }
+            }
+            closeWriter();
+        }
+    }
+
+    /**
+     * 把当前日志改名为待合并的旧日志，之后的记录写入新的日志文件
+     */
+    private void rotate() throws IOException {
+        closeWriter();
+        Files.move(journalFile.toPath(), rotatedFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        journalRecords = 0;
+        startCompaction();
+    }
+
+    private void startCompaction() {
+        if (compactor == null) {
+            compactor = Executors.newSingleThreadExecutor(r -> {
+                Thread thread = new Thread(r, "KukeCDK-Compact");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        compacting = true;
+        compactor.execute(this::compactRotated);
+    }
+
+    /**
+     * 在后台把快照与旧日志合并为新的快照，然后删除旧日志；读取和解析不持有锁，不阻塞写入
+     */
+    private void compactRotated() {
+        long start = System.currentTimeMillis();
+        long startGeneration;
+        synchronized (this) {
+            startGeneration = generation;
+        }
+        try {
+            State state = readState(false);
+            synchronized (this) {
+                if (startGeneration != generation) {
+                    return;
+                }
+                writeSnapshot(state.cdkMap, state.sequence);
+                // 快照中记录了序号，即使删除旧日志前崩溃，重放时也会跳过已合并的记录
+                Files.deleteIfExists(rotatedFile.toPath());
+            }
+            plugin.getLogger().info("CDK日志已压缩为快照，耗时 " + (System.currentTimeMillis() - start) + "ms");
+        } catch (IOException | RuntimeException e) {
+            plugin.getLogger().severe("压缩CDK日志时出错，已保留 " + rotatedFile.getName() + " 未合并: " + e.getMessage());
+        } finally {
+            compacting = false;
+        }
+    }
+
+    private Writer writer() throws IOException {
+        if (journalWriter == null) {
+            repairTornRecord();
+            journalStream = new FileOutputStream(journalFile, true);
+            journalWriter = new BufferedWriter(new OutputStreamWriter(journalStream, StandardCharsets.UTF_8), 64 * 1024);
+        }
+        return journalWriter;
+    }
+
+    /**
+     * 崩溃可能留下没有换行的最后一行：记录完整时补上换行，写了一半时截掉，
+     * 避免新记录接在后面，使这行成为日志中间的损坏记录
+     */
+    private void repairTornRecord() throws IOException {
+        if (!journalFile.exists() || journalFile.length() == 0) {
+            return;
+        }
+        try (RandomAccessFile file = new RandomAccessFile(journalFile, "rw")) {
+            long length = file.length();
+            file.seek(length - 1);
+            if (file.read() == '\n') {
+                return;
+            }
+            long lineStart = length - 1;
+            while (lineStart > 0) {
+                file.seek(lineStart - 1);
+                if (file.read() == '\n') {
+                    break;
+                }
+                lineStart--;
+            }
+            byte[] tail = new byte[(int) (length - lineStart)];
+            file.seek(lineStart);
+            file.readFully(tail);
+            if (parseRecord(new String(tail, StandardCharsets.UTF_8)) != null) {
+                file.seek(length);
+                file.write('\n');
+            } else {
+                plugin.getLogger().warning("截掉CDK日志末尾写了一半的记录（" + tail.length + " 字节）");
+                file.setLength(lineStart);
+            }
+        }
+    }
+
+    /**
+     * 按 fsync 策略刷盘：always 每批写入后刷盘，interval 按间隔刷盘，never 交给操作系统
+     */
+    private void sync() throws IOException {
+        if ("never".equals(fsyncPolicy)) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if ("interval".equals(fsyncPolicy) && now - lastSync < fsyncIntervalMillis) {
+            return;
+        }
+        journalStream.getChannel().force(false);
+        lastSync = now;
+    }
+
+    private void closeWriter() {
+        if (journalWriter != null) {
+            try {
+                journalWriter.close();
+            } catch (IOException ignored) {}
+        }
+        journalWriter = null;
+        journalStream = null;
+    }
+
+    private void truncateJournal() throws IOException {
+        try (FileOutputStream out = new FileOutputStream(journalFile, false)) {
+            out.getChannel().force(true);
+        }
+        journalRecords = 0;
+    }
+
+    private void writeSnapshot(Map<String, Map<String, CDK>> cdkMap, long lastSequence) throws IOException {
+        File temp = new File(snapshotFile.getParentFile(), snapshotFile.getName() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(temp, false);
+             Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 64 * 1024)) {
+            JsonObject header = new JsonObject();
+            header.addProperty("version", 1);
+            header.addProperty("seq", lastSequence);
+            writer.write(header.toString());
+            writer.write('\n');
+            for (Map<String, CDK> group : cdkMap.values()) {
+                for (CDK cdk : group.values()) {
+                    writer.write(encodeCDK(cdk, true).toString());
+                    writer.write('\n');
+                }
+            }
+            writer.flush();
+            out.getChannel().force(true);
+        }
+        Files.move(temp.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * 读取快照并重放旧日志，includeJournal 为 true 时再重放当前日志
+     */
+    private State readState(boolean includeJournal) {
+        State state = new State();
+        Map<String, CDK> byName = new HashMap<>();
+        long snapshotSequence = 0L;
+        if (snapshotFile.exists()) {
+            try (BufferedReader reader = Files.newBufferedReader(snapshotFile.toPath(), StandardCharsets.UTF_8)) {
+                String line = reader.readLine();
+                if (line != null && !line.isEmpty()) {
+                    snapshotSequence = parse(line).get("seq").getAsLong();
+                }
+                while ((line = reader.readLine()) != null) {
+                    if (!line.isEmpty()) {
+                        CDK cdk = decodeCDK(parse(line));
+                        put(state.cdkMap, byName, cdk);
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                throw new RuntimeException("读取CDK快照文件时出错: " + e.getMessage(), e);
+            }
+        }
+        state.sequence = snapshotSequence;
+
+        replayJournal(rotatedFile, state, byName, snapshotSequence, false);
+        if (includeJournal) {
+            state.journalRecords = replayJournal(journalFile, state, byName, snapshotSequence, true);
+        }
+        return state;
+    }
+
+    /**
+     * 按序重放一个日志文件中快照之后的记录
+     *
+     * @param allowTornTail 是否允许最后一行损坏（只有正在写入的日志可能有写了一半的记录）
+     * @return 文件中的有效记录数
+     */
+    private int replayJournal(File file, State state, Map<String, CDK> byName, long snapshotSequence, boolean allowTornTail) {
+        if (!file.exists()) {
+            return 0;
+        }
+        int records = 0;
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            int lineNumber = 0;
+            int corruptLine = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.isEmpty()) {
+                    continue;
+                }
+                if (corruptLine > 0) {
+                    break;
+                }
+                JsonObject record = parseRecord(line);
+                if (record == null) {
+                    corruptLine = lineNumber;
+                    continue;
+                }
+                records++;
+                long seq = record.get("seq").getAsLong();
+                if (seq <= snapshotSequence) {
+                    continue; // 已合并进快照
+                }
+                replay(state.cdkMap, byName, record);
+                state.sequence = Math.max(state.sequence, seq);
+            }
+            if (corruptLine > 0) {
+                if (!allowTornTail || line != null) {
+                    // 跳过中间的记录会丢失已确认的变更（例如兑换），合并后将无法恢复
+                    throw new IllegalStateException("CDK日志 " + file.getName() + " 第 " + corruptLine
+                            + " 行记录损坏，请修复或从备份恢复该文件后再启动");
+                }
+                plugin.getLogger().warning("跳过CDK日志第 " + corruptLine + " 行写了一半的记录");
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("读取CDK日志文件时出错: " + e.getMessage(), e);
+        }
+        return records;
+    }
+
+    /**
+     * 解析一行日志记录
+     *
+     * @return 记录，不是带序号的完整 JSON 对象时返回 null
+     */
+    private static JsonObject parseRecord(String line) {
+        try {
+            JsonObject record = parse(line);
+            return record.has("seq") && record.has("op") ? record : null;
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    private void replay(Map<String, Map<String, CDK>> cdkMap, Map<String, CDK> byName, JsonObject record) {
+        String op = record.get("op").getAsString();
+        CDK cdk;
+        switch (op) {
+            case "I":
+            case "U":
+                CDK incoming = decodeCDK(record.getAsJsonObject("cdk"));
+                CDK existing = byName.get(incoming.getName());
+                if ("U".equals(op) && existing != null) {
+                    // 更新只改属性，已兑换玩家沿用原记录
+                    incoming.setRedeemedPlayers(existing.getRedeemedPlayers());
+                }
+                remove(cdkMap, byName, incoming.getName());
+                put(cdkMap, byName, incoming);
+                break;
+            case "D":
+                remove(cdkMap, byName, record.get("n").getAsString());
+                break;
+            case "G":
+                Map<String, CDK> group = cdkMap.remove(record.get("i").getAsString());
+                if (group != null) {
+                    byName.keySet().removeAll(group.keySet());
+                }
+                break;
+            case "-":
+                cdk = byName.get(record.get("n").getAsString());
+                if (cdk != null) {
+                    cdk.decreaseQuantity();
+                }
+                break;
+            case "R":
+                cdk = byName.get(record.get("n").getAsString());
+                if (cdk != null) {
+                    cdk.addRedeemedPlayer(record.get("p").getAsString());
+                }
+                break;
+            default:
+                plugin.getLogger().warning("未知的CDK日志记录类型: " + op);
+                break;
+        }
+    }
+
+    private static void put(Map<String, Map<String, CDK>> cdkMap, Map<String, CDK> byName, CDK cdk) {
+        cdkMap.computeIfAbsent(cdk.getId(), k -> new HashMap<>()).put(cdk.getName(), cdk);
+        byName.put(cdk.getName(), cdk);
+    }
+
+    private static void remove(Map<String, Map<String, CDK>> cdkMap, Map<String, CDK> byName, String name) {
+        CDK removed = byName.remove(name);
+        if (removed != null) {
+            Map<String, CDK> group = cdkMap.get(removed.getId());
+            if (group != null) {
+                group.remove(name);
+            }
+        }
+    }
+
+    private JsonObject encode(long seq, CDKMutation mutation) {
+        JsonObject record = new JsonObject();
+        record.addProperty("seq", seq);
+        switch (mutation.getType()) {
+            case INSERT:
+                record.addProperty("op", "I");
+                record.add("cdk", encodeCDK(mutation.getCdk(), true));
+                break;
+            case UPDATE:
+                record.addProperty("op", "U");
+                record.add("cdk", encodeCDK(mutation.getCdk(), false));
+                break;
+            case DELETE:
+                record.addProperty("op", "D");
+                record.addProperty("n", mutation.getName());
+                break;
+            case DELETE_GROUP:
+                record.addProperty("op", "G");
+                record.addProperty("i", mutation.getId());
+                break;
+            case DECREMENT:
+                record.addProperty("op", "-");
+                record.addProperty("n", mutation.getName());
+                break;
+            case REDEEM:
+                record.addProperty("op", "R");
+                record.addProperty("n", mutation.getName());
+                record.addProperty("p", mutation.getPlayerName());
+                record.addProperty("t", mutation.getTimestamp());
+                break;
+            default:
+                break;
+        }
+        return record;
+    }
+
+    private static JsonObject encodeCDK(CDK cdk, boolean includePlayers) {
+        JsonObject json = new JsonObject();
+        json.addProperty("i", cdk.getId());
+        json.addProperty("n", cdk.getName());
+        json.addProperty("q", cdk.getQuantity());
+        json.addProperty("s", cdk.isSingleUse());
+        json.addProperty("c", cdk.getCommands());
+        if (cdk.getExpirationDate() != null) json.addProperty("e", cdk.getExpirationDate().getTime());
+        if (cdk.getRequiredPermission() != null) json.addProperty("rp", cdk.getRequiredPermission());
+        if (cdk.getRequiredGroup() != null) json.addProperty("rg", cdk.getRequiredGroup());
+        if (includePlayers && !cdk.getRedeemedPlayers().isEmpty()) {
+            JsonArray players = new JsonArray();
+            for (String player : cdk.getRedeemedPlayers()) {
+                players.add(new JsonPrimitive(player));
+            }
+            json.add("p", players);
+        }
+        return json;
+    }
+
+    private static CDK decodeCDK(JsonObject json) {
+        Date expiration = json.has("e") ? new Date(json.get("e").getAsLong()) : null;
+        CDK cdk = new CDK(
+                json.get("i").getAsString(),
+                json.get("n").getAsString(),
+                json.get("q").getAsInt(),
+                json.get("s").getAsBoolean(),
+                json.has("c") ? json.get("c").getAsString() : "",
+                expiration,
+                json.has("rp") ? json.get("rp").getAsString() : null,
+                json.has("rg") ? json.get("rg").getAsString() : null);
+        if (json.has("p")) {
+            Set<String> players = new HashSet<>();
+            for (JsonElement player : json.getAsJsonArray("p")) {
+                players.add(player.getAsString());
+            }
+            cdk.setRedeemedPlayers(players);
+        }
+        return cdk;
+    }
+
+    @SuppressWarnings("deprecation")
+    private static JsonObject parse(String line) {
+        return new JsonParser().parse(line).getAsJsonObject();
+    }
+
+    private static final class State {
+        private final Map<String, Map<String, CDK>> cdkMap = new HashMap<>();
+        private long sequence;
+        private int journalRecords;
+    }
+}
@@ -0,0 +1,27 @@
+package su.kukecdk.storage;
+
+import su.kukecdk.model.RedemptionRecord;
+
+import java.util.List;
+
+/**
+ * 兑换记录存储：只追加，按序号分页查询
+ */
+public interface RedemptionLogStore {
+
+    /**
+     * 按顺序追加一批兑换记录，序号由存储分配
+     *
+     * @param records 兑换记录
+     * @throws RuntimeException 写入失败时抛出
+     */
+    void append(List<RedemptionRecord> records);
+
+    /**
+     * 分页查询兑换记录
+     *
+     * @param query 查询条件
+     * @return 一页记录，查询失败时返回 null
+     */
+    RedemptionPage queryRedemptions(RedemptionQuery query);
+}
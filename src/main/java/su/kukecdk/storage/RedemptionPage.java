@@ -0,0 +1,31 @@
+package su.kukecdk.storage;
+
+import su.kukecdk.model.RedemptionRecord;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 一页兑换记录
+ */
+public final class RedemptionPage {
+    public static final RedemptionPage EMPTY = new RedemptionPage(Collections.<RedemptionRecord>emptyList(), false);
+
+    private final List<RedemptionRecord> items;
+    private final boolean hasMore;
+
+    public RedemptionPage(List<RedemptionRecord> items, boolean hasMore) {
+        this.items = items;
+        this.hasMore = hasMore;
+    }
+
+    public List<RedemptionRecord> getItems() { return items; }
+    public boolean hasMore() { return hasMore; }
+
+    /**
+     * @return 下一页的起始游标（本页最后一条记录的序号），没有下一页时为 0
+     */
+    public long getNextCursor() {
+        return hasMore && !items.isEmpty() ? items.get(items.size() - 1).getSeq() : 0L;
+    }
+}
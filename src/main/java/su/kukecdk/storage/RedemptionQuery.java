@@ -0,0 +1,80 @@
+package su.kukecdk.storage;
+
+import su.kukecdk.model.RedemptionRecord;
+
+/**
+ * 兑换记录分页查询条件：按记录序号升序，从 afterSeq 之后开始取 limit 条
+ */
+public final class RedemptionQuery {
+    private final long afterSeq;
+    private final int limit;
+    private final String playerName;
+    private final String cdkName;
+    private final String cdkId;
+    private final Long fromTime;
+    private final Long toTime;
+
+    /**
+     * @param afterSeq   上一页最后一条记录的序号，为 0 时从头开始
+     * @param limit      本页最多返回的数量
+     * @param playerName 只返回该玩家的记录，为 null 时不过滤
+     */
+    public RedemptionQuery(long afterSeq, int limit, String playerName) {
+        this(afterSeq, limit, playerName, null, null, null, null);
+    }
+
+    /**
+     * @param afterSeq   上一页最后一条记录的序号，为 0 时从头开始
+     * @param limit      本页最多返回的数量
+     * @param playerName 只返回该玩家的记录，为 null 时不过滤
+     * @param cdkName    只返回该CDK的记录，为 null 时不过滤
+     * @param cdkId      只返回该ID下CDK的记录，为 null 时不过滤
+     * @param fromTime   兑换时间下限（毫秒，含），为 null 时不限
+     * @param toTime     兑换时间上限（毫秒，不含），为 null 时不限
+     */
+    public RedemptionQuery(long afterSeq, int limit, String playerName, String cdkName, String cdkId, Long fromTime, Long toTime) {
+        this.afterSeq = Math.max(0L, afterSeq);
+        this.limit = Math.max(1, limit);
+        this.playerName = emptyToNull(playerName);
+        this.cdkName = emptyToNull(cdkName);
+        this.cdkId = emptyToNull(cdkId);
+        this.fromTime = fromTime;
+        this.toTime = toTime;
+    }
+
+    private static String emptyToNull(String value) {
+        return value == null || value.isEmpty() ? null : value;
+    }
+
+    /**
+     * 检查记录是否满足除分页位置以外的过滤条件
+     *
+     * @param record 兑换记录
+     * @return 满足条件则返回true
+     */
+    public boolean matches(RedemptionRecord record) {
+        if (playerName != null && !playerName.equals(record.getPlayerName())) return false;
+        if (cdkName != null && !cdkName.equals(record.getCdkName())) return false;
+        if (cdkId != null && !cdkId.equals(record.getCdkId())) return false;
+        return matchesTime(record.getTimestamp());
+    }
+
+    /**
+     * 检查兑换时间是否落在查询的时间窗口内
+     *
+     * @param timestamp 兑换时间（毫秒）
+     * @return 在窗口内则返回true
+     */
+    public boolean matchesTime(long timestamp) {
+        if (fromTime != null && timestamp < fromTime) return false;
+        return toTime == null || timestamp < toTime;
+    }
+
+    public long getAfterSeq() { return afterSeq; }
+    public int getLimit() { return limit; }
+    public String getPlayerName() { return playerName; }
+    public String getCdkName() { return cdkName; }
+    public String getCdkId() { return cdkId; }
+    public Long getFromTime() { return fromTime; }
+    public Long getToTime() { return toTime; }
+}
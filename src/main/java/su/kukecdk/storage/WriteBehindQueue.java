@@ -0,0 +1,230 @@
+package su.kukecdk.storage;
+
+import org.bukkit.plugin.java.JavaPlugin;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * CDK变更的后台批量写入队列
+ * <p>
+ * 变更先进入有界队列，由专用线程按时间间隔或批量大小合并写入存储；
+ * 队列已满时由调用线程同步写入，保证不丢失也不乱序。排队与待重试的变更合计不超过队列容量：
+ * 存储持续写入失败时新的变更会被拒绝（抛出异常），由调用方撤销内存中的修改。
+ * <p>
+ * 整批写入失败时逐条重写找出失败的变更；其它变更能写入说明存储可用，同一条变更单独失败达到次数上限后
+ * 记录到日志并丢弃，一条坏数据不会阻塞之后的所有写入。
+ */
+public class WriteBehindQueue {
+    private final JavaPlugin plugin;
+    private final CDKStorage storage;
+    private final BlockingQueue<CDKMutation> queue;
+    private final int capacity;
+    private final int batchSize;
+    private final ScheduledExecutorService executor;
+    // 保证出队与写入的顺序：同一时刻只有一个线程在写存储
+    private final ReentrantLock writeLock = new ReentrantLock();
+    // 保证检查容量与入队是原子的；需要同时持有时先取本锁再取 writeLock
+    private final ReentrantLock submitLock = new ReentrantLock();
+    private final AtomicBoolean drainScheduled = new AtomicBoolean(false);
+    // 写入失败的批次，下一次刷写时优先重试
+    private final List<CDKMutation> retry = new ArrayList<>();
+    private volatile int retrySize;
+    // 单独写入仍失败的变更及其失败次数，只在持有 writeLock 时访问
+    private final Map<CDKMutation, Integer> failures = new IdentityHashMap<>();
+    private static final int MAX_ATTEMPTS = 3;
+
+    public WriteBehindQueue(JavaPlugin plugin, CDKStorage storage, int capacity, int batchSize, long flushIntervalMillis) {
+        this.plugin = plugin;
+        this.storage = storage;
+        this.capacity = Math.max(1, capacity);
+        this.queue = new ArrayBlockingQueue<>(this.capacity);
+        this.batchSize = Math.max(1, batchSize);
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "KukeCDK-Persistence");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long interval = Math.max(50L, flushIntervalMillis);
+        executor.scheduleWithFixedDelay(this::drainQuietly, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 提交一组变更，通常立即返回
+     *
+     * @param mutations 变更列表
+     * @throws RuntimeException 队列已满且积压的变更无法写入存储时抛出，本批变更不会被接受
+     */
+    public void submit(List<CDKMutation> mutations) {
+        if (mutations.isEmpty()) {
+            return;
+        }
+        submitLock.lock();
+        try {
+            if (retrySize + queue.size() + mutations.size() > capacity) {
+                writeThrough(mutations);
+                return;
+            }
+            for (CDKMutation mutation : mutations) {
+                queue.add(mutation);
+            }
+        } finally {
+            submitLock.unlock();
+        }
+        if (queue.size() >= batchSize && drainScheduled.compareAndSet(false, true)) {
+            executor.execute(() -> {
+                drainScheduled.set(false);
+                drainQuietly();
+            });
+        }
+    }
+
+    /**
+     * 队列已满：在调用线程上先写完积压的变更，再写入本批
+     * <p>
+     * 积压的变更写入失败时直接抛出，本批不进入队列，待重试的变更不会超过队列容量；
+     * 积压写完后本批写入失败的部分进入重试列表，内存数据仍以调用方为准。
+     */
+    private void writeThrough(List<CDKMutation> mutations) {
+        writeLock.lock();
+        try {
+            List<CDKMutation> pending = takeRetry();
+            queue.drainTo(pending);
+            writeInBatches(pending);
+            try {
+                writeInBatches(new ArrayList<>(mutations));
+            } catch (RuntimeException e) {
+                plugin.getLogger().severe("同步写入CDK变更时出错，将在下次刷写时重试: " + e.getMessage());
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * 在当前线程同步写入所有排队中的变更
+     */
+    public void flush() {
+        writeLock.lock();
+        try {
+            List<CDKMutation> pending = takeRetry();
+            queue.drainTo(pending);
+            writeInBatches(pending);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * 停止后台线程并写入剩余变更
+     */
+    public void shutdown() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        drainQuietly();
+        if (!retry.isEmpty()) {
+            plugin.getLogger().severe("关闭时仍有 " + retry.size() + " 条CDK变更未能写入存储！");
+        }
+    }
+
+    /**
+     * @return 当前排队中的变更数量
+     */
+    public int getPendingCount() {
+        return queue.size() + retrySize;
+    }
+
+    private void drainQuietly() {
+        try {
+            flush();
+        } catch (Throwable t) {
+            plugin.getLogger().severe("后台写入CDK变更时出错: " + t.getMessage());
+        }
+    }
+
+    private List<CDKMutation> takeRetry() {
+        List<CDKMutation> pending = new ArrayList<>(retry);
+        retry.clear();
+        retrySize = 0;
+        return pending;
+    }
+
+    private void writeInBatches(List<CDKMutation> pending) {
+        for (int from = 0; from < pending.size(); from += batchSize) {
+            int to = Math.min(pending.size(), from + batchSize);
+            List<CDKMutation> batch = pending.subList(from, to);
+            try {
+                storage.apply(batch);
+                if (!failures.isEmpty()) {
+                    for (CDKMutation mutation : batch) {
+                        failures.remove(mutation);
+                    }
+                }
+            } catch (RuntimeException e) {
+                List<CDKMutation> failed = writeOneByOne(batch);
+                if (failed == null) {
+                    // 没有一条能写入，视为存储不可用：保留失败批次及其后的所有变更，下次按原顺序重试
+                    retry.addAll(pending.subList(from, pending.size()));
+                    retrySize = retry.size();
+                    throw e;
+                }
+                for (CDKMutation mutation : failed) {
+                    int attempts = failures.merge(mutation, 1, Integer::sum);
+                    if (attempts >= MAX_ATTEMPTS) {
+                        failures.remove(mutation);
+                        plugin.getLogger().severe("CDK变更连续 " + attempts + " 次写入失败，已丢弃: " + describe(mutation));
+                    } else {
+                        retry.add(mutation);
+                    }
+                }
+                retrySize = retry.size();
+            }
+        }
+    }
+
+    /**
+     * 逐条写入一批变更；开头连续多条都失败时不再尝试其余变更
+     *
+     * @return 写入失败的变更，按原顺序；没有任何一条写入成功时返回 null
+     */
+    private List<CDKMutation> writeOneByOne(List<CDKMutation> batch) {
+        List<CDKMutation> failed = new ArrayList<>();
+        boolean succeeded = false;
+        for (CDKMutation mutation : batch) {
+            try {
+                storage.apply(Collections.singletonList(mutation));
+                failures.remove(mutation);
+                succeeded = true;
+            } catch (RuntimeException e) {
+                failed.add(mutation);
+                plugin.getLogger().warning("写入CDK变更失败: " + describe(mutation) + ": " + e.getMessage());
+                if (!succeeded && failed.size() >= MAX_ATTEMPTS) {
+                    return null;
+                }
+            }
+        }
+        return succeeded ? failed : null;
+    }
+
+    private static String describe(CDKMutation mutation) {
+        StringBuilder text = new StringBuilder(mutation.getType().name());
+        if (mutation.getId() != null) text.append(" id=").append(mutation.getId());
+        if (mutation.getName() != null) text.append(" name=").append(mutation.getName());
+        if (mutation.getPlayerName() != null) text.append(" player=").append(mutation.getPlayerName());
+        return text.toString();
+    }
+}
@@ -0,0 +1,175 @@
+package su.kukecdk.storage;
+
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.file.FileConfiguration;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.bukkit.plugin.java.JavaPlugin;
+import su.kukecdk.model.CDK;
+import su.kukecdk.util.AtomicFileWriter;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.*;
+
+/**
+ * 基于 cdk.yml 的CDK存储
+ */
+public class YamlCDKStorage implements CDKStorage {
+    private final JavaPlugin plugin;
+    private final File cdkFile;
+    private FileConfiguration cdkConfig;
+
+    public YamlCDKStorage(JavaPlugin plugin) {
+        this.plugin = plugin;
+        this.cdkFile = new File(plugin.getDataFolder(), "cdk.yml");
+    }
+
+    private void ensureLoaded() {
+        if (cdkConfig != null) {
+            return;
+        }
+        if (!cdkFile.exists()) {
+            try {
+                cdkFile.createNewFile();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        cdkConfig = YamlConfiguration.loadConfiguration(cdkFile);
+    }
+
+    @Override
+    public Map<String, Map<String, CDK>> loadCDKs() {
+        cdkConfig = null;
+        ensureLoaded();
+
+        Map<String, Map<String, CDK>> cdkMap = new HashMap<>();
+        for (String id : cdkConfig.getKeys(false)) {
+            ConfigurationSection section = cdkConfig.getConfigurationSection(id);
+            if (section == null) {
+                continue;
+            }
+            section.getKeys(false).forEach(cdkName -> {
+                String name = cdkConfig.getString(id + "." + cdkName + ".name");
+                int quantity = cdkConfig.getInt(id + "." + cdkName + ".quantity");
+                boolean isSingleUse = cdkConfig.getBoolean(id + "." + cdkName + ".single");
+                String commands = cdkConfig.getString(id + "." + cdkName + ".commands");
+                String requiredPermission = cdkConfig.getString(id + "." + cdkName + ".requiredPermission");
+                String requiredGroup = cdkConfig.getString(id + "." + cdkName + ".requiredGroup");
+                Date expirationDate = null;
+
+                String dateStr = cdkConfig.getString(id + "." + cdkName + ".expiration");
+                if (dateStr != null) {
+                    try {
+                        expirationDate = new SimpleDateFormat("yyyy-MM-dd HH:mm").parse(dateStr);
+                    } catch (ParseException e) {
+                        e.printStackTrace();
+                    }
+                }
+
+                CDK cdk = new CDK(id, name, quantity, isSingleUse, commands, expirationDate, requiredPermission, requiredGroup);
+
+                // 加载已兑换玩家列表
+                List<String> redeemedPlayersList = cdkConfig.getStringList(id + "." + cdkName + ".redeemedPlayers");
+                cdk.setRedeemedPlayers(new HashSet<>(redeemedPlayersList));
+
+                cdkMap.computeIfAbsent(id, k -> new HashMap<>()).put(name, cdk);
+            });
+        }
+        return cdkMap;
+    }
+
+    @Override
+    public void apply(List<CDKMutation> mutations) {
+        if (mutations.isEmpty()) {
+            return;
+        }
+        ensureLoaded();
+        // 只改动受影响的节点，最后统一写盘一次
+        for (CDKMutation mutation : mutations) {
+            String basePath = mutation.getId() + "." + mutation.getName();
+            switch (mutation.getType()) {
+                case INSERT:
+                    writeCDK(mutation.getCdk());
+                    break;
+                case UPDATE:
+                    // 兑换列表由 REDEEM 追加维护，这里只更新属性
+                    writeAttributes(mutation.getCdk());
+                    break;
+                case DELETE:
+                    cdkConfig.set(basePath, null);
+                    break;
+                case DELETE_GROUP:
+                    cdkConfig.set(mutation.getId(), null);
+                    break;
+                case DECREMENT:
+                    // 并发删除后可能晚到的变更，节点不存在时忽略
+                    if (cdkConfig.isConfigurationSection(basePath)) {
+                        cdkConfig.set(basePath + ".quantity", cdkConfig.getInt(basePath + ".quantity") - 1);
+                    }
+                    break;
+                case REDEEM:
+                    if (!cdkConfig.isConfigurationSection(basePath)) {
+                        break;
+                    }
+                    List<String> players = cdkConfig.getStringList(basePath + ".redeemedPlayers");
+                    if (!players.contains(mutation.getPlayerName())) {
+                        players.add(mutation.getPlayerName());
+                        cdkConfig.set(basePath + ".redeemedPlayers", players);
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+        save();
+    }
+
+    @Override
+    public void saveCDKs(Map<String, Map<String, CDK>> cdkMap) {
+        ensureLoaded();
+        cdkConfig.getKeys(false).forEach(key -> cdkConfig.set(key, null)); // 清空现有内容，避免累积
+        for (Map<String, CDK> group : cdkMap.values()) {
+            for (CDK cdk : group.values()) {
+                writeCDK(cdk);
+            }
+        }
+        save();
+    }
+
+    private void writeCDK(CDK cdk) {
+        writeAttributes(cdk);
+        // 保存已兑换玩家列表
+        cdkConfig.set(cdk.getId() + "." + cdk.getName() + ".redeemedPlayers", new ArrayList<>(cdk.getRedeemedPlayers()));
+    }
+
+    private void writeAttributes(CDK cdk) {
+        String basePath = cdk.getId() + "." + cdk.getName();
+        cdkConfig.set(basePath + ".name", cdk.getName());
+        cdkConfig.set(basePath + ".quantity", cdk.getQuantity());
+        cdkConfig.set(basePath + ".single", cdk.isSingleUse());
+        cdkConfig.set(basePath + ".commands", cdk.getCommands());
+        cdkConfig.set(basePath + ".requiredPermission", cdk.getRequiredPermission());
+        cdkConfig.set(basePath + ".requiredGroup", cdk.getRequiredGroup());
+        cdkConfig.set(basePath + ".expiration", cdk.getExpirationDate() != null ? new SimpleDateFormat("yyyy-MM-dd HH:mm").format(cdk.getExpirationDate()) : null);
+    }
+
+    private void save() {
+        try {
+            AtomicFileWriter.write(cdkFile, cdkConfig.saveToString());
+        } catch (IOException e) {
+            plugin.getLogger().severe("保存 CDK 文件时出错！");
+            e.printStackTrace();
+            // 丢弃未能落盘的改动，下次写入时从文件重新加载
+            cdkConfig = null;
+            throw new RuntimeException("保存 CDK 文件时出错", e);
+        }
+    }
+
+    @Override
+    public void close() {
+        cdkConfig = null;
+    }
+}
@@ -0,0 +1,185 @@
+package su.kukecdk.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 崩溃安全的文件写入工具
+ * <p>
+ * 先把内容写入同目录下的临时文件（可选 fsync），再原子重命名覆盖目标文件，
+ * 因此目标文件在任何时刻要么是旧内容、要么是完整的新内容。覆盖前会把旧文件
+ * 轮转为 name.bak.1 ~ name.bak.N 备份。
+ */
+public final class AtomicFileWriter {
+    private static volatile boolean fsync = true;
+    private static volatile int backups = 3;
+    private static final Map<String, WriteStats> STATS = new ConcurrentHashMap<>();
+
+    private AtomicFileWriter() {}
+
+    /**
+     * 更新写入参数，通常在启用插件和重载配置时调用
+     *
+     * @param fsyncEnabled 是否在重命名前把临时文件刷入磁盘
+     * @param backupCount  保留的历史备份数量，0 表示不保留
+     */
+    public static void configure(boolean fsyncEnabled, int backupCount) {
+        fsync = fsyncEnabled;
+        backups = Math.max(0, backupCount);
+    }
+
+    /**
+     * 以 UTF-8 编码写入文本
+     *
+     * @param target  目标文件
+     * @param content 文件内容
+     * @throws IOException 写入失败时抛出，此时目标文件保持原样
+     */
+    public static void write(File target, String content) throws IOException {
+        write(target, content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * 原子地用 data 替换目标文件内容
+     *
+     * @param target 目标文件
+     * @param data   文件内容
+     * @throws IOException 写入失败时抛出，此时目标文件保持原样
+     */
+    public static void write(File target, byte[] data) throws IOException {
+        long start = System.nanoTime();
+        WriteStats stats = STATS.computeIfAbsent(target.getName(), key -> new WriteStats());
+        // 同一目标文件的写入串行执行，避免备份轮转互相覆盖
+        synchronized (stats) {
+            File dir = target.getAbsoluteFile().getParentFile();
+            if (dir != null && !dir.exists()) {
+                dir.mkdirs();
+            }
+            File temp = File.createTempFile(target.getName() + ".", ".tmp", dir);
+            try {
+                try (FileOutputStream out = new FileOutputStream(temp)) {
+                    out.write(data);
+                    if (fsync) {
+                        out.getChannel().force(true);
+                    }
+                }
+                rotateBackups(target);
+                move(temp.toPath(), target.toPath());
+                if (fsync && dir != null) {
+                    syncDirectory(dir.toPath());
+                }
+                stats.record(System.nanoTime() - start, data.length);
+            } catch (IOException | RuntimeException e) {
+                stats.recordFailure();
+                Files.deleteIfExists(temp.toPath());
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * 把当前目标文件依次轮转为 .bak.1 ~ .bak.N；目标文件本身保持不动，直到新文件重命名覆盖它
+     */
+    private static void rotateBackups(File target) throws IOException {
+        int count = backups;
+        if (count <= 0 || !target.isFile() || target.length() == 0) {
+            return;
+        }
+        for (int i = count - 1; i >= 1; i--) {
+            Path from = backupPath(target, i);
+            if (Files.exists(from)) {
+                Files.move(from, backupPath(target, i + 1), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        Path first = backupPath(target, 1);
+        Files.deleteIfExists(first);
+        try {
+            // 优先使用硬链接，避免复制整个文件
+            Files.createLink(first, target.toPath());
+        } catch (IOException | UnsupportedOperationException e) {
+            Files.copy(target.toPath(), first, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static Path backupPath(File target, int index) {
+        return new File(target.getAbsoluteFile().getParentFile(), target.getName() + ".bak." + index).toPath();
+    }
+
+    private static void move(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * 刷新目录项，确保重命名本身也已落盘；部分平台（如 Windows）不支持打开目录，忽略即可
+     */
+    private static void syncDirectory(Path dir) {
+        try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException | RuntimeException ignored) {}
+    }
+
+    /**
+     * 获取各文件的写入耗时统计
+     *
+     * @return 文件名到统计数据的映射
+     */
+    public static Map<String, Map<String, Object>> getStats() {
+        Map<String, Map<String, Object>> result = new TreeMap<>();
+        for (Map.Entry<String, WriteStats> entry : STATS.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().toMap());
+        }
+        return result;
+    }
+
+    private static final class WriteStats {
+        private volatile long writes;
+        private volatile long failures;
+        private volatile long totalNanos;
+        private volatile long maxNanos;
+        private volatile long lastNanos;
+        private volatile long lastBytes;
+        private volatile long lastWriteAt;
+
+        private synchronized void record(long nanos, long bytes) {
+            writes++;
+            totalNanos += nanos;
+            maxNanos = Math.max(maxNanos, nanos);
+            lastNanos = nanos;
+            lastBytes = bytes;
+            lastWriteAt = System.currentTimeMillis();
+        }
+
+        private synchronized void recordFailure() {
+            failures++;
+        }
+
+        private Map<String, Object> toMap() {
+            Map<String, Object> data = new LinkedHashMap<>();
+            long count = writes;
+            data.put("writes", count);
+            data.put("failures", failures);
+            data.put("lastMillis", lastNanos / 1_000_000.0);
+            data.put("maxMillis", maxNanos / 1_000_000.0);
+            data.put("avgMillis", count == 0 ? 0.0 : totalNanos / 1_000_000.0 / count);
+            data.put("lastBytes", lastBytes);
+            data.put("lastWriteAt", lastWriteAt);
+            return data;
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package su.kukecdk.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 字符串的布隆过滤器
+ * <p>
+ * 判断为不存在的名称一定不存在，判断为存在的名称有一定概率误判。不支持删除，删除较多后应重新构建。
+ * 读写都不加锁：位数组通过 AtomicLongArray 按位 CAS 置位，多个线程可以同时加入和查询。
+ */
+public final class BloomFilter {
+    private final long bitSize;
+    private final int hashes;
+    private final long capacity;
+    private final double targetFpp;
+    private final AtomicLongArray bits;
+    private final LongAdder inserted = new LongAdder();
+
+    /**
+     * 按预期数量和误判率创建过滤器
+     *
+     * @param capacity  预期加入的名称数量，超出后误判率会上升
+     * @param targetFpp 预期数量下的目标误判率
+     */
+    public BloomFilter(long capacity, double targetFpp) {
+        this.capacity = Math.max(1L, capacity);
+        this.targetFpp = Math.min(0.5d, Math.max(1e-6d, targetFpp));
+        long optimal = (long) Math.ceil(-this.capacity * Math.log(this.targetFpp) / (Math.log(2) * Math.log(2)));
+        // 按 long 对齐，至少 1024 位
+        this.bitSize = Math.max(1024L, (optimal + 63) & ~63L);
+        this.hashes = (int) Math.max(1L, Math.min(16L, Math.round((double) bitSize / this.capacity * Math.log(2))));
+        this.bits = new AtomicLongArray((int) (bitSize >>> 6));
+    }
+
+    /**
+     * 加入名称
+     *
+     * @param value 名称
+     * @return 有新置位的位时返回true；重复加入同一名称返回false，不计入已加入数量
+     */
+    public boolean put(String value) {
+        long hash1 = hash(value);
+        long hash2 = mix(hash1 ^ 0x9E3779B97F4A7C15L);
+        long combined = hash1;
+        boolean changed = false;
+        for (int i = 0; i < hashes; i++) {
+            long index = (combined & Long.MAX_VALUE) % bitSize;
+            int word = (int) (index >>> 6);
+            long mask = 1L << index;
+            long current;
+            do {
+                current = bits.get(word);
+                if ((current & mask) != 0) {
+                    break;
+                }
+                if (bits.compareAndSet(word, current, current | mask)) {
+                    changed = true;
+                    break;
+                }
+            } while (true);
+            combined += hash2;
+        }
+        if (changed) {
+            inserted.increment();
+        }
+        return changed;
+    }
+
+    /**
+     * 检查名称是否可能存在
+     *
+     * @param value 名称
+     * @return 返回false时名称一定不存在
+     */
+    public boolean mightContain(String value) {
+        long hash1 = hash(value);
+        long hash2 = mix(hash1 ^ 0x9E3779B97F4A7C15L);
+        long combined = hash1;
+        for (int i = 0; i < hashes; i++) {
+            long index = (combined & Long.MAX_VALUE) % bitSize;
+            if ((bits.get((int) (index >>> 6)) & (1L << index)) == 0) {
+                return false;
+            }
+            combined += hash2;
+        }
+        return true;
+    }
+
+    /**
+     * 已加入的不同名称数量（近似值，所有位都已被其它名称置位的名称不计入）
+     */
+    public long getInserted() {
+        return inserted.sum();
+    }
+
+    public long getCapacity() {
+        return capacity;
+    }
+
+    private long countSetBits() {
+        long count = 0;
+        for (int i = 0; i < bits.length(); i++) {
+            count += Long.bitCount(bits.get(i));
+        }
+        return count;
+    }
+
+    /**
+     * 获取过滤器统计，误判率按当前置位比例估算
+     *
+     * @return 位数、哈希函数个数、容量和估算的误判率
+     */
+    public Map<String, Object> getStats() {
+        long setBits = countSetBits();
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("bits", bitSize);
+        stats.put("bytes", bitSize >>> 3);
+        stats.put("hashes", hashes);
+        stats.put("capacity", capacity);
+        stats.put("inserted", inserted.sum());
+        stats.put("fillRatio", (double) setBits / bitSize);
+        stats.put("targetFpp", targetFpp);
+        stats.put("estimatedFpp", Math.pow((double) setBits / bitSize, hashes));
+        return stats;
+    }
+
+    // FNV-1a 后再做一次 64 位混合，使短名称的哈希值分布均匀
+    private static long hash(String value) {
+        long hash = 0xCBF29CE484222325L;
+        for (int i = 0; i < value.length(); i++) {
+            hash ^= value.charAt(i);
+            hash *= 0x100000001B3L;
+        }
+        return mix(hash);
+    }
+
+    private static long mix(long value) {
+        value ^= value >>> 33;
+        value *= 0xFF51AFD7ED558CCDL;
+        value ^= value >>> 33;
+        value *= 0xC4CEB93FE1A85A53L;
+        value ^= value >>> 33;
+        return value;
+    }
+}
@@ -0,0 +1,113 @@
+package su.kukecdk.util;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 带过期时间的有界 LRU 缓存
+ * <p>
+ * 超过容量时淘汰最久未访问的条目，条目写入后超过 TTL 即视为不存在，读取时顺便移除。
+ * 所有操作在本对象上加锁，适合查询频繁但单次操作很短的场景。
+ */
+public class ExpiringLruCache<K, V> {
+    private final int maxSize;
+    private final long ttlMillis;
+    private final LinkedHashMap<K, Slot<V>> entries;
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long expirations;
+
+    public ExpiringLruCache(int maxSize, long ttlMillis) {
+        this.maxSize = Math.max(1, maxSize);
+        this.ttlMillis = Math.max(1L, ttlMillis);
+        this.entries = new LinkedHashMap<K, Slot<V>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, Slot<V>> eldest) {
+                if (size() <= ExpiringLruCache.this.maxSize) {
+                    return false;
+                }
+                if (eldest.getValue().expiresAt <= System.currentTimeMillis()) {
+                    expirations++;
+                } else {
+                    evictions++;
+                }
+                return true;
+            }
+        };
+    }
+
+    /**
+     * 读取未过期的条目
+     *
+     * @param key 键
+     * @return 值，不存在或已过期时返回 null
+     */
+    public synchronized V get(K key) {
+        Slot<V> entry = entries.get(key);
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        if (entry.expiresAt <= System.currentTimeMillis()) {
+            entries.remove(key);
+            expirations++;
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.value;
+    }
+
+    public synchronized void put(K key, V value) {
+        entries.put(key, new Slot<>(value, System.currentTimeMillis() + ttlMillis));
+    }
+
+    public synchronized void invalidate(K key) {
+        entries.remove(key);
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    /**
+     * 移除所有已过期的条目
+     */
+    public synchronized void purgeExpired() {
+        long now = System.currentTimeMillis();
+        for (Iterator<Slot<V>> it = entries.values().iterator(); it.hasNext(); ) {
+            if (it.next().expiresAt <= now) {
+                it.remove();
+                expirations++;
+            }
+        }
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("hits", hits);
+        stats.put("misses", misses);
+        stats.put("evictions", evictions);
+        stats.put("expirations", expirations);
+        stats.put("size", entries.size());
+        stats.put("maxSize", maxSize);
+        stats.put("ttlMs", ttlMillis);
+        return stats;
+    }
+
+    private static final class Slot<V> {
+        private final V value;
+        private final long expiresAt;
+
+        private Slot(V value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
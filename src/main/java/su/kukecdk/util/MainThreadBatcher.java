@@ -0,0 +1,158 @@
+package su.kukecdk.util;
+
+import org.bukkit.plugin.java.JavaPlugin;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * 主线程任务合并器
+ * <p>
+ * 其它线程提交的任务先进入队列，同一时间只调度一个主线程任务，在其中依次执行队列中的所有任务，
+ * 同一 tick 内多个请求的工作只占用一次调度。每个任务都有自己的 Future；有副作用的任务（如奖励命令）等待超时后仍会执行，
+ * 只有通过 {@link #query(Supplier)} 提交的只读任务在超时后被跳过。
+ */
+public class MainThreadBatcher {
+    private final JavaPlugin plugin;
+    private final ConcurrentLinkedQueue<Task<?>> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+    private final AtomicLong hops = new AtomicLong();
+    private final AtomicLong tasks = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private volatile long timeoutMillis;
+    private volatile boolean closed;
+
+    public MainThreadBatcher(JavaPlugin plugin, long timeoutMillis) {
+        this.plugin = plugin;
+        setTimeoutMillis(timeoutMillis);
+    }
+
+    public void setTimeoutMillis(long timeoutMillis) {
+        this.timeoutMillis = Math.max(100L, timeoutMillis);
+    }
+
+    public long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    /**
+     * 提交一个任务，在下一次主线程调度中执行
+     *
+     * @param supplier 在主线程执行的任务
+     * @return 任务结果
+     */
+    public <T> CompletableFuture<T> submit(Supplier<T> supplier) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        if (closed) {
+            future.completeExceptionally(new IllegalStateException("Main thread batcher is closed"));
+            return future;
+        }
+        queue.add(new Task<>(supplier, future));
+        if (scheduled.compareAndSet(false, true)) {
+            FoliaSupport.runGlobal(plugin, this::drain);
+        }
+        return future;
+    }
+
+    /**
+     * 提交任务并等待结果，超过配置的超时时间后不再等待，但任务仍会在主线程执行
+     *
+     * @param supplier 在主线程执行的任务，可以有副作用
+     * @return 任务结果
+     * @throws TimeoutException 等待超时
+     * @throws ExecutionException 任务执行时抛出异常
+     */
+    public <T> T call(Supplier<T> supplier) throws TimeoutException, ExecutionException, InterruptedException {
+        return await(submit(supplier), false);
+    }
+
+    /**
+     * 提交只读任务并等待结果，超时后仍在队列中的任务不再执行
+     *
+     * @param supplier 在主线程执行的只读任务
+     * @return 任务结果
+     * @throws TimeoutException 等待超时
+     * @throws ExecutionException 任务执行时抛出异常
+     */
+    public <T> T query(Supplier<T> supplier) throws TimeoutException, ExecutionException, InterruptedException {
+        return await(submit(supplier), true);
+    }
+
+    private <T> T await(CompletableFuture<T> future, boolean cancelOnTimeout) throws TimeoutException, ExecutionException, InterruptedException {
+        try {
+            return future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            if (cancelOnTimeout) {
+                future.cancel(false);
+            }
+            timeouts.incrementAndGet();
+            throw new TimeoutException("Timed out waiting for server thread task");
+        } catch (CancellationException e) {
+            throw new ExecutionException(e);
+        }
+    }
+
+    private void drain() {
+        // 先清除标记再取任务，执行期间新提交的任务会另行调度，不会被遗漏
+        scheduled.set(false);
+        hops.incrementAndGet();
+        Task<?> task;
+        while ((task = queue.poll()) != null) {
+            if (task.run()) {
+                tasks.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * 停止接受新任务，队列中尚未执行的任务以异常结束
+     */
+    public void close() {
+        closed = true;
+        Task<?> task;
+        while ((task = queue.poll()) != null) {
+            task.future.completeExceptionally(new IllegalStateException("Main thread batcher is closed"));
+        }
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("hops", hops.get());
+        stats.put("tasks", tasks.get());
+        stats.put("timeouts", timeouts.get());
+        stats.put("pending", queue.size());
+        stats.put("timeoutMs", timeoutMillis);
+        return stats;
+    }
+
+    private static final class Task<T> {
+        private final Supplier<T> supplier;
+        private final CompletableFuture<T> future;
+
+        private Task(Supplier<T> supplier, CompletableFuture<T> future) {
+            this.supplier = supplier;
+            this.future = future;
+        }
+
+        private boolean run() {
+            if (future.isDone()) {
+                return false;
+            }
+            try {
+                future.complete(supplier.get());
+            } catch (Throwable t) {
+                future.completeExceptionally(t);
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package su.kukecdk.util;
+
+import org.bukkit.Bukkit;
+import org.bukkit.entity.Player;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Method;
+
+/**
+ * PlaceholderAPI 可选支持
+ * <p>
+ * 首次使用时通过反射解析 setPlaceholders 并缓存为 MethodHandle，插件卸载时清除，避免编译期依赖，也避免每条命令都做反射查找。
+ */
+public final class PlaceholderSupport {
+    private static final Object UNAVAILABLE = new Object();
+    // null 表示尚未解析，UNAVAILABLE 表示 PlaceholderAPI 已安装但无法调用
+    private static volatile Object handle;
+
+    private PlaceholderSupport() {}
+
+    /**
+     * 解析文本中的 PlaceholderAPI 占位符，未安装 PlaceholderAPI 或解析失败时原样返回
+     *
+     * @param player 玩家
+     * @param text   文本
+     * @return 解析后的文本
+     */
+    public static String apply(Player player, String text) {
+        if (player == null || text == null) {
+            return text;
+        }
+        MethodHandle setPlaceholders = resolve();
+        if (setPlaceholders == null) {
+            return text;
+        }
+        try {
+            Object out = setPlaceholders.invoke(player, text);
+            return out instanceof String ? (String) out : text;
+        } catch (Throwable ignored) {
+            return text;
+        }
+    }
+
+    private static MethodHandle resolve() {
+        Object current = handle;
+        if (current instanceof MethodHandle) {
+            return (MethodHandle) current;
+        }
+        if (current == UNAVAILABLE) {
+            return null;
+        }
+        // 未安装时不缓存，PlaceholderAPI 晚于本插件加载时仍可生效
+        if (Bukkit.getPluginManager().getPlugin("PlaceholderAPI") == null) {
+            return null;
+        }
+        synchronized (PlaceholderSupport.class) {
+            if (handle == null) {
+                try {
+                    Class<?> cls = Class.forName("me.clip.placeholderapi.PlaceholderAPI");
+                    Method method = cls.getMethod("setPlaceholders", Player.class, String.class);
+                    handle = MethodHandles.publicLookup().unreflect(method);
+                } catch (Throwable e) {
+                    handle = UNAVAILABLE;
+                }
+            }
+            return handle instanceof MethodHandle ? (MethodHandle) handle : null;
+        }
+    }
+
+    /**
+     * 清除缓存的方法句柄，插件卸载或重载时调用
+     */
+    public static void reset() {
+        handle = null;
+    }
+}